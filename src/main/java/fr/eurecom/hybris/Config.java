@@ -39,6 +39,13 @@ public class Config {
     public static String HS_GC = "hybris.gc";
 
     public static String HS_CRYPTO = "hybris.crypto";
+    public static String HS_SYNC_PARITY = "hybris.syncparity";
+
+    public static String PACK_ENABLED = "hybris.pack";
+    public static String PACK_THRESHOLD = "hybris.pack.threshold";
+    public static String PACK_WINDOW = "hybris.pack.window";
+    public static String PACK_MAXSIZE = "hybris.pack.maxsize";
+    public static String PACK_GC_RATIO = "hybris.pack.gcratio";
 
     public static String CACHE_ENABLED = "hybris.cache";
     public static String CACHE_ADDRESS = "hybris.cache.address";
@@ -51,12 +58,46 @@ public class Config {
     public static String KVS_ROOT = "hybris.kvs.root";
     public static String KVS_ACCOUNTSFILE = "hybris.kvs.accountsfile";
     public static String KVS_TESTSONSTARTUP = "hybris.kvs.latencytestonstartup";
+    public static String KVS_EXECUTOR = "hybris.kvs.executor";
+    public static String KVS_PLACEMENT = "hybris.kvs.placement";
+    public static String KVS_PLACEMENT_COSTWEIGHT = "hybris.kvs.placement.costweight";
+    public static String KVS_PLACEMENT_SLO = "hybris.kvs.placement.slo";
+    public static String KVS_PLACEMENT_VNODES = "hybris.kvs.placement.vnodes";
+    public static String KVS_BUFFERPOOL = "hybris.kvs.bufferpool";
+    public static String KVS_BREAKER_THRESHOLD = "hybris.kvs.breaker.threshold";
+    public static String KVS_BREAKER_MINSAMPLES = "hybris.kvs.breaker.minsamples";
+    public static String KVS_BREAKER_OPENTIME = "hybris.kvs.breaker.opentime";
+    public static String KVS_STARTUP_TIMEOUT = "hybris.kvs.startup.timeout";
+    public static String KVS_LAZYCONTAINERS = "hybris.kvs.lazycontainers";
+    public static String KVS_LATENCYPROFILE = "hybris.kvs.latencyprofile";
+    public static String KVS_LATENCYPROFILE_INTERVAL = "hybris.kvs.latencyprofile.interval";
+    public static String KVS_LATENCYSHARING = "hybris.kvs.latencysharing";
 
     private static String C_ACCOUNTS = "hybris.kvs.drivers";
+    public static String C_TYPE = "hybris.kvs.drivers.%s.type";
+    public static String C_CONTAINER = "hybris.kvs.drivers.%s.container";
+    public static String C_REGION = "hybris.kvs.drivers.%s.region";
     public static String C_AKEY = "hybris.kvs.drivers.%s.akey";
     public static String C_SKEY = "hybris.kvs.drivers.%s.skey";
     public static String C_ENABLED = "hybris.kvs.drivers.%s.enabled";
     public static String C_COST = "hybris.kvs.drivers.%s.cost";
+    public static String C_CAPACITY = "hybris.kvs.drivers.%s.capacity";
+    public static String C_PATH = "hybris.kvs.drivers.%s.path";
+    public static String C_SYNCINTERVAL = "hybris.kvs.drivers.%s.syncinterval";
+    public static String C_SIM_LATENCY = "hybris.kvs.drivers.%s.latency";
+    public static String C_SIM_BANDWIDTH = "hybris.kvs.drivers.%s.bandwidth";
+    public static String C_SIM_ERRORRATE = "hybris.kvs.drivers.%s.errorrate";
+    public static String C_SIM_OUTAGES = "hybris.kvs.drivers.%s.outages";
+    public static String C_SIM_SEED = "hybris.kvs.drivers.%s.seed";
+    public static String C_TR_MAXCONNECTIONS = "hybris.kvs.drivers.%s.transport.maxconnections";
+    public static String C_TR_MAXCONCURRENCY = "hybris.kvs.drivers.%s.transport.maxconcurrency";
+    public static String C_TR_CONNECTTIMEOUT = "hybris.kvs.drivers.%s.transport.connecttimeout";
+    public static String C_TR_SOCKETTIMEOUT = "hybris.kvs.drivers.%s.transport.sockettimeout";
+    public static String C_TR_SENDBUFFER = "hybris.kvs.drivers.%s.transport.sendbuffer";
+    public static String C_TR_RECEIVEBUFFER = "hybris.kvs.drivers.%s.transport.receivebuffer";
+    public static String C_TR_MAXRETRIES = "hybris.kvs.drivers.%s.transport.maxretries";
+    public static String C_TR_MULTIPARTTHRESHOLD = "hybris.kvs.drivers.%s.transport.multipartthreshold";
+    public static String C_TR_PARTSIZE = "hybris.kvs.drivers.%s.transport.partsize";
 
     public static synchronized Config getInstance () {
         if (instance == null)
@@ -78,6 +119,12 @@ public class Config {
         return hybrisProperties.getProperty(key);
     }
 
+    public String getProperty (String key, String defaultValue) {
+        if (hybrisProperties == null)
+            return defaultValue;
+        return hybrisProperties.getProperty(key, defaultValue);
+    }
+
     /* --------------- Accounts properties management --------------- */
 
     public synchronized void loadAccountsProperties(String propertiesFile) throws IOException {
@@ -97,4 +144,8 @@ public class Config {
     public String getAccountsProperty(String key) {
         return accountsProperties.getProperty(key);
     }
+
+    public String getAccountsProperty(String key, String defaultValue) {
+        return accountsProperties.getProperty(key, defaultValue);
+    }
 }
@@ -20,18 +20,31 @@ import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.spy.memcached.AddrUtil;
 import net.spy.memcached.BinaryConnectionFactory;
@@ -43,10 +56,22 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 import fr.eurecom.hybris.kvs.KvsManager;
+import fr.eurecom.hybris.kvs.KvsRegistry;
+import fr.eurecom.hybris.kvs.LatencySharing;
+import fr.eurecom.hybris.kvs.PackManager;
 import fr.eurecom.hybris.kvs.drivers.Kvs;
 import fr.eurecom.hybris.mds.MdsManager;
+import fr.eurecom.hybris.mds.MdsManager.WriteOutcome;
 import fr.eurecom.hybris.mds.Metadata;
+import fr.eurecom.hybris.mds.Metadata.PackRef;
 import fr.eurecom.hybris.mds.Metadata.Timestamp;
 
 
@@ -66,9 +91,32 @@ public class Hybris {
     private int cacheExp;   // default cache expiration timeout [s]
     private boolean cacheEnabled;
     private enum CachePolicy { ONREAD, ONWRITE };
+
+    /* batch operations */
+    public enum PutResult { STORED, CONFLICT, FAILED };
+    private static final int MAX_BATCH_THREADS = 64;    // max concurrent KVS requests of a batch operation
+    private static final int MAX_ASYNC_THREADS = 64;    // max concurrent KVS requests of asynchronous operations
+    private final ListeningExecutorService asyncExecutor;
+    private final ExecutorService batchExecutor;        // runs the KVS requests of batch gets
+    private final Semaphore batchLimiter = new Semaphore(MAX_BATCH_THREADS);    // shared by concurrent batch gets
+    private final ScheduledExecutorService timer;       // enforces the deadlines of background requests
+
+    /**
+     * Listener notified of the values retrieved by a batch get,
+     * as soon as each of them becomes available.
+     */
+    public interface GetListener {
+        /**
+         * @param key
+         * @param value - the value associated with key, or null if key does not exist
+         */
+        void onValue(String key, byte[] value);
+        void onError(String key, HybrisException e);
+    }
     private CachePolicy cachePolicy;
 
     private final int quorum;
+    private final int syncParity;       // parity chunks a put waits for before committing
 
     /* read and write timeouts for cloud communications [s] */
     private final int TIMEOUT_WRITE;
@@ -77,6 +125,12 @@ public class Hybris {
     /* GC */
     private final boolean gcEnabled;
 
+    /* small values packing */
+    private PackManager packManager;    // null if packing is disabled
+    private LatencySharing latencySharing;  // null if latencies are not shared with other clients
+    private int packThreshold;          // max size of values to be packed [B]
+    private float packGcRatio;          // live ratio under which packs are compacted
+
     /* confidentiality */
     private final boolean cryptoEnabled;
     private byte[] IV;
@@ -104,6 +158,7 @@ public class Hybris {
             logger.error("Could not initialize Zookeeper or the cloud storage KvStores.", e);
             throw new HybrisException("Could not initialize Zookeeper or the cloud storage KvStores.", e);
         }
+        this.registerKvs();
 
         this.cacheEnabled = Boolean.parseBoolean(conf.getProperty(Config.CACHE_ENABLED));
         if (this.cacheEnabled)
@@ -126,12 +181,35 @@ public class Hybris {
         this.TIMEOUT_READ = Integer.parseInt(conf.getProperty(Config.HS_TO_READ));
         this.gcEnabled = Boolean.parseBoolean(conf.getProperty(Config.HS_GC));
         this.cryptoEnabled = Boolean.parseBoolean(conf.getProperty(Config.HS_CRYPTO));
+        this.syncParity = Integer.parseInt(conf.getProperty(Config.HS_SYNC_PARITY, String.valueOf(Utils.REDCHUNKS)));
         if (this.cryptoEnabled)
             this.IV = this.mds.getOrCreateIv();
 
         String cid = conf.getProperty(Config.HS_CLIENTID);
         if (cid != null)    this.clientId = cid;
         else                this.clientId = Utils.generateClientId();
+
+        this.asyncExecutor = MoreExecutors.listeningDecorator(this.kvs.newExecutor(MAX_ASYNC_THREADS));
+        this.batchExecutor = this.kvs.newExecutor(MAX_BATCH_THREADS);
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "hybris-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        if (Boolean.parseBoolean(conf.getProperty(Config.PACK_ENABLED))) {
+            this.packThreshold = Integer.parseInt(conf.getProperty(Config.PACK_THRESHOLD, "4096"));
+            this.packGcRatio = Float.parseFloat(conf.getProperty(Config.PACK_GC_RATIO, "0.5"));
+            this.packManager = new PackManager(this.kvs, this.mds, this.clientId,
+                    Integer.parseInt(conf.getProperty(Config.PACK_WINDOW, "50")),
+                    Integer.parseInt(conf.getProperty(Config.PACK_MAXSIZE, "4194304")), this.TIMEOUT_WRITE);
+        }
+
+        int sharingInterval = Integer.parseInt(conf.getProperty(Config.KVS_LATENCYSHARING, "0"));
+        if (sharingInterval > 0)
+            this.latencySharing = new LatencySharing(this.kvs, this.mds, this.clientId, sharingInterval);
     }
 
     /**
@@ -164,6 +242,7 @@ public class Hybris {
             logger.error("Could not initialize Zookeeper or the cloud storage KvStores.", e);
             throw new HybrisException("Could not initialize Zookeeper or the cloud storage KvStores", e);
         }
+        this.registerKvs();
 
         this.cacheEnabled = cachingEnable;
         if (this.cacheEnabled)
@@ -185,11 +264,22 @@ public class Hybris {
         this.TIMEOUT_READ = readTimeout;
         this.gcEnabled = gcEnabled;
         this.cryptoEnabled = cryptoEnabled;
+        this.syncParity = Utils.REDCHUNKS;
         if (this.cryptoEnabled)
             this.IV = this.mds.getOrCreateIv();
 
         if (clientId != null)   this.clientId = clientId;
         else                    this.clientId = Utils.generateClientId();
+
+        this.asyncExecutor = MoreExecutors.listeningDecorator(this.kvs.newExecutor(MAX_ASYNC_THREADS));
+        this.batchExecutor = this.kvs.newExecutor(MAX_BATCH_THREADS);
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "hybris-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
 
@@ -221,15 +311,8 @@ public class Hybris {
             ts.inc( this.clientId );
         }
 
-        byte[] cryptoKey = null;
-        if (this.cryptoEnabled) {
-            if (md == null || md.getCryptoKey() == null) {
-                logger.debug("Generating new encryption key for key {}", key);
-                cryptoKey = new byte[Utils.CRYPTO_KEY_LENGTH];
-                cryptoKey = Utils.generateRandomBytes(cryptoKey);
-            } else
-                cryptoKey = md.getCryptoKey();
-
+        byte[] cryptoKey = this.getCryptoKey(key, md);
+        if (cryptoKey != null)
             try {
                 logger.debug("Encrypting data for key {}", key);
                 value = Utils.encrypt(value, cryptoKey, this.IV);
@@ -237,51 +320,104 @@ public class Hybris {
                 logger.error("Could not encrypt data", e);
                 cryptoKey = null;
             }
-        }
 
         List<Kvs> savedChunksLst = new ArrayList<Kvs>();
-        
+        List<PackRef> packRefs = null;
+        Map<Integer, ChunkRequest> backgroundReqs = new HashMap<Integer, ChunkRequest>();
+        List<ChunkRequest> attempted = new ArrayList<ChunkRequest>();   // all the chunk uploads started
+        List<ChunkRequest> kept = new ArrayList<ChunkRequest>();        // those referenced by metadata
+    
         String kvsKey = Utils.getKvsKey(key, ts);
     	ArrayList<String> keylist = Utils.ercode(value, key);
-        ExecutorService executor = Executors.newFixedThreadPool(this.quorum);
-        CompletionService<Kvs> compServ = new ExecutorCompletionService<Kvs>(executor);
-        int idxFrom = 0; int idxTo = this.quorum; long start; Future<Kvs> future;
-        do {
-            List<Kvs> kvsSublst = this.kvs.getKvsSortedByWriteLatency().subList(idxFrom, idxTo);
-            start = System.currentTimeMillis();
-            for (Kvs kvStore : kvsSublst)            
-						try {
-							compServ.submit(this.kvs.new KvsPutWorker(kvStore, keylist.get(kvsSublst.indexOf(kvStore)), Utils.keytovalue(keylist.get(kvsSublst.indexOf(kvStore)))));
-						} catch (IOException e1) {
-							// TODO Auto-generated catch block
-							e1.printStackTrace();
-						}
-						
-                
-            Kvs savedChunk = null;
+        if (this.packManager != null && value.length <= this.packThreshold) {
+            List<Kvs> kvsSublst = new ArrayList<Kvs>(this.kvs.getKvsForWrites(key,
+                    this.chunkSize(value.length)).subList(0, this.quorum));
+            List<byte[]> chunks = new ArrayList<byte[]>(kvsSublst.size());
             for (int i=0; i<kvsSublst.size(); i++)
-                try {
-                    future =  compServ.poll(this.TIMEOUT_WRITE, TimeUnit.SECONDS);
-                    if (future != null && (savedChunk = future.get()) != null) {
-                        logger.debug("Data stored on {}, {} ms", savedChunk,
-                                System.currentTimeMillis() - start);
-                        savedChunksLst.add(savedChunk);
-                        if (savedChunksLst.size() >= this.quorum)
-                            break;
-                    }
-                } catch (InterruptedException | ExecutionException e) {
-                    logger.warn("Exception on write task execution", e);
+                chunks.add(Utils.keytovalue(keylist.get(i)));
+            try {
+                packRefs = this.packManager.add(kvsSublst, chunks).get(this.TIMEOUT_WRITE, TimeUnit.SECONDS);
+                savedChunksLst.addAll(kvsSublst);
+                logger.debug("Data packed in {}", packRefs);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                logger.warn("Could not store packed data for key {}", key, e);
+                throw new HybrisException("Could not store data in cloud stores", e);
+            }
+        } else {
+            long chunkSize = this.chunkSize(value.length);
+            List<Kvs> candidates = this.kvs.getKvsForWrites(key, chunkSize);
+            long opDeadline = System.currentTimeMillis() + this.TIMEOUT_WRITE * 1000L;
+            Kvs[] placed = new Kvs[this.quorum];
+            int next = 0;
+
+            ExecutorService executor = this.kvs.newExecutor(this.quorum);
+            CompletionService<Kvs> compServ = new ExecutorCompletionService<Kvs>(executor);
+            Map<Future<Kvs>, ChunkRequest> pending = new HashMap<Future<Kvs>, ChunkRequest>();
+            for (int i=0; i<this.quorum && next<candidates.size(); i++)
+                this.submitChunkPut(compServ, pending, attempted, key, ts, candidates.get(next++), i, keylist.get(i), chunkSize, opDeadline);
+
+            while (!this.isDurableEnough(placed) && !pending.isEmpty()) {
+                long now = System.currentTimeMillis();
+                if (now >= opDeadline) {
+                    this.recordTimeouts(pending);
+                    break;
                 }
+                long wait = opDeadline - now;
+                for (ChunkRequest req : pending.values())
+                    if (!req.straggler)
+                        wait = Math.min(wait, req.deadline - now);
 
-            idxFrom = idxTo;
-            idxTo = this.kvs.getKvsList().size() > idxTo + this.quorum ?
-                    idxTo + this.quorum : this.kvs.getKvsList().size();
+                Future<Kvs> future = null;
+                try {
+                    future = compServ.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted while storing data for key {}", key, e);
+                    break;
+                }
 
-        } while (savedChunksLst.size() < this.quorum && idxFrom < idxTo);
-        executor.shutdown();
+                if (future != null) {
+                    ChunkRequest req = pending.remove(future);
+                    Kvs savedChunk = null;
+                    try {
+                        savedChunk = future.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        logger.warn("Exception on write task execution", e);
+                    }
+                    if (placed[req.idx] != null)
+                        continue;
+                    if (savedChunk != null) {
+                        logger.debug("Chunk {} stored on {}, {} ms", req.idx, savedChunk,
+                                System.currentTimeMillis() - req.start);
+                        placed[req.idx] = savedChunk;
+                        kept.add(req);
+                    } else if (next < candidates.size())
+                        this.submitChunkPut(compServ, pending, attempted, key, ts, candidates.get(next++), req.idx,
+                                keylist.get(req.idx), chunkSize, opDeadline);
+                } else
+                    // stragglers keep running, but their chunks get written on the next candidates too
+                    for (ChunkRequest req : this.markStragglers(pending))
+                        if (placed[req.idx] == null && next < candidates.size())
+                            this.submitChunkPut(compServ, pending, attempted, key, ts, candidates.get(next++), req.idx,
+                                    keylist.get(req.idx), chunkSize, opDeadline);
+            }
+            executor.shutdown();
+
+            // the parity chunks still being uploaded complete in background, on the Kvs already chosen
+            if (this.isDurableEnough(placed))
+                for (ChunkRequest req : pending.values())
+                    if (placed[req.idx] == null && (!backgroundReqs.containsKey(req.idx) ||
+                            backgroundReqs.get(req.idx).straggler))
+                        backgroundReqs.put(req.idx, req);
+            kept.addAll(backgroundReqs.values());
+            for (int i=0; i<placed.length; i++)
+                if (placed[i] != null)
+                    savedChunksLst.add(placed[i]);
+                else if (backgroundReqs.containsKey(i))
+                    savedChunksLst.add(backgroundReqs.get(i).kvStore);
+        }
 
         if (savedChunksLst.size() < this.quorum) {
-            if (this.gcEnabled) this.mds.new GcMarker(key, ts, keylist, savedChunksLst).start();
+            this.abandonChunks(key, ts, attempted);
             logger.warn("Could not store data in cloud stores for key {}.", key);
             throw new HybrisException("Could not store data in cloud stores");
         }
@@ -291,28 +427,175 @@ public class Hybris {
 
         boolean overwritten = false;
         try {
-        	ArrayList<byte[]> chunkhashed = new ArrayList<byte []> ();
-        	byte[] valhashed = new byte[20];
-        	valhashed = Utils.getHash(value);
-        	for (String Sigma : Utils.ercode(value, key)) 
-        		chunkhashed.add(Utils.getHash(Utils.keytovalue(Sigma)));        	;
-            Metadata newMd = new Metadata(ts, valhashed, chunkhashed, value.length, Utils.ercode(value, key), savedChunksLst, cryptoKey);
-            System.out.println("just created Metadata"+ newMd);
-           // System.out.println("keylist is " +Utils.ercode(value, key));
+            ArrayList<byte[]> chunkhashed = new ArrayList<byte[]>(keylist.size());
+            for (String chunkKey : keylist)
+                chunkhashed.add(Utils.getHash(Utils.keytovalue(chunkKey)));
+            Metadata newMd = new Metadata(ts, Utils.getHash(value), chunkhashed, value.length, keylist, savedChunksLst, cryptoKey);
+            newMd.setPackRefs(packRefs);
+            if (!backgroundReqs.isEmpty())
+                this.mds.markPendingChunks(key, ts, new ArrayList<Integer>(backgroundReqs.keySet()));
             overwritten = this.mds.tsWrite(key, newMd, stat.getVersion());
         } catch (HybrisException e) {
-            if (this.gcEnabled) this.mds.new GcMarker(key, ts, keylist, savedChunksLst).start();
+            // none of the chunks, including those still being uploaded, is referenced by metadata
+            if (!backgroundReqs.isEmpty())
+                this.mds.removePendingChunks(key, ts);
+            this.abandonChunks(key, ts, attempted);
             logger.warn("Could not store metadata on Zookeeper for key {}.", key);
             throw new HybrisException("Could not store the metadata on Zookeeper");
         }
 
         if (this.gcEnabled && overwritten) this.mds.new GcMarker(key).start();
+        if (!backgroundReqs.isEmpty())
+            this.completeInBackground(key, ts, backgroundReqs.values());
+        // e.g. stragglers whose chunks have been written on other Kvs
+        List<ChunkRequest> unused = new ArrayList<ChunkRequest>(attempted);
+        unused.removeAll(kept);
+        this.abandonChunks(key, ts, unused);
 
         logger.info("Data stored on: {}", savedChunksLst);
         return savedChunksLst;
     }
 
 
+    /**
+     * Writes several key/value pairs at once.
+     * The chunks of all the values are uploaded concurrently,
+     * then the metadata are committed by as few ZooKeeper transactions as possible,
+     * each znode write being checked against the version read beforehand.
+     * @param values - the values to be written, by key
+     * @return the outcome of the write of each key: STORED,
+     *          CONFLICT if a greater version has been written concurrently,
+     *          or FAILED if the data could not be stored on cloud stores
+     * @throws HybrisException
+     */
+    public Map<String, PutResult> multiPut(Map<String, byte[]> values) throws HybrisException {
+
+        Map<String, PutResult> results = new HashMap<String, PutResult>();
+        Map<String, Stat> stats = new HashMap<String, Stat>();
+        Map<String, Metadata> oldMds = this.mds.tsMultiRead(values.keySet(), stats);
+
+        Map<String, Metadata> newMds = new HashMap<String, Metadata>();
+        Map<String, Integer> zkVersions = new HashMap<String, Integer>();
+        Map<String, byte[]> storedValues = new HashMap<String, byte[]>();
+        Map<String, List<Future<Kvs>>> putFutures = new HashMap<String, List<Future<Kvs>>>();
+        Map<String, Future<List<PackRef>>> packFutures = new HashMap<String, Future<List<PackRef>>>();
+
+        ExecutorService executor = this.kvs.newExecutor(
+                Math.max(1, Math.min(values.size() * this.quorum, MAX_BATCH_THREADS)));
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+
+            String key = entry.getKey();
+            byte[] value = entry.getValue();
+            Metadata md = oldMds.get(key);
+            Timestamp ts;
+            if (md == null) {
+                ts = new Timestamp(0, this.clientId);
+                zkVersions.put(key, MdsManager.NONODE);
+            } else {
+                ts = md.getTs();
+                ts.inc( this.clientId );
+                zkVersions.put(key, stats.get(key).getVersion());
+            }
+
+            byte[] cryptoKey = this.getCryptoKey(key, md);
+            if (cryptoKey != null)
+                try {
+                    value = Utils.encrypt(value, cryptoKey, this.IV);
+                } catch(GeneralSecurityException e) {
+                    logger.error("Could not encrypt data", e);
+                    cryptoKey = null;
+                }
+
+            List<Kvs> kvsSublst = new ArrayList<Kvs>(this.kvs.getKvsForWrites(key,
+                    this.chunkSize(value.length)).subList(0, this.quorum));
+            try {
+                ArrayList<String> keylist = Utils.ercode(value, key);
+                ArrayList<byte[]> chunkhashed = new ArrayList<byte[]>(keylist.size());
+                List<byte[]> chunks = new ArrayList<byte[]>(kvsSublst.size());
+                for (int i=0; i<keylist.size(); i++) {
+                    byte[] chunk = Utils.keytovalue(keylist.get(i));
+                    chunkhashed.add(Utils.getHash(chunk));
+                    if (i < kvsSublst.size())
+                        chunks.add(chunk);
+                }
+                newMds.put(key, new Metadata(ts, Utils.getHash(value), chunkhashed, value.length,
+                        keylist, kvsSublst, cryptoKey));
+                storedValues.put(key, value);
+
+                if (this.packManager != null && value.length <= this.packThreshold)
+                    packFutures.put(key, this.packManager.add(kvsSublst, chunks));
+                else {
+                    List<Future<Kvs>> futures = new ArrayList<Future<Kvs>>(kvsSublst.size());
+                    for (int i=0; i<kvsSublst.size(); i++)
+                        futures.add(executor.submit(this.kvs.new KvsPutWorker(kvsSublst.get(i),
+                                keylist.get(i), chunks.get(i))));
+                    putFutures.put(key, futures);
+                }
+            } catch (IOException e) {
+                logger.warn("Could not encode data for key {}", key, e);
+                results.put(key, PutResult.FAILED);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + this.TIMEOUT_WRITE * 1000L;
+        for (Map.Entry<String, List<Future<Kvs>>> entry : putFutures.entrySet()) {
+            List<Kvs> savedChunksLst = new ArrayList<Kvs>();
+            for (Future<Kvs> future : entry.getValue())
+                try {
+                    Kvs savedChunk = future.get(Math.max(0, deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                    if (savedChunk != null)
+                        savedChunksLst.add(savedChunk);
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    logger.warn("Exception on write task execution", e);
+                }
+
+            if (savedChunksLst.size() < this.quorum) {
+                Metadata md = newMds.remove(entry.getKey());
+                if (this.gcEnabled) this.mds.new GcMarker(entry.getKey(), md.getTs(), md.getkeylist(), md.getChunksLst()).start();
+                logger.warn("Could not store data in cloud stores for key {}.", entry.getKey());
+                results.put(entry.getKey(), PutResult.FAILED);
+            }
+        }
+        for (Map.Entry<String, Future<List<PackRef>>> entry : packFutures.entrySet())
+            try {
+                newMds.get(entry.getKey()).setPackRefs(entry.getValue().get(
+                        Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                newMds.remove(entry.getKey());
+                logger.warn("Could not store packed data for key {}", entry.getKey(), e);
+                results.put(entry.getKey(), PutResult.FAILED);
+            }
+        executor.shutdown();
+
+        if (newMds.isEmpty())
+            return results;
+        Map<String, WriteOutcome> outcomes = this.mds.tsMultiWrite(newMds, zkVersions);
+        for (Map.Entry<String, WriteOutcome> entry : outcomes.entrySet()) {
+            String key = entry.getKey();
+            Metadata md = newMds.get(key);
+            switch (entry.getValue()) {
+                case CREATED:
+                case OVERWRITTEN:
+                    if (this.gcEnabled && WriteOutcome.OVERWRITTEN.equals(entry.getValue()))
+                        this.mds.new GcMarker(key).start();
+                    if (this.cacheEnabled && CachePolicy.ONWRITE.equals(this.cachePolicy))
+                        this.cache.set(Utils.getKvsKey(key, md.getTs()), this.cacheExp, storedValues.get(key));
+                    results.put(key, PutResult.STORED);
+                    break;
+                case CONFLICT:
+                    if (this.gcEnabled && !md.isPacked())
+                        this.mds.new GcMarker(key, md.getTs(), md.getkeylist(), md.getChunksLst()).start();
+                    results.put(key, PutResult.CONFLICT);
+                    break;
+            }
+        }
+
+        logger.info("Batch put of {} keys: {}", values.size(), results);
+        return results;
+    }
+
+
     /**
      * parallel GET function.
      * This function gets called to reach all the clouds and get a parallel values to decode.
@@ -332,61 +615,249 @@ public class Hybris {
         }
 
         String kvsKey = Utils.getKvsKey(key, md.getTs());
-        ExecutorService executor = Executors.newFixedThreadPool(this.quorum);
+        ArrayList<byte[]> chunks = this.readChunks(key, md, hwatcher);
+        if (chunks == null)         // the key has been overwritten meanwhile
+            return this.get(key);
+        return this.decodeValue(key, kvsKey, md, chunks);
+    }
+
+
+    /**
+     * Reads the chunks of a value, stored as objects or in packs, until DATACHUNKS are retrieved,
+     * each request having a deadline adapted to its Kvs and the operation failing after TIMEOUT_READ.
+     * @return the chunks, missing ones being null, or null if the key has been overwritten meanwhile
+     * @throws HybrisException if fewer than DATACHUNKS chunks could be retrieved
+     */
+    private ArrayList<byte[]> readChunks(String key, Metadata md, HybrisWatcher hwatcher) throws HybrisException {
+        long chunkSize = this.chunkSize(md.getSize());
+        long opDeadline = System.currentTimeMillis() + this.TIMEOUT_READ * 1000L;
+        List<Kvs> chunksLst = md.getChunksLst();
+        ArrayList<String> keylist = md.getkeylist();
+        byte[][] chunks = new byte[chunksLst.size()][];
+        int retrieved = 0, missing = 0;
+
+        ExecutorService executor = this.kvs.newExecutor(chunksLst.size());
         CompletionService<byte[]> compServ = new ExecutorCompletionService<byte[]>(executor);
-        Future<byte[]> futureResult;
-        byte[] value = null;
-        boolean keepRetrieving = true;
-        List<Kvs> kvsSublst = this.kvs.getKvsSortedByReadLatency();
-        kvsSublst.retainAll(md.getChunksLst());
-        Future<byte[]>[] futuresArray = new Future[kvsSublst.size()];
-        ArrayList<byte[]> values= new ArrayList<byte[]>();
-    	ArrayList<String> keylist=md.getkeylist();
-        do {
-        	for (Kvs kvStore : kvsSublst)
-                 			futuresArray[kvsSublst.indexOf(kvStore)] = compServ.submit(this.kvs.new KvsGetWorker(kvStore, keylist.get(kvsSublst.indexOf(kvStore))));
+        Map<Future<byte[]>, ChunkRequest> pending = new HashMap<Future<byte[]>, ChunkRequest>();
+        try {
+            for (int i=0; i<chunksLst.size(); i++) {
+                Kvs kvStore = this.kvs.getKvsById(chunksLst.get(i).getId());
+                if (kvStore == null) {
+                    logger.warn("Could not find Kvs {} storing chunk {} of key {}", chunksLst.get(i), i, key);
+                    if (chunksLst.size() - ++missing < Utils.DATACHUNKS)
+                        throw new HybrisException("Could not find Kvs " + chunksLst.get(i) + " storing key " + key);
+                    continue;
+                }
+                KvsManager.KvsGetWorker worker;
+                long size = chunkSize;
+                if (md.isPacked()) {
+                    PackRef ref = md.getPackRefs().get(i);
+                    size = ref.getLength();
+                    worker = this.kvs.new KvsGetWorker(kvStore, ref.getPackId(), ref.getOffset(), ref.getLength());
+                } else
+                    worker = this.kvs.new KvsGetWorker(kvStore, keylist.get(i), chunkSize);
+                long now = System.currentTimeMillis();
+                long deadline = now + this.kvs.getReadDeadline(kvStore, size, Math.max(0, opDeadline - now));
+                pending.put(compServ.submit(worker), new ChunkRequest(worker, kvStore, i, deadline));
+            }
 
-            for (int i=0; i<kvsSublst.size(); i++)
-                try {
-                    if (hwatcher.isChanged()) {
-                        for (Future<byte[]> future : futuresArray)
-                            future.cancel(true);
-                        return this.get(key);
+            while (!pending.isEmpty()) {
+                if (hwatcher.isChanged()) {
+                    this.cancelReads(pending);
+                    return null;
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= opDeadline) {
+                    this.recordTimeouts(pending);
+                    break;
+                }
+                long wait = opDeadline - now;
+                for (ChunkRequest req : pending.values())
+                    if (!req.straggler)
+                        wait = Math.min(wait, req.deadline - now);
+
+                Future<byte[]> future = compServ.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    this.markStragglers(pending);
+                    continue;
+                }
+
+                ChunkRequest req = pending.remove(future);
+                byte[] chunk = future.get();
+                if (!this.isValidChunk(md, req.idx, chunk)) {
+                    // e.g. a parity chunk still being uploaded: the value can be decoded without it
+                    logger.warn("Could not retrieve chunk {} of key {} from {}", req.idx, key, req.kvStore);
+                    if (chunksLst.size() - ++missing < Utils.DATACHUNKS)
+                        throw new HybrisException("Could not retrieve chunk " + req.idx + " of key " + key);
+                    continue;
+                }
+                logger.debug("Chunk {} retrieved from {}, {} ms", req.idx, req.kvStore,
+                        System.currentTimeMillis() - req.start);
+                chunks[req.idx] = chunk;
+                if (++retrieved >= Utils.DATACHUNKS) {
+                    this.cancelReads(pending);
+                    break;
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            logger.warn("Exception on read task execution", e);
+            throw new HybrisException("Could not retrieve data for key " + key, e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (retrieved < Utils.DATACHUNKS)
+            throw new HybrisException("Could not retrieve enough chunks of key " + key + ": "
+                    + retrieved + "/" + Utils.DATACHUNKS);
+        return new ArrayList<byte[]>(Arrays.asList(chunks));
+    }
+
+
+    /**
+     * Reads several keys at once.
+     * @param keys
+     * @return a map of the values associated with the existing keys
+     * @throws HybrisException if any key could not be read
+     */
+    public Map<String, byte[]> multiGet(Collection<String> keys) throws HybrisException {
+
+        final Map<String, byte[]> values = new ConcurrentHashMap<String, byte[]>();
+        final Map<String, HybrisException> errors = new ConcurrentHashMap<String, HybrisException>();
+        this.multiGet(keys, new GetListener() {
+            public void onValue(String key, byte[] value) {
+                if (value != null)
+                    values.put(key, value);
+            }
+            public void onError(String key, HybrisException e) {
+                errors.put(key, e);
+            }
+        });
+
+        if (!errors.isEmpty()) {
+            logger.warn("Could not read keys {}", errors.keySet());
+            throw new HybrisException("Could not read " + errors.size() + " keys", errors.values().iterator().next());
+        }
+        return new HashMap<String, byte[]>(values);
+    }
+
+
+    /**
+     * Reads several keys at once, notifying the listener of each value as soon as it is available.
+     * The metadata of all keys are read through a single ZooKeeper pipeline;
+     * the chunks of each value are requested as soon as its metadata is available,
+     * at most MAX_BATCH_THREADS KVS requests being in flight at any time across concurrent calls,
+     * whatever the execution mode. The requests still pending are cancelled once a value is decoded,
+     * or when the call times out.
+     * Heads up: the listener is called concurrently, possibly from ZooKeeper event thread.
+     * @param keys
+     * @param listener
+     * @throws HybrisException
+     */
+    public void multiGet(Collection<String> keys, final GetListener listener) throws HybrisException {
+
+        final CountDownLatch done = new CountDownLatch(keys.size());
+        final List<ChunksReader> readers = new ArrayList<ChunksReader>();
+        boolean completed = false;
+        try {
+            this.mds.tsMultiRead(keys, new MdsManager.ReadCallback() {
+                public void onRead(String key, Metadata md, Stat stat) {
+                    if (md == null || md.isTombstone()) {
+                        listener.onValue(key, null);
+                        done.countDown();
+                        return;
+                    }
+                    ChunksReader reader = Hybris.this.new ChunksReader(key, md, listener, done, Hybris.this.batchLimiter);
+                    synchronized (readers) {
+                        readers.add(reader);
                     }
+                    reader.start(Hybris.this.batchExecutor);
+                }
+                public void onError(String key, HybrisException e) {
+                    listener.onError(key, e);
+                    done.countDown();
+                }
+            });
+            completed = done.await(this.TIMEOUT_READ, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new HybrisException(e);
+        } finally {
+            if (!completed)
+                synchronized (readers) {
+                    for (ChunksReader reader : readers)
+                        reader.cancel(-1, true);
+                }
+        }
+        if (!completed)
+            throw new HybrisException("Timeout while reading " + keys.size() + " keys");
+    }
 
-                    futureResult =  compServ.poll(this.TIMEOUT_READ, TimeUnit.SECONDS);
-                    if (futureResult != null && (value = futureResult.get()) != null)
-
-                            if (this.cacheEnabled && CachePolicy.ONREAD.equals(this.cachePolicy))
-                                this.cache.set(kvsKey, this.cacheExp, value);
-
-                            if (md.getCryptoKey() != null)
-                                try {
-                                    logger.debug("Decrypting data for key {}", key);
-                                    value = Utils.decrypt(value, md.getCryptoKey(), this.IV);
-                                } catch (GeneralSecurityException | UnsupportedEncodingException e) {
-                                    logger.error("Could not decrypt data", e);
-                                    throw new HybrisException("Could not decrypt data", e);
-                                } 
-                            if (Arrays.equals(md.getHashlist().get(i),Utils.getHash(value)))
-                            	values.add(i,value);
-                            if (i==this.quorum)
-                            		keepRetrieving = false;
-      //                      for (Future<byte[]> future : futuresArray)
-        //                        future.cancel(true);
-          //                  break;
-                        
-
-                } catch (InterruptedException | ExecutionException e) {
-                    logger.warn("Exception on write task execution", e);
+
+    /**
+     * Asynchronous version of put: metadata are read and written in background
+     * and chunks are uploaded by a shared executor, so that no thread waits
+     * for the completion of the operation. As in put, chunks are re-placed on the next
+     * candidate Kvs if their upload fails or straggles, and the operation fails after TIMEOUT_WRITE.
+     * Heads up: with platform threads (hybris.kvs.executor=platform), each chunk upload
+     * still holds a thread of the shared executor during its blocking KVS request.
+     * @param key
+     * @param value
+     * @return a future holding the list of Kvs in which Hybris stored the data
+     */
+    public ListenableFuture<List<Kvs>> putAsync(final String key, final byte[] value) {
+
+        final SettableFuture<List<Kvs>> result = SettableFuture.create();
+        this.mds.tsReadAsync(key, new MdsManager.ReadCallback() {
+            public void onRead(String key, Metadata md, Stat stat) {
+                try {
+                    Hybris.this.storeAsync(key, value, md, stat, result);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Could not store data for key {}", key, e);
+                    result.setException(new HybrisException("Could not store data for key " + key, e));
                 }
+            }
+            public void onError(String key, HybrisException e) {
+                result.setException(e);
+            }
+        }, this.asyncExecutor);
+        return result;
+    }
 
-        } while (keepRetrieving);
-        executor.shutdown();
-        
-        int Sizy = md.getSize();
-		value = Utils.dercode(values, keylist, kvsKey, Sizy );
-        return value;
+
+    /**
+     * Asynchronous version of get.
+     * @param key
+     * @return a future holding the value associated with <key>, or null if it does not exist
+     */
+    public ListenableFuture<byte[]> getAsync(String key) {
+
+        final SettableFuture<byte[]> result = SettableFuture.create();
+        this.mds.tsReadAsync(key, new MdsManager.ReadCallback() {
+            public void onRead(String key, Metadata md, Stat stat) {
+                if (md == null || md.isTombstone()) {
+                    logger.warn("Could not find metadata associated with key {}.", key);
+                    result.set(null);
+                    return;
+                }
+                try {
+                    Hybris.this.new ChunksReader(key, md, new GetListener() {
+                        public void onValue(String key, byte[] value) {
+                            result.set(value);
+                        }
+                        public void onError(String key, HybrisException e) {
+                            result.setException(e);
+                        }
+                    }, null, null).start(Hybris.this.asyncExecutor);
+                } catch (RuntimeException e) {
+                    logger.warn("Could not read data for key {}", key, e);
+                    result.setException(new HybrisException("Could not read data for key " + key, e));
+                }
+            }
+            public void onError(String key, HybrisException e) {
+                result.setException(e);
+            }
+        }, this.asyncExecutor);
+        return result;
     }
 
 
@@ -398,32 +869,85 @@ public class Hybris {
     public void delete(String key) throws HybrisException {
 
         Stat stat = new Stat();
-        ArrayList<String> keylist = new ArrayList<String>();
         Metadata md = this.mds.tsRead(key, stat);
         if (md == null) {
             logger.debug("Could not find the metadata associated with key {}.", key);
             return;
         }
         Timestamp ts = md.getTs();
-        keylist= md.getkeylist();
         ts.inc( this.clientId );
         Metadata tombstone = Metadata.getTombstone(ts);
 
-        if (!this.gcEnabled) {
-            for (Kvs kvStore : this.kvs.getKvsList()) {
-                String kvsKey = Utils.getKvsKey(keylist.get(this.kvs.getKvsList().indexOf(kvStore)), md.getTs());
-                if (!md.getChunksLst().contains(kvStore))
-                    continue;
+        if (!this.gcEnabled && !md.isTombstone() && !md.isPacked())      // packed chunks are reclaimed by pack compaction
+            this.deleteChunks(md);
 
-                try {
-                    this.kvs.delete(kvStore, kvsKey);
-                } catch (IOException e) {
-                    logger.warn("Could not delete {} from {}", kvsKey, kvStore);
-                }
-            }
+        this.mds.delete(key, tombstone, stat.getVersion());
+    }
+
+
+    /**
+     * Deletes the chunks referenced by <md>, each chunk key from the Kvs storing it.
+     * @param md
+     */
+    private void deleteChunks(Metadata md) {
+        Map<Kvs, List<String>> kvsKeys = new HashMap<Kvs, List<String>>();
+        for (int i=0; i<md.getChunksLst().size(); i++) {
+            Kvs kvStore = this.kvs.getKvsById(md.getChunksLst().get(i).getId());
+            if (kvStore == null)
+                continue;
+            if (!kvsKeys.containsKey(kvStore))
+                kvsKeys.put(kvStore, new ArrayList<String>());
+            kvsKeys.get(kvStore).add(md.getkeylist().get(i));
         }
+        for (Map.Entry<Kvs, List<String>> failed : this.kvs.deleteAll(kvsKeys).entrySet())
+            logger.warn("Could not delete {} from {}", failed.getValue(), failed.getKey());
+    }
 
-        this.mds.delete(key, tombstone, stat.getVersion());
+
+    /**
+     * Asynchronous version of delete.
+     * Chunks (if not left to the garbage collector) are deleted in background,
+     * and the future completes once the tombstone is written.
+     * @param key
+     * @return a future completed once the key is deleted
+     */
+    public ListenableFuture<Void> deleteAsync(String key) {
+
+        final SettableFuture<Void> result = SettableFuture.create();
+        this.mds.tsReadAsync(key, new MdsManager.ReadCallback() {
+            public void onRead(String key, Metadata md, Stat stat) {
+                if (md == null) {
+                    logger.debug("Could not find the metadata associated with key {}.", key);
+                    result.set(null);
+                    return;
+                }
+
+                if (!Hybris.this.gcEnabled && !md.isTombstone() && !md.isPacked()) {
+                    final Metadata chunksMd = md;
+                    Hybris.this.asyncExecutor.execute(new Runnable() {
+                        public void run() {
+                            Hybris.this.deleteChunks(chunksMd);
+                        }
+                    });
+                }
+
+                Timestamp ts = md.getTs();
+                ts.inc( Hybris.this.clientId );
+                Hybris.this.mds.tsWriteAsync(key, Metadata.getTombstone(ts), stat.getVersion(),
+                        new MdsManager.WriteCallback() {
+                    public void onWrite(String key, WriteOutcome outcome) {
+                        result.set(null);
+                    }
+                    public void onError(String key, HybrisException e) {
+                        result.setException(e);
+                    }
+                }, Hybris.this.asyncExecutor);
+            }
+            public void onError(String key, HybrisException e) {
+                result.setException(e);
+            }
+        }, this.asyncExecutor);
+        return result;
     }
 
 
@@ -448,6 +972,14 @@ public class Hybris {
     }
 
 
+    /**
+     * @return the manager of the KVSs, e.g. to inspect their latency statistics and circuit breakers
+     */
+    public KvsManager getKvsManager() {
+        return this.kvs;
+    }
+
+
     /**
      * Tests KVSs latencies and sort them accordingly.
      * @param testDataSize [kB]
@@ -457,19 +989,765 @@ public class Hybris {
     }
 
 
+    /**
+     * Estimates the monthly storage cost of a value according to the current placement policy.
+     * @param size - size of the value [B]
+     * @return the cost [cents]
+     */
+    public double estimatePutCost(int size) {
+        return this.kvs.estimateWriteCost(this.chunkSize(size), this.quorum);
+    }
+
+
+    /**
+     * Estimates the egress cost of reading a value according to the current placement policy.
+     * @param size - size of the value [B]
+     * @return the cost [cents]
+     */
+    public double estimateGetCost(int size) {
+        return this.kvs.estimateReadCost(this.chunkSize(size), Utils.DATACHUNKS);
+    }
+
+
     /**
      * Stops Hybris client.
      * Closes connections and shuts off thread pools.
      */
     public void shutdown() {
+        if (this.packManager != null)
+            this.packManager.shutdown();
+        if (this.latencySharing != null)
+            this.latencySharing.shutdown();
+        this.asyncExecutor.shutdown();
+        this.batchExecutor.shutdown();
+        this.timer.shutdownNow();
         for (Kvs kvStore : this.kvs.getKvsList())
             this.kvs.shutdown(kvStore);
+        this.kvs.shutdown();
         this.mds.shutdown();
         if (this.cacheEnabled)
             this.cache.shutdown();
     }
 
 
+    /* ---------------------------------------------------------------------------------------
+                                        Private methods
+       --------------------------------------------------------------------------------------- */
+
+    /**
+     * Gets from MDS the numeric ids of the configured Kvs instances (registering the new ones),
+     * so that their chunks can be referenced in metadata.
+     * @throws HybrisException
+     */
+    private void registerKvs() throws HybrisException {
+        List<String> names = new ArrayList<String>();
+        for (Kvs kvStore : this.kvs.getKvsList())
+            names.add(kvStore.getId());
+        KvsRegistry.getInstance().load(this.mds.registerKvs(names, KvsRegistry.getReserved()));
+    }
+
+    /**
+     * Returns the encryption key to be used for writing <key>:
+     * the existing one, if any, or a newly generated one.
+     * @param key
+     * @param md - the current metadata of key (can be null)
+     * @return the encryption key or null if confidentiality is disabled
+     */
+    private byte[] getCryptoKey(String key, Metadata md) {
+        if (!this.cryptoEnabled)
+            return null;
+        if (md == null || md.getCryptoKey() == null) {
+            logger.debug("Generating new encryption key for key {}", key);
+            byte[] cryptoKey = new byte[Utils.CRYPTO_KEY_LENGTH];
+            return Utils.generateRandomBytes(cryptoKey);
+        } else
+            return md.getCryptoKey();
+    }
+
+
+    /**
+     * A chunk request sent to a Kvs, with the time after which it is considered straggling.
+     */
+    private static class ChunkRequest {
+
+        private final Kvs kvStore;
+        private final KvsManager.KvsWorker<?> worker;
+        private final int idx;          // index of the chunk
+        private final long start;
+        private final long deadline;
+        private boolean straggler;
+        private String chunkKey;        // put requests only
+        private byte[] data;
+        private Future<Kvs> future;
+        private final SettableFuture<Kvs> done = SettableFuture.create();   // put requests only
+        private boolean stored;         // guarded by this
+        private boolean abandoned;      // guarded by this
+
+        private ChunkRequest(KvsManager.KvsWorker<?> worker, Kvs kvStore, int idx, long deadline) {
+            this.worker = worker;
+            this.kvStore = kvStore;
+            this.idx = idx;
+            this.start = System.currentTimeMillis();
+            this.deadline = deadline;
+        }
+    }
+
+
+    /**
+     * Sends a chunk to a Kvs, with a deadline adapted to the Kvs latency and the chunk size.
+     */
+    private void submitChunkPut(CompletionService<Kvs> compServ, Map<Future<Kvs>, ChunkRequest> pending,
+            List<ChunkRequest> attempted, final String key, final Timestamp ts,
+            Kvs kvStore, int idx, String chunkKey, long chunkSize, long opDeadline) throws IOException {
+        long now = System.currentTimeMillis();
+        long deadline = now + this.kvs.getWriteDeadline(kvStore, chunkSize, Math.max(0, opDeadline - now));
+        byte[] data = Utils.keytovalue(chunkKey);
+        final KvsManager.KvsPutWorker worker = this.kvs.new KvsPutWorker(kvStore, chunkKey, data);
+        final ChunkRequest req = new ChunkRequest(worker, kvStore, idx, deadline);
+        req.chunkKey = chunkKey;
+        req.data = data;
+        req.future = compServ.submit(new Callable<Kvs>() {
+            public Kvs call() {
+                Kvs savedChunk = worker.call();
+                boolean late;
+                synchronized (req) {
+                    req.stored = savedChunk != null;
+                    late = req.stored && req.abandoned;
+                }
+                if (late)
+                    Hybris.this.markOrphans(key, ts, Collections.singletonList(req));
+                req.done.set(savedChunk);
+                return savedChunk;
+            }
+        });
+        pending.put(req.future, req);
+        attempted.add(req);
+    }
+
+
+    /**
+     * Abandons chunk uploads whose chunks are not referenced by metadata:
+     * cancels those still running, and marks for garbage collection the chunks stored,
+     * either now or once their upload completes.
+     * @param key
+     * @param ts - the timestamp of the value version
+     * @param requests - the chunk uploads to abandon
+     */
+    private void abandonChunks(String key, Timestamp ts, List<ChunkRequest> requests) {
+        List<ChunkRequest> stored = new ArrayList<ChunkRequest>();
+        for (ChunkRequest req : requests) {
+            synchronized (req) {
+                req.abandoned = true;
+                if (req.stored)
+                    stored.add(req);
+            }
+            req.future.cancel(true);
+        }
+        this.markOrphans(key, ts, stored);
+    }
+
+
+    /**
+     * Marks for garbage collection the chunks of a value version which may have been
+     * stored on KVSs (including uploads abandoned or still in flight) but are not referenced by metadata.
+     * @param key
+     * @param ts - the timestamp of the value version
+     * @param requests - the chunk uploads
+     */
+    private void markOrphans(String key, Timestamp ts, List<ChunkRequest> requests) {
+        if (!this.gcEnabled || requests.isEmpty())
+            return;
+        ArrayList<String> chunkKeys = new ArrayList<String>(requests.size());
+        List<Kvs> kvStores = new ArrayList<Kvs>(requests.size());
+        for (ChunkRequest req : requests) {
+            chunkKeys.add(req.chunkKey);
+            kvStores.add(req.kvStore);
+        }
+        this.mds.new GcMarker(key, ts, chunkKeys, kvStores).start();
+    }
+
+
+    /**
+     * @param placed - the Kvs storing each chunk (null if not stored yet)
+     * @return true if all the data chunks and at least syncParity parity chunks are stored
+     */
+    private boolean isDurableEnough(Kvs[] placed) {
+        int parity = 0;
+        for (int i=0; i<placed.length; i++)
+            if (placed[i] == null && i < Utils.DATACHUNKS)
+                return false;
+            else if (placed[i] != null && i >= Utils.DATACHUNKS)
+                parity++;
+        return parity >= Math.min(this.syncParity, placed.length - Utils.DATACHUNKS);
+    }
+
+
+    /**
+     * Waits in background, without holding any thread, for the parity chunks still being uploaded
+     * once a put has returned, then clears the pending record of the value version.
+     * Uploads not completed within TIMEOUT_WRITE are cancelled: their pending record is left
+     * for the garbage collector to repair the chunks.
+     * @param key
+     * @param ts - the timestamp of the value version
+     * @param requests - the pending uploads
+     */
+    private void completeInBackground(final String key, final Timestamp ts, Collection<ChunkRequest> requests) {
+        final AtomicInteger remaining = new AtomicInteger(requests.size());
+        final AtomicInteger failed = new AtomicInteger(0);
+        for (final ChunkRequest req : requests) {
+            final ScheduledFuture<?> timeout = this.timer.schedule(new Runnable() {
+                public void run() {
+                    req.future.cancel(true);
+                    req.done.set(null);     // if cancelled before running
+                }
+            }, this.TIMEOUT_WRITE, TimeUnit.SECONDS);
+            Futures.addCallback(req.done, new FutureCallback<Kvs>() {
+                public void onSuccess(Kvs savedChunk) {
+                    timeout.cancel(false);
+                    if (savedChunk == null) {
+                        logger.warn("Could not store chunk {} of key {} on {}, leaving it to repair", req.idx, key, req.kvStore);
+                        failed.incrementAndGet();
+                    }
+                    if (remaining.decrementAndGet() == 0 && failed.get() == 0) {
+                        Hybris.this.mds.removePendingChunks(key, ts);
+                        logger.debug("Background upload of the chunks of key {} completed", key);
+                    }
+                }
+                public void onFailure(Throwable t) {
+                    this.onSuccess(null);
+                }
+            }, this.asyncExecutor);
+        }
+    }
+
+
+    /**
+     * Cancels the reads not needed anymore, once enough chunks have been retrieved:
+     * those past their deadline are reported as timeouts, the others are just abandoned.
+     * @param pending - the requests futures, with the requests details
+     */
+    private void cancelReads(Map<? extends Future<?>, ChunkRequest> pending) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<? extends Future<?>, ChunkRequest> entry : pending.entrySet()) {
+            ChunkRequest req = entry.getValue();
+            if (req.deadline <= now) {
+                logger.warn("Request timed out on {}", req.kvStore);
+                req.worker.recordFailure();
+            } else
+                req.worker.abandon();
+            entry.getKey().cancel(true);
+        }
+    }
+
+
+    /**
+     * Reports the Kvs whose requests are still pending after a timeout to their circuit breakers.
+     * @param pending - the requests futures, with the requests details
+     */
+    private void recordTimeouts(Map<? extends Future<?>, ChunkRequest> pending) {
+        for (Map.Entry<? extends Future<?>, ChunkRequest> entry : pending.entrySet())
+            if (!entry.getKey().isDone()) {
+                logger.warn("Request timed out on {}", entry.getValue().kvStore);
+                entry.getValue().worker.recordFailure();
+            }
+    }
+
+
+    /**
+     * Marks as stragglers the pending requests whose deadline has passed,
+     * reporting their Kvs to the circuit breakers.
+     * @param pending - the requests futures, with the requests details
+     * @return the requests newly marked as stragglers
+     */
+    private List<ChunkRequest> markStragglers(Map<? extends Future<?>, ChunkRequest> pending) {
+        List<ChunkRequest> stragglers = new ArrayList<ChunkRequest>();
+        long now = System.currentTimeMillis();
+        for (ChunkRequest req : pending.values())
+            if (!req.straggler && req.deadline <= now) {
+                req.straggler = true;
+                logger.warn("Chunk {} is straggling on {}", req.idx, req.kvStore);
+                req.worker.recordFailure();
+                stragglers.add(req);
+            }
+        return stragglers;
+    }
+
+
+    /**
+     * @param size - size of a value [B]
+     * @return the (approximate) size of each of its chunks [B]
+     */
+    private long chunkSize(long size) {
+        return (size + Utils.DATACHUNKS - 1) / Utils.DATACHUNKS;
+    }
+
+
+    /**
+     * Stores the chunks of a value given its current metadata,
+     * then writes the new metadata, completing <result> accordingly.
+     * Used by putAsync: the calling thread does not wait for KVS or MDS,
+     * though chunk uploads block the executor threads running them.
+     * @param key
+     * @param value
+     * @param md - the current metadata of key (can be null)
+     * @param stat - the znode stat read along md
+     * @param result - the future to be completed
+     * @throws IOException
+     */
+    private void storeAsync(final String key, byte[] value, Metadata md, Stat stat,
+            final SettableFuture<List<Kvs>> result) throws IOException {
+
+        final Timestamp ts;
+        final int zkVersion;
+        if (md == null) {
+            ts = new Timestamp(0, this.clientId);
+            zkVersion = MdsManager.NONODE;
+        } else {
+            ts = md.getTs();
+            ts.inc( this.clientId );
+            zkVersion = stat.getVersion();
+        }
+
+        byte[] cryptoKey = this.getCryptoKey(key, md);
+        if (cryptoKey != null)
+            try {
+                value = Utils.encrypt(value, cryptoKey, this.IV);
+            } catch(GeneralSecurityException e) {
+                logger.error("Could not encrypt data", e);
+                cryptoKey = null;
+            }
+        final byte[] storedValue = value;
+
+        final ArrayList<String> keylist = Utils.ercode(value, key);
+        List<Kvs> candidates = this.kvs.getKvsForWrites(key, this.chunkSize(value.length));
+        final List<Kvs> kvsSublst = new ArrayList<Kvs>(candidates.subList(0, Math.min(this.quorum, candidates.size())));
+        ArrayList<byte[]> chunkhashed = new ArrayList<byte[]>(keylist.size());
+        List<byte[]> chunks = new ArrayList<byte[]>(this.quorum);
+        for (int i=0; i<keylist.size(); i++) {
+            byte[] chunk = Utils.keytovalue(keylist.get(i));
+            chunkhashed.add(Utils.getHash(chunk));
+            if (i < this.quorum)
+                chunks.add(chunk);
+        }
+        final Metadata newMd = new Metadata(ts, Utils.getHash(value), chunkhashed, value.length,
+                keylist, kvsSublst, cryptoKey);
+
+        if (kvsSublst.size() < this.quorum)
+            result.setException(new HybrisException("Not enough Kvs available to store key " + key));
+        else if (this.packManager != null && value.length <= this.packThreshold)
+            Futures.addCallback(this.packManager.add(kvsSublst, chunks), new FutureCallback<List<PackRef>>() {
+                public void onSuccess(List<PackRef> packRefs) {
+                    newMd.setPackRefs(packRefs);
+                    Hybris.this.commitAsync(key, newMd, zkVersion, storedValue, result);
+                }
+                public void onFailure(Throwable t) {
+                    logger.warn("Could not store packed data for key {}", key, t);
+                    result.setException(new HybrisException("Could not store data in cloud stores", t));
+                }
+            }, this.asyncExecutor);
+        else
+            new ChunksWriter(key, ts, keylist, chunks, candidates, new FutureCallback<List<Kvs>>() {
+                public void onSuccess(List<Kvs> placed) {
+                    newMd.setChunksLst(placed);
+                    Hybris.this.commitAsync(key, newMd, zkVersion, storedValue, result);
+                }
+                public void onFailure(Throwable t) {
+                    logger.warn("Could not store data in cloud stores for key {}.", key, t);
+                    result.setException(new HybrisException("Could not store data in cloud stores", t));
+                }
+            }).start(this.chunkSize(value.length));
+    }
+
+
+    /* -------------------------------------- ChunksWriter -------------------------------------- */
+
+    /**
+     * Uploads the chunks of a value by means of the shared executor, driven by callbacks:
+     * as in put, a chunk whose upload fails or straggles is re-placed on the next candidate Kvs
+     * (stragglers keep running), and the upload fails if not all chunks are stored within TIMEOUT_WRITE.
+     * Chunks stored but not referenced by the outcome are marked for garbage collection.
+     */
+    private class ChunksWriter {
+
+        private final String key;
+        private final Timestamp ts;
+        private final ArrayList<String> keylist;
+        private final List<byte[]> chunks;
+        private final List<Kvs> candidates;
+        private final FutureCallback<List<Kvs>> callback;
+
+        private final ChunkRequest[] placed;        // guarded by this
+        private final List<ChunkRequest> attempted; // guarded by this
+        private int next;                           // next candidate, guarded by this
+        private int inFlight;                       // guarded by this
+        private boolean finished;                   // guarded by this
+        private long opDeadline;
+        private long chunkSize;
+
+        private ChunksWriter(String key, Timestamp ts, ArrayList<String> keylist, List<byte[]> chunks,
+                List<Kvs> candidates, FutureCallback<List<Kvs>> callback) {
+            this.key = key;
+            this.ts = ts;
+            this.keylist = keylist;
+            this.chunks = chunks;
+            this.candidates = candidates;
+            this.callback = callback;
+            this.placed = new ChunkRequest[chunks.size()];
+            this.attempted = new ArrayList<ChunkRequest>();
+        }
+
+        private void start(long chunkSize) {
+            this.chunkSize = chunkSize;
+            this.opDeadline = System.currentTimeMillis() + Hybris.this.TIMEOUT_WRITE * 1000L;
+            synchronized (this) {
+                for (int i=0; i<this.chunks.size() && this.next<this.candidates.size(); i++)
+                    this.submit(i, this.candidates.get(this.next++));
+            }
+            Hybris.this.timer.schedule(new Runnable() {
+                public void run() {
+                    ChunksWriter.this.onDeadline();
+                }
+            }, this.opDeadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Uploads chunk <idx> to <kvStore>. Caller must hold the lock.
+         */
+        private void submit(int idx, Kvs kvStore) {
+            long now = System.currentTimeMillis();
+            long deadline = now + Hybris.this.kvs.getWriteDeadline(kvStore, this.chunkSize, Math.max(0, this.opDeadline - now));
+            KvsManager.KvsPutWorker worker = Hybris.this.kvs.new KvsPutWorker(kvStore, this.keylist.get(idx), this.chunks.get(idx));
+            final ChunkRequest req = new ChunkRequest(worker, kvStore, idx, deadline);
+            req.chunkKey = this.keylist.get(idx);
+            this.attempted.add(req);
+            this.inFlight++;
+
+            final ListenableFuture<Kvs> future = Hybris.this.asyncExecutor.submit(worker);
+            req.future = future;
+            Hybris.this.timer.schedule(new Runnable() {
+                public void run() {
+                    if (!future.isDone())
+                        ChunksWriter.this.onStraggler(req);
+                }
+            }, deadline - now, TimeUnit.MILLISECONDS);
+            Futures.addCallback(future, new FutureCallback<Kvs>() {
+                public void onSuccess(Kvs savedChunk) {
+                    ChunksWriter.this.onChunk(req, savedChunk);
+                }
+                public void onFailure(Throwable t) {
+                    ChunksWriter.this.onChunk(req, null);
+                }
+            }, Hybris.this.asyncExecutor);
+        }
+
+        private void onChunk(ChunkRequest req, Kvs savedChunk) {
+            List<ChunkRequest> orphans = Collections.emptyList();
+            List<Kvs> stored = null;
+            boolean failed = false;
+            synchronized (this) {
+                this.inFlight--;
+                if (savedChunk != null && (this.finished || this.placed[req.idx] != null))
+                    orphans = Collections.singletonList(req);   // late, or duplicated by a straggler
+                else if (this.finished)
+                    return;
+                else if (savedChunk != null) {
+                    logger.debug("Chunk {} stored on {}, {} ms", req.idx, savedChunk, System.currentTimeMillis() - req.start);
+                    this.placed[req.idx] = req;
+                    if (this.isComplete()) {
+                        this.finished = true;
+                        stored = new ArrayList<Kvs>(this.placed.length);
+                        for (ChunkRequest placedReq : this.placed)
+                            stored.add(placedReq.kvStore);
+                    }
+                } else if (this.placed[req.idx] == null && this.next < this.candidates.size())
+                    this.submit(req.idx, this.candidates.get(this.next++));
+                if (!this.finished && this.inFlight == 0) {
+                    this.finished = true;
+                    failed = true;
+                    orphans = this.placedRequests();
+                }
+            }
+            Hybris.this.markOrphans(this.key, this.ts, orphans);
+            if (stored != null)
+                this.callback.onSuccess(stored);
+            else if (failed)
+                this.callback.onFailure(new IOException("Could not store all the chunks of key " + this.key));
+        }
+
+        private synchronized void onStraggler(ChunkRequest req) {
+            if (this.finished || this.placed[req.idx] != null || req.straggler)
+                return;
+            req.straggler = true;
+            logger.warn("Chunk {} is straggling on {}", req.idx, req.kvStore);
+            req.worker.recordFailure();
+            if (this.next < this.candidates.size())
+                this.submit(req.idx, this.candidates.get(this.next++));
+        }
+
+        private void onDeadline() {
+            List<ChunkRequest> orphans;
+            synchronized (this) {
+                if (this.finished)
+                    return;
+                this.finished = true;
+                for (ChunkRequest req : this.attempted)
+                    if (!req.future.isDone()) {
+                        logger.warn("Request timed out on {}", req.kvStore);
+                        req.worker.recordFailure();
+                    }
+                orphans = this.placedRequests();
+            }
+            Hybris.this.markOrphans(this.key, this.ts, orphans);
+            this.callback.onFailure(new TimeoutException("Timeout while storing key " + this.key));
+        }
+
+        private boolean isComplete() {
+            for (ChunkRequest req : this.placed)
+                if (req == null)
+                    return false;
+            return true;
+        }
+
+        private List<ChunkRequest> placedRequests() {
+            List<ChunkRequest> requests = new ArrayList<ChunkRequest>();
+            for (ChunkRequest req : this.placed)
+                if (req != null)
+                    requests.add(req);
+            return requests;
+        }
+    }
+
+
+    /**
+     * Writes the metadata of a value whose chunks have been stored, completing <result>.
+     */
+    private void commitAsync(String key, final Metadata md, int zkVersion, final byte[] value,
+            final SettableFuture<List<Kvs>> result) {
+
+        this.mds.tsWriteAsync(key, md, zkVersion, new MdsManager.WriteCallback() {
+            public void onWrite(String key, WriteOutcome outcome) {
+                if (Hybris.this.gcEnabled && WriteOutcome.OVERWRITTEN.equals(outcome))
+                    Hybris.this.mds.new GcMarker(key).start();
+                else if (Hybris.this.gcEnabled && WriteOutcome.CONFLICT.equals(outcome) && !md.isPacked())
+                    Hybris.this.mds.new GcMarker(key, md.getTs(), md.getkeylist(), md.getChunksLst()).start();
+                if (Hybris.this.cacheEnabled && CachePolicy.ONWRITE.equals(Hybris.this.cachePolicy))
+                    Hybris.this.cache.set(Utils.getKvsKey(key, md.getTs()), Hybris.this.cacheExp, value);
+                logger.info("Data stored on: {}", md.getChunksLst());
+                result.set(md.getChunksLst());
+            }
+            public void onError(String key, HybrisException e) {
+                if (Hybris.this.gcEnabled && !md.isPacked())
+                    Hybris.this.mds.new GcMarker(key, md.getTs(), md.getkeylist(), md.getChunksLst()).start();
+                logger.warn("Could not store metadata on Zookeeper for key {}.", key);
+                result.setException(new HybrisException("Could not store the metadata on Zookeeper", e));
+            }
+        }, this.asyncExecutor);
+    }
+
+
+    /**
+     * Checks a chunk retrieved from a KVS against the hash stored in metadata.
+     */
+    private boolean isValidChunk(Metadata md, int idx, byte[] chunk) {
+        return chunk != null && (md.getHashlist() == null || idx >= md.getHashlist().size() ||
+                Arrays.equals(md.getHashlist().get(idx), Utils.getHash(chunk)));
+    }
+
+
+    /**
+     * Decodes (and decrypts, if needed) a value from its chunks.
+     * @param key
+     * @param kvsKey
+     * @param md - the metadata of the value
+     * @param chunks - the chunks of the value, in the same order as in metadata
+     * @return the value associated with <key>
+     * @throws HybrisException
+     */
+    private byte[] decodeValue(String key, String kvsKey, Metadata md, ArrayList<byte[]> chunks) throws HybrisException {
+
+        byte[] value;
+        try {
+            value = Utils.dercode(chunks, md.getkeylist(), kvsKey, md.getSize());
+        } catch (IOException e) {
+            logger.error("Could not decode data for key {}", key, e);
+            throw new HybrisException("Could not decode data for key " + key, e);
+        }
+        if (this.cacheEnabled && CachePolicy.ONREAD.equals(this.cachePolicy))
+            this.cache.set(kvsKey, this.cacheExp, value);
+
+        if (md.getCryptoKey() != null)
+            try {
+                logger.debug("Decrypting data for key {}", key);
+                value = Utils.decrypt(value, md.getCryptoKey(), this.IV);
+            } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+                logger.error("Could not decrypt data", e);
+                throw new HybrisException("Could not decrypt data", e);
+            }
+        return value;
+    }
+
+
+    /* -------------------------------------- ChunksReader -------------------------------------- */
+
+    /**
+     * Retrieves the chunks of a value by means of a shared executor,
+     * without blocking any thread while waiting for them,
+     * and notifies the listener once the value is decoded or too many chunks could not be retrieved.
+     */
+    private class ChunksReader {
+
+        private final String key;
+        private final Metadata md;
+        private final GetListener listener;
+        private final CountDownLatch done;
+        private final Semaphore limiter;    // bounds the concurrent requests, null if unbounded
+
+        private final byte[][] chunks;      // guarded by this
+        private final Future<?>[] requests; // guarded by this
+        private final KvsManager.KvsGetWorker[] workers;    // guarded by this
+        private int retrieved;              // guarded by this
+        private int missing;                // guarded by this
+        private boolean finished;           // guarded by this
+
+        private ChunksReader(String key, Metadata md, GetListener listener, CountDownLatch done, Semaphore limiter) {
+            this.key = key;
+            this.md = md;
+            this.listener = listener;
+            this.done = done;
+            this.limiter = limiter;
+            int chunksNum = md.isPacked() ? md.getPackRefs().size() : md.getChunksLst().size();
+            this.chunks = new byte[chunksNum][];
+            this.requests = new Future<?>[chunksNum];
+            this.workers = new KvsManager.KvsGetWorker[chunksNum];
+        }
+
+        private void start(ExecutorService executor) {
+            if (this.chunks.length == 0) {
+                this.fail(new HybrisException("No chunks found in metadata of key " + this.key));
+                return;
+            }
+            for (int i=0; i<this.chunks.length; i++) {
+                final int idx = i;
+                final KvsManager.KvsGetWorker worker;
+                Kvs kvStore = Hybris.this.kvs.getKvsById(this.md.getChunksLst().get(i).getId());
+                if (kvStore == null) {
+                    logger.warn("Could not find Kvs {} storing chunk {} of key {}", this.md.getChunksLst().get(i), i, this.key);
+                    this.onChunk(idx, null);
+                    continue;
+                }
+                if (this.md.isPacked()) {
+                    PackRef ref = this.md.getPackRefs().get(i);
+                    worker = Hybris.this.kvs.new KvsGetWorker(kvStore, ref.getPackId(), ref.getOffset(), ref.getLength());
+                } else
+                    worker = Hybris.this.kvs.new KvsGetWorker(kvStore, this.md.getkeylist().get(i),
+                            Hybris.this.chunkSize(this.md.getSize()));
+
+                Future<?> request = executor.submit(new Runnable() {
+                    public void run() {
+                        ChunksReader.this.onChunk(idx, ChunksReader.this.read(worker));
+                    }
+                });
+                boolean finished;
+                synchronized (this) {
+                    finished = this.finished;
+                    this.requests[idx] = request;
+                    this.workers[idx] = worker;
+                }
+                if (finished)
+                    this.cancel(-1, false);
+            }
+        }
+
+        private byte[] read(KvsManager.KvsGetWorker worker) {
+            if (this.limiter == null)
+                return worker.call();
+            try {
+                this.limiter.acquire();
+            } catch (InterruptedException e) {
+                return null;        // cancelled while waiting
+            }
+            try {
+                return worker.call();
+            } finally {
+                this.limiter.release();
+            }
+        }
+
+        /**
+         * Stops reading: the requests still pending, except that of chunk <running>,
+         * are cancelled and reported as failures if <timedOut>, otherwise they are abandoned.
+         */
+        private void cancel(int running, boolean timedOut) {
+            List<Future<?>> pending = new ArrayList<Future<?>>();
+            synchronized (this) {
+                this.finished = true;
+                for (int i=0; i<this.requests.length; i++)
+                    if (i != running && this.requests[i] != null && !this.requests[i].isDone()) {
+                        if (timedOut)
+                            this.workers[i].recordFailure();
+                        else
+                            this.workers[i].abandon();
+                        pending.add(this.requests[i]);
+                    }
+            }
+            for (Future<?> request : pending)
+                request.cancel(true);
+        }
+
+        /**
+         * Collects a chunk, or its failure if null or corrupted: the value is decoded
+         * as soon as DATACHUNKS chunks are retrieved, and the read fails
+         * once more than REDCHUNKS chunks are missing. Later chunks are ignored.
+         */
+        private void onChunk(int idx, byte[] chunk) {
+            ArrayList<byte[]> decodable = null;
+            synchronized (this) {
+                if (this.finished)
+                    return;
+                if (Hybris.this.isValidChunk(this.md, idx, chunk)) {
+                    this.chunks[idx] = chunk;
+                    this.retrieved++;
+                } else {
+                    logger.warn("Could not retrieve chunk {} of key {}", idx, this.key);
+                    this.missing++;
+                }
+                if (this.retrieved >= Math.min(Utils.DATACHUNKS, this.chunks.length)) {
+                    this.finished = true;
+                    decodable = new ArrayList<byte[]>(Arrays.asList(this.chunks));
+                } else if (this.chunks.length - this.missing < Utils.DATACHUNKS) {
+                    this.finished = true;
+                } else
+                    return;
+            }
+
+            this.cancel(idx, false);
+            if (decodable == null) {
+                this.fail(new HybrisException("Could not retrieve enough chunks of key " + this.key));
+                return;
+            }
+            try {
+                byte[] value = Hybris.this.decodeValue(this.key, Utils.getKvsKey(this.key, this.md.getTs()),
+                        this.md, decodable);
+                this.listener.onValue(this.key, value);
+                if (this.done != null)
+                    this.done.countDown();
+            } catch (HybrisException | RuntimeException e) {
+                this.fail(e instanceof HybrisException ? (HybrisException) e : new HybrisException(e));
+            }
+        }
+
+        private void fail(HybrisException e) {
+            synchronized (this) {
+                this.finished = true;
+            }
+            logger.warn("Could not read key {}", this.key, e);
+            this.listener.onError(this.key, e);
+            if (this.done != null)
+                this.done.countDown();
+        }
+    }
+
+
     /* -------------------------------------- HybrisWatcher -------------------------------------- */
 
     /**
@@ -500,33 +1778,52 @@ public class Hybris {
     public class GcManager {
 
         /**
-         * Deletes from KVSs all orphan or stale keys which are indexed on MDS.
+         * Deletes from KVSs all orphan or stale keys which are indexed on MDS,
+         * after repairing the values whose chunks could not be uploaded.
          * @throws HybrisException
          */
         public void gc() throws HybrisException {
 
-            // Orphans
-            Map<String, Metadata> orphans = Hybris.this.mds.getOrphans();
-            Set<String> orphanKeys = orphans.keySet();
-            for (Iterator<String> it = orphanKeys.iterator(); it.hasNext();) {
-                String kvsKey = it.next();
-                Metadata md = orphans.get(kvsKey);
-                boolean error = false;
-
-                for (Kvs kvStore : Hybris.this.kvs.getKvsList()) {
+            this.repair();
 
-                    if (!md.getChunksLst().contains(kvStore))
+            // Orphans: objects stored under the version key, and chunks not referenced by the current metadata
+            Map<String, Metadata> orphans = Hybris.this.mds.getOrphans();
+            Set<String> orphanKeys = new HashSet<String>(orphans.keySet());
+            Map<Kvs, List<String>> kvsKeys = new HashMap<Kvs, List<String>>();
+            Map<String, String> markers = new HashMap<String, String>();    // orphan ZNodes, by Kvs id and chunk key
+            for (Kvs kvStore : Hybris.this.kvs.getKvsList())
+                kvsKeys.put(kvStore, new ArrayList<String>());
+            for (Map.Entry<String, Metadata> orphan : orphans.entrySet()) {
+                Metadata live;
+                try {
+                    live = Hybris.this.mds.tsRead(Utils.getKeyFromKvsKey(orphan.getKey()), null);
+                } catch (HybrisException e) {
+                    logger.warn("GC: could not read the metadata of orphan {}", orphan.getKey());
+                    orphanKeys.remove(orphan.getKey());
+                    continue;
+                }
+                List<Kvs> replicas = orphan.getValue().getChunksLst();
+                ArrayList<String> chunkKeys = orphan.getValue().getkeylist();
+                for (int i=0; i<replicas.size(); i++) {
+                    Kvs kvStore = Hybris.this.kvs.getKvsById(replicas.get(i).getId());
+                    if (kvStore == null)
                         continue;
-
-                    try {
-                        Hybris.this.kvs.delete(kvStore, kvsKey);
-                    } catch (IOException e) {
-                        error = true;
-                        logger.warn("GC: could not delete {} from {}", kvsKey, kvStore);
+                    List<String> keys = kvsKeys.get(kvStore);
+                    if (!keys.contains(orphan.getKey()))
+                        keys.add(orphan.getKey());
+                    if (chunkKeys != null && i < chunkKeys.size() && !keys.contains(chunkKeys.get(i))
+                            && !this.isReferenced(live, kvStore, chunkKeys.get(i))) {
+                        keys.add(chunkKeys.get(i));
+                        markers.put(kvStore.getId() + "/" + chunkKeys.get(i), orphan.getKey());
                     }
                 }
-
-                if (error) it.remove();
+            }
+            for (Map.Entry<Kvs, List<String>> failed : Hybris.this.kvs.deleteAll(kvsKeys).entrySet()) {
+                logger.warn("GC: could not delete {} keys from {}", failed.getValue().size(), failed.getKey());
+                for (String key : failed.getValue()) {
+                    orphanKeys.remove(key);
+                    orphanKeys.remove(markers.get(failed.getKey().getId() + "/" + key));
+                }
             }
             Hybris.this.mds.removeOrphanKeys(orphanKeys);
 
@@ -541,6 +1838,25 @@ public class Hybris {
         }
 
 
+        /**
+         * Rebuilds and uploads the chunks whose background upload failed,
+         * or was interrupted by a client crash, so that values get back to their configured redundancy.
+         * @throws HybrisException
+         */
+        public void repair() throws HybrisException {
+
+            // do not touch chunks which may still be uploaded in background
+            long olderThan = System.currentTimeMillis() - 2000L * Hybris.this.TIMEOUT_WRITE;
+            for (Map.Entry<String, List<Integer>> entry : Hybris.this.mds.getPendingChunks(olderThan).entrySet())
+                try {
+                    this.repair(Utils.getKeyFromKvsKey(entry.getKey()),
+                            Utils.getTimestampfromKvsKey(entry.getKey()));
+                } catch (HybrisException | IOException | RuntimeException e) {
+                    logger.warn("GC: could not repair chunks {} of {}", entry.getValue(), entry.getKey(), e);
+                }
+        }
+
+
         /**
          * Deletes from KVSs stale data associated with <key>.
          * @param key
@@ -554,38 +1870,34 @@ public class Hybris {
                 return;
             }
 
+            Map<Kvs, List<String>> staleKeys = new HashMap<Kvs, List<String>>();
             for (Kvs kvStore : Hybris.this.kvs.getKvsList()) {
 
-                List<String> kvsKeys;
+                List<String> stale = new ArrayList<String>();
                 try {
-                    kvsKeys = Hybris.this.kvs.list(kvStore);
-                } catch (IOException e) {
-                    logger.warn("GC: could not list {} container", kvStore);
-                    continue;
-                }
-
-                for (String kvsKey : kvsKeys) {
-                    String prefixKey = ""; Timestamp kvTs = null;
-                    boolean malformedKey = false;
-                    try {
-                        prefixKey = Utils.getKeyFromKvsKey(kvsKey);
-                        kvTs = Utils.getTimestampfromKvsKey(kvsKey);
-                    } catch(IndexOutOfBoundsException e) {
-                        malformedKey = true;
-                    }
+                    Iterator<String> kvsKeys = Hybris.this.kvs.list(kvStore, Utils.getKvsKeyPrefix(key));
+                    while (kvsKeys.hasNext()) {
+                        String kvsKey = kvsKeys.next();
 
-                    if ( malformedKey ||
-                            key.equals(prefixKey) && md.getTs().isGreater(kvTs) )  {
+                        String prefixKey = ""; Timestamp kvTs = null;
+                        boolean malformedKey = false;
                         try {
-                            Hybris.this.kvs.delete(kvStore, kvsKey);
-                        } catch (IOException e) {
-                            logger.warn("GC: could not delete {} from {}", kvsKey, kvStore);
-                            continue;
+                            prefixKey = Utils.getKeyFromKvsKey(kvsKey);
+                            kvTs = Utils.getTimestampfromKvsKey(kvsKey);
+                        } catch(IndexOutOfBoundsException e) {
+                            malformedKey = true;
                         }
-                        logger.debug("GC: deleted {} from {}", kvsKey, kvStore);
+
+                        if ( malformedKey ||
+                                key.equals(prefixKey) && md.getTs().isGreater(kvTs) )
+                            stale.add(kvsKey);
                     }
+                } catch (IOException | Kvs.ListingException e) {
+                    logger.warn("GC: could not list {} container", kvStore);
                 }
+                staleKeys.put(kvStore, stale);
             }
+            this.deleteAll(staleKeys);
 
             Hybris.this.mds.removeStaleKey(key);
         }
@@ -601,40 +1913,225 @@ public class Hybris {
 
             Map<String, Metadata> mdMap = Hybris.this.mds.getAll();     // !! heavy operation
 
+            Map<Kvs, List<String>> staleKeys = new HashMap<Kvs, List<String>>();
             for (Kvs kvStore : Hybris.this.kvs.getKvsList()) {
 
-                List<String> kvsKeys;
+                List<String> stale = new ArrayList<String>();
                 try {
-                    kvsKeys = Hybris.this.kvs.list(kvStore);
-                } catch (IOException e) {
+                    Iterator<String> kvsKeys = Hybris.this.kvs.list(kvStore, "");
+                    while (kvsKeys.hasNext()) {
+                        String kvsKey = kvsKeys.next();
+                        if (Utils.isPackKey(kvsKey))
+                            continue;       // packs are reclaimed by packGc
+
+                        String key = ""; Timestamp kvTs = null;
+                        boolean malformedKey = false;
+                        try {
+                            key = Utils.getKeyFromKvsKey(kvsKey);
+                            kvTs = Utils.getTimestampfromKvsKey(kvsKey);
+                        } catch(IndexOutOfBoundsException e) {
+                            malformedKey = true;
+                        }
+
+                        if ( malformedKey || !mdMap.keySet().contains(key) ||
+                                mdMap.get(key).getTs().isGreater(kvTs) )
+                            stale.add(kvsKey);
+                    }
+                } catch (IOException | Kvs.ListingException e) {
                     logger.warn("GC: could not list {} container", kvStore);
-                    continue;
                 }
+                staleKeys.put(kvStore, stale);
+            }
+            this.deleteAll(staleKeys);
+            //mds.emptyStaleAndOrphansContainers();
+        }
 
-                for (String kvsKey : kvsKeys) {
 
-                    String key = ""; Timestamp kvTs = null;
-                    boolean malformedKey = false;
-                    try {
-                        key = Utils.getKeyFromKvsKey(kvsKey);
-                        kvTs = Utils.getTimestampfromKvsKey(kvsKey);
-                    } catch(IndexOutOfBoundsException e) {
-                        malformedKey = true;
+        /**
+         * Compacts the packs whose ratio of live data falls below the configured threshold:
+         * live chunks are copied into new packs, then the old pack objects are deleted.
+         * Heads up: this function does a complete MDS dump.
+         * @throws HybrisException
+         */
+        public void packGc() throws HybrisException {
+
+            if (Hybris.this.packManager == null)
+                return;
+
+            // do not touch packs which may still be referenced by in-flight puts
+            long olderThan = System.currentTimeMillis() - 2000L * Hybris.this.TIMEOUT_WRITE;
+            Map<String, Long> packs = Hybris.this.mds.getPacks(olderThan);
+            if (packs.isEmpty())
+                return;
+
+            Map<String, Metadata> mdMap = Hybris.this.mds.getAll();     // !! heavy operation
+            Map<String, Long> liveBytes = new HashMap<String, Long>();
+            Map<String, List<String>> liveKeys = new HashMap<String, List<String>>();
+            for (Map.Entry<String, Metadata> entry : mdMap.entrySet()) {
+                if (!entry.getValue().isPacked())
+                    continue;
+                for (PackRef ref : entry.getValue().getPackRefs()) {
+                    Long live = liveBytes.get(ref.getPackId());
+                    liveBytes.put(ref.getPackId(), (live == null ? 0 : live) + ref.getLength());
+                    List<String> keys = liveKeys.get(ref.getPackId());
+                    if (keys == null) {
+                        keys = new ArrayList<String>();
+                        liveKeys.put(ref.getPackId(), keys);
                     }
+                    if (!keys.contains(entry.getKey()))
+                        keys.add(entry.getKey());
+                }
+            }
+
+            List<String> compacted = new ArrayList<String>();
+            for (String packId : packs.keySet()) {
+                Long live = liveBytes.get(packId);
+                if (live != null && (float) live / packs.get(packId) >= Hybris.this.packGcRatio)
+                    continue;
 
-                    if ( malformedKey || !mdMap.keySet().contains(key) ||
-                            mdMap.get(key).getTs().isGreater(kvTs) ) {
+                boolean error = false;
+                if (live != null)
+                    for (String key : liveKeys.get(packId))
                         try {
-                            Hybris.this.kvs.delete(kvStore, kvsKey);
-                        } catch (IOException e) {
-                            logger.warn("GC: could not delete {} from {}", kvsKey, kvStore);
-                            continue;
+                            this.repack(key, packId);
+                        } catch (HybrisException | IOException e) {
+                            error = true;
+                            logger.warn("GC: could not repack key {} from {}", key, packId, e);
                         }
-                        logger.debug("GC: deleted {} from {}", kvsKey, kvStore);
-                    }
+                if (!error)
+                    compacted.add(packId);
+            }
+
+            Map<Kvs, List<String>> packKeys = new HashMap<Kvs, List<String>>();
+            for (Kvs kvStore : Hybris.this.kvs.getKvsList())
+                packKeys.put(kvStore, compacted);
+            Set<String> deleted = new HashSet<String>(compacted);
+            for (Map.Entry<Kvs, List<String>> failed : Hybris.this.kvs.deleteAll(packKeys).entrySet()) {
+                logger.warn("GC: could not delete packs {} from {}", failed.getValue(), failed.getKey());
+                deleted.removeAll(failed.getValue());
+            }
+            for (String packId : deleted) {
+                Hybris.this.mds.removePack(packId);
+                logger.debug("GC: compacted pack {} ({}/{} B live)", packId, liveBytes.get(packId), packs.get(packId));
+            }
+        }
+
+
+        /**
+         * Checks all the chunks of a value version and re-uploads the missing or corrupted ones,
+         * rebuilt from the others, then clears its pending record.
+         */
+        private void repair(String key, Timestamp ts) throws HybrisException, IOException {
+
+            Metadata md = Hybris.this.mds.tsRead(key, null);
+            if (md == null || md.isTombstone() || md.isPacked() || !ts.equals(md.getTs())) {
+                // overwritten or deleted meanwhile: nothing references the pending chunks anymore
+                Hybris.this.mds.removePendingChunks(key, ts);
+                return;
+            }
+
+            List<Kvs> chunksLst = md.getChunksLst();
+            ArrayList<String> keylist = md.getkeylist();
+            ArrayList<byte[]> chunks = new ArrayList<byte[]>(chunksLst.size());
+            List<Integer> missing = new ArrayList<Integer>();
+            for (int i=0; i<chunksLst.size(); i++) {
+                Kvs kvStore = Hybris.this.kvs.getKvsById(chunksLst.get(i).getId());
+                if (kvStore == null)
+                    throw new HybrisException("Could not find Kvs " + chunksLst.get(i) + " storing key " + key);
+                byte[] chunk = Hybris.this.kvs.get(kvStore, keylist.get(i));
+                if (!Hybris.this.isValidChunk(md, i, chunk)) {
+                    chunk = null;
+                    missing.add(i);
                 }
+                chunks.add(chunk);
             }
-            //mds.emptyStaleAndOrphansContainers();
+
+            if (!missing.isEmpty()) {
+                byte[] value = Utils.dercode(chunks, keylist, Utils.getKvsKey(key, ts), md.getSize());
+                ArrayList<String> encoded = Utils.ercode(value, key);
+                for (int idx : missing) {
+                    byte[] chunk = Utils.keytovalue(encoded.get(idx));
+                    if (!Hybris.this.isValidChunk(md, idx, chunk))
+                        throw new HybrisException("Could not rebuild chunk " + idx + " of key " + key);
+                    Hybris.this.kvs.put(Hybris.this.kvs.getKvsById(chunksLst.get(idx).getId()), keylist.get(idx), chunk);
+                }
+                logger.info("GC: repaired chunks {} of key {}", missing, key);
+            }
+            Hybris.this.mds.removePendingChunks(key, ts);
+        }
+
+
+        /**
+         * @return true if the current metadata of a key reference a chunk stored on a Kvs
+         */
+        private boolean isReferenced(Metadata md, Kvs kvStore, String chunkKey) {
+            if (md == null || md.isTombstone() || md.isPacked() || md.getkeylist() == null)
+                return false;
+            for (int i=0; i<md.getChunksLst().size() && i<md.getkeylist().size(); i++)
+                if (kvStore.getId().equals(md.getChunksLst().get(i).getId()) && chunkKey.equals(md.getkeylist().get(i)))
+                    return true;
+            return false;
+        }
+
+
+        /**
+         * Deletes keys from the KVSs, in parallel and in batches where supported.
+         * @param kvsKeys - the keys to be deleted, by Kvs
+         */
+        private void deleteAll(Map<Kvs, List<String>> kvsKeys) {
+            Map<Kvs, List<String>> failed = Hybris.this.kvs.deleteAll(kvsKeys);
+            for (Map.Entry<Kvs, List<String>> entry : kvsKeys.entrySet()) {
+                List<String> kvsFailed = failed.get(entry.getKey());
+                int deleted = entry.getValue().size() - (kvsFailed == null ? 0 : kvsFailed.size());
+                if (deleted > 0)
+                    logger.debug("GC: deleted {} keys from {}", deleted, entry.getKey());
+                if (kvsFailed != null)
+                    logger.warn("GC: could not delete {} from {}", kvsFailed, entry.getKey());
+            }
+        }
+
+
+        /**
+         * Copies the chunks of <key> stored in <packId> into a new pack
+         * and updates its metadata, unless a concurrent write has overwritten it.
+         */
+        private void repack(String key, String packId) throws HybrisException, IOException {
+
+            Stat stat = new Stat();
+            Metadata md = Hybris.this.mds.tsRead(key, stat);
+            if (md == null || md.isTombstone() || !md.isPacked())
+                return;
+
+            boolean inPack = false;
+            for (PackRef ref : md.getPackRefs())
+                inPack |= packId.equals(ref.getPackId());
+            if (!inPack)
+                return;
+
+            List<Kvs> kvStores = new ArrayList<Kvs>(md.getChunksLst().size());
+            List<byte[]> chunks = new ArrayList<byte[]>(md.getPackRefs().size());
+            for (int i=0; i<md.getPackRefs().size(); i++) {
+                PackRef ref = md.getPackRefs().get(i);
+                Kvs kvStore = Hybris.this.kvs.getKvsById(md.getChunksLst().get(i).getId());
+                byte[] chunk = kvStore == null ? null :
+                    Hybris.this.kvs.get(kvStore, ref.getPackId(), ref.getOffset(), ref.getLength());
+                if (chunk == null)
+                    throw new HybrisException("Could not read chunk " + ref + " of key " + key);
+                kvStores.add(kvStore);
+                chunks.add(chunk);
+            }
+
+            try {
+                md.setPackRefs(Hybris.this.packManager.add(kvStores, chunks)
+                        .get(Hybris.this.TIMEOUT_WRITE, TimeUnit.SECONDS));
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                throw new HybrisException("Could not repack key " + key, e);
+            }
+            if (Hybris.this.mds.tsConditionalWrite(key, md, stat.getVersion()) == WriteOutcome.CONFLICT)
+                // the copy is not referenced: it is dead data of the new packs, which are
+                // recorded on MDS before being written and compacted by a next pass
+                logger.debug("GC: key {} overwritten while being repacked, dropping its copy in {}",
+                        key, md.getPackRefs().get(0).getPackId());
         }
 
 
@@ -71,6 +71,9 @@ public class Utils {
     /** KVS key separator */
     private final static String KVS_KEY_SEPARATOR = "#";
 
+    /** prefix of KVS keys holding packs of small chunks */
+    private final static String PACK_KEY_PREFIX = "pack-";
+
     
     /** encryption algorithm */
     private final static String ENC_ALGORITHM = "AES";
@@ -127,6 +130,10 @@ public class Utils {
         return key + KVS_KEY_SEPARATOR + ts;
     }
 
+    public static String getKvsKeyPrefix(String key) {
+        return key + KVS_KEY_SEPARATOR;
+    }
+
     public static String getKeyFromKvsKey(String kvsKey) {
         return kvsKey.split(KVS_KEY_SEPARATOR)[0];
     }
@@ -136,6 +143,14 @@ public class Utils {
         return Timestamp.parseString(tsStr);
     }
 
+    public static String getPackKey(String clientId, long packNum) {
+        return PACK_KEY_PREFIX + clientId + "-" + packNum;
+    }
+
+    public static boolean isPackKey(String kvsKey) {
+        return kvsKey.startsWith(PACK_KEY_PREFIX) && !kvsKey.contains(KVS_KEY_SEPARATOR);
+    }
+
     public static byte[] generateRandomBytes(byte[] array) {
         random.nextBytes(array);
         return array;
@@ -255,30 +270,42 @@ public class Utils {
         keyi = encoder.encode(new File(key));
 		return keyi;
 	}
-	//After recuprating  
-	public static byte[] dercode(ArrayList<byte[]> values, ArrayList<String> keylist, String key, int Sizy) {
-		
-		for (String Sigma : keylist)
-        	for (byte[] Gama : values)
-        		if (keylist.indexOf(Sigma)==values.indexOf(Gama))
-					try {
-						Utils.valueonkeys(Gama,Sigma);
-					} catch (IOException e1) {
-						// TODO Auto-generated catch block
-						e1.printStackTrace();
-					}
-		
-		Decoder decoder = new Decoder(new File(key), DATACHUNKS, REDCHUNKS, WORDS_LENGTH);
+    /**
+     * Decoding a value from its chunks.
+     * The files of the chunks which have not been retrieved are removed beforehand,
+     * so that the decoder treats them as erasures instead of reading stale chunks.
+     * @param values - the retrieved chunks, null if not retrieved, in the same order as keylist
+     * @param keylist - the names of the chunks
+     * @param key
+     * @param Sizy - the size of the value
+     * @return byte[] value
+     * @throws IOException if less than DATACHUNKS chunks have been retrieved or the value could not be decoded
+     */
+    public static byte[] dercode(ArrayList<byte[]> values, ArrayList<String> keylist, String key, int Sizy)
+            throws IOException {
+
+        int retrieved = 0;
+        for (byte[] chunk : values)
+            if (chunk != null)
+                retrieved++;
+        if (retrieved < DATACHUNKS)
+            throw new IOException("Only " + retrieved + " chunks of " + key + " retrieved, "
+                    + DATACHUNKS + " are needed to decode it");
+
+        for (int i=0; i<keylist.size(); i++)
+            if (i < values.size() && values.get(i) != null)
+                Utils.valueonkeys(values.get(i), keylist.get(i));
+            else
+                Files.deleteIfExists(Paths.get(keylist.get(i)));
+        Files.deleteIfExists(Paths.get(key));
+
+        Decoder decoder = new Decoder(new File(key), DATACHUNKS, REDCHUNKS, WORDS_LENGTH);
         decoder.decode(Sizy);
-		byte[] value = null;
-		try {
-			value = keytovalue(key);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		return value;
-	}
+        if (!Files.exists(Paths.get(key)))
+            throw new IOException("Could not decode " + key);
+        return keytovalue(key);
+    }
+
 	/* -------------------------------------- key to value functions -------------------------------------- */
 
 	/**
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable heap buffers, in power of two size classes,
+ * into which values are read without intermediate copies.
+ * The buffers are array-backed, so that their content can be handed to byte[] based code.
+ * @author P. Viotti
+ */
+public class BufferPool {
+
+    private static final int MIN_CLASS = 10;    // 1 KB
+    private static final int MAX_CLASS = 30;    // 1 GB, larger buffers are not pooled
+
+    private final long maxPooledBytes;
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> classes;
+    private final AtomicLong pooledBytes;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    /**
+     * @param maxPooledBytes - max total capacity of the idle buffers kept in the pool [B]
+     */
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.classes = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(MAX_CLASS + 1);
+        for (int i=0; i<=MAX_CLASS; i++)
+            this.classes.add(new ConcurrentLinkedQueue<ByteBuffer>());
+        this.pooledBytes = new AtomicLong(0);
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+    }
+
+    /**
+     * @param size [B]
+     * @return a buffer of at least <size> bytes, with position 0 and limit <size>
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass > MAX_CLASS) {
+            this.misses.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = this.classes.get(sizeClass).poll();
+        if (buffer != null) {
+            this.pooledBytes.addAndGet(-buffer.capacity());
+            this.hits.incrementAndGet();
+        } else {
+            buffer = ByteBuffer.allocate(1 << sizeClass);
+            this.misses.incrementAndGet();
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.hasArray())
+            return;
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_CLASS))
+            return;     // not allocated by a pool
+        if (this.pooledBytes.addAndGet(capacity) > this.maxPooledBytes) {
+            this.pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        this.classes.get(Integer.numberOfTrailingZeros(capacity)).offer(buffer);
+    }
+
+    public long getPooledBytes()    { return this.pooledBytes.get(); }
+    public long getHits()           { return this.hits.get(); }
+    public long getMisses()         { return this.misses.get(); }
+
+    public String toString() {
+        return "BufferPool [pooled=" + this.getPooledBytes() + " B, hits=" + this.getHits() +
+                ", misses=" + this.getMisses() + "]";
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_CLASS))
+            return MIN_CLASS;
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
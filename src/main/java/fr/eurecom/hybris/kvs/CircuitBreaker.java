@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+/**
+ * Circuit breaker of a Kvs, driven by its health score:
+ * a moving average of the outcomes (success, error or timeout) of the requests sent to it.
+ * The circuit opens when the failure rate exceeds a threshold;
+ * once opened, the Kvs gets probed after <openTime> ms and the circuit
+ * closes again as soon as a probe succeeds.
+ * @author P. Viotti
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN };
+
+    private static final double ALPHA = 0.1;    // weight of the most recent outcome
+
+    private final double failureThreshold;      // failure rate opening the circuit
+    private final int minSamples;               // min number of outcomes before opening
+    private final long openTime;                // time before probing an open circuit [ms]
+
+    private State state;
+    private double health;                      // in [0, 1]: 1 if all recent requests succeeded
+    private int samples;
+    private long openedAt;
+
+    public CircuitBreaker(double failureThreshold, int minSamples, long openTime) {
+        this.failureThreshold = failureThreshold;
+        this.minSamples = minSamples;
+        this.openTime = openTime;
+        this.state = State.CLOSED;
+        this.health = 1;
+    }
+
+    /**
+     * Records a successful request. Only a probe closes the circuit: while open,
+     * successes (e.g. of requests sent before it opened) just update the health score.
+     * @return true if the circuit has been closed by this outcome
+     */
+    public synchronized boolean onSuccess() {
+        this.health = ALPHA + (1 - ALPHA) * this.health;
+        this.samples++;
+        if (this.state != State.HALF_OPEN)
+            return false;
+        this.state = State.CLOSED;
+        this.health = 1;
+        this.samples = 0;
+        return true;
+    }
+
+    /**
+     * Records a failed or timed out request.
+     * @return true if the circuit has been opened by this outcome
+     */
+    public synchronized boolean onFailure() {
+        this.health = (1 - ALPHA) * this.health;
+        this.samples++;
+        if (this.state == State.HALF_OPEN) {
+            this.state = State.OPEN;
+            this.openedAt = System.currentTimeMillis();
+            return false;
+        }
+        if (this.state == State.CLOSED && this.samples >= this.minSamples &&
+                1 - this.health > this.failureThreshold) {
+            this.state = State.OPEN;
+            this.openedAt = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves an open circuit to half-open if it is time to probe the Kvs.
+     * @return true if the caller should probe the Kvs
+     */
+    public synchronized boolean tryProbe() {
+        if (this.state != State.OPEN || System.currentTimeMillis() - this.openedAt < this.openTime)
+            return false;
+        this.state = State.HALF_OPEN;
+        return true;
+    }
+
+    public synchronized State getState()    { return this.state; }
+    public synchronized double getHealth()  { return this.health; }
+
+    public synchronized String toString() {
+        return "CircuitBreaker [state=" + this.state + ", health=" + this.health + "]";
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+
+/**
+ * Placement by consistent hashing of the keys:
+ * each Kvs owns a number of virtual nodes (proportional to its capacity) on a hash ring,
+ * and the Kvs are ranked in the order they are met walking the ring
+ * clockwise from the hash of the key.
+ * Hence, the chunks of different keys spread evenly over the Kvs, and
+ * adding or removing a Kvs only moves the keys of its neighbours.
+ * Disabled Kvs are ranked last; when the key is not known the Kvs are ranked by latency.
+ * @author P. Viotti
+ */
+public class ConsistentHashPlacement implements PlacementPolicy {
+
+    private final int virtualNodes;             // virtual nodes per unit of capacity
+    private volatile TreeMap<Long, Kvs> ring;   // built at the first use
+
+    public ConsistentHashPlacement(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+    }
+
+    public List<Kvs> rankForWrites(KvsManager kvs, String key, long size) {
+        if (key == null)
+            return kvs.getKvsSortedByWriteLatency(size);
+        return this.rank(kvs, key);
+    }
+
+    public List<Kvs> rankForReads(KvsManager kvs, String key, long size) {
+        if (key == null)
+            return kvs.getKvsSortedByReadLatency(size);
+        return this.rank(kvs, key);
+    }
+
+    public String toString() {
+        return "hash [vnodes=" + this.virtualNodes + "]";
+    }
+
+    /* ---------------------------------------------------------------------------------------
+                                        Private methods
+       --------------------------------------------------------------------------------------- */
+
+    private List<Kvs> rank(KvsManager kvs, String key) {
+
+        TreeMap<Long, Kvs> ring = this.getRing(kvs);
+        Set<Kvs> walked = new LinkedHashSet<Kvs>();
+        long hash = hash(key);
+        SortedMap<Long, Kvs> tail = ring.tailMap(hash);
+        for (Kvs kvStore : tail.values())
+            walked.add(kvStore);
+        for (Kvs kvStore : ring.headMap(hash).values())
+            walked.add(kvStore);
+        for (Kvs kvStore : kvs.getKvsList())     // Kvs with no capacity own no virtual node
+            walked.add(kvStore);
+
+        List<Kvs> ranked = new ArrayList<Kvs>(walked.size());
+        List<Kvs> disabled = new ArrayList<Kvs>();
+        for (Kvs kvStore : walked)
+            if (kvStore.isEnabled())
+                ranked.add(kvStore);
+            else
+                disabled.add(kvStore);
+        ranked.addAll(disabled);
+        return ranked;
+    }
+
+    private TreeMap<Long, Kvs> getRing(KvsManager kvs) {
+        TreeMap<Long, Kvs> ring = this.ring;
+        if (ring == null) {
+            ring = new TreeMap<Long, Kvs>();
+            for (Kvs kvStore : kvs.getKvsList())
+                for (int i=0; i<this.virtualNodes * kvStore.getCapacity(); i++) {
+                    long point = hash(kvStore.getId() + "#" + i);
+                    if (!ring.containsKey(point))
+                        ring.put(point, kvStore);
+                }
+            this.ring = ring;
+        }
+        return ring;
+    }
+
+    private static long hash(String s) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long h = 0;
+        for (int i=0; i<8; i++)
+            h = (h << 8) | (digest[i] & 0xff);
+        return h;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+
+/**
+ * Placement trading off predicted latency against cost.
+ * The Kvs whose predicted latency is within <slo> ms from the fastest one
+ * are ranked first, by a weighted sum of their normalized latency and cost;
+ * the remaining Kvs follow by predicted latency.
+ * The Kvs cost is used both as storage cost (writes) and egress cost (reads).
+ * @author P. Viotti
+ */
+public class CostAwarePlacement implements PlacementPolicy {
+
+    private final double costWeight;    // in [0, 1]: 0 ranks by latency only, 1 by cost only
+    private final long slo;             // max tolerated latency penalty [ms]
+
+    public CostAwarePlacement(double costWeight, long slo) {
+        this.costWeight = Math.max(0, Math.min(1, costWeight));
+        this.slo = slo;
+    }
+
+    public List<Kvs> rankForWrites(KvsManager kvs, String key, long size) {
+        List<Kvs> byLatency = kvs.getKvsSortedByWriteLatency(size);
+        Map<String, Double> latencies = new HashMap<String, Double>();
+        for (Kvs kvStore : byLatency)
+            latencies.put(kvStore.getId(), kvs.predictWriteLatency(kvStore, size));
+        return this.rank(byLatency, latencies);
+    }
+
+    public List<Kvs> rankForReads(KvsManager kvs, String key, long size) {
+        List<Kvs> byLatency = kvs.getKvsSortedByReadLatency(size);
+        Map<String, Double> latencies = new HashMap<String, Double>();
+        for (Kvs kvStore : byLatency)
+            latencies.put(kvStore.getId(), kvs.predictReadLatency(kvStore, size));
+        return this.rank(byLatency, latencies);
+    }
+
+    public String toString() {
+        return "cost [weight=" + this.costWeight + ", slo=" + this.slo + " ms]";
+    }
+
+    /* ---------------------------------------------------------------------------------------
+                                        Private methods
+       --------------------------------------------------------------------------------------- */
+
+    private List<Kvs> rank(List<Kvs> byLatency, final Map<String, Double> latencies) {
+
+        List<Kvs> eligible = new ArrayList<Kvs>();
+        List<Kvs> others = new ArrayList<Kvs>();
+        double fastest = Double.NaN, maxLatency = 0, maxCost = 0;
+        for (Kvs kvStore : byLatency) {
+            double latency = latencies.get(kvStore.getId());
+            if (!kvStore.isEnabled()) {
+                others.add(kvStore);
+                continue;
+            }
+            if (Double.isNaN(fastest))
+                fastest = latency;
+            if (latency <= fastest + this.slo) {
+                eligible.add(kvStore);
+                maxLatency = Math.max(maxLatency, latency);
+                maxCost = Math.max(maxCost, kvStore.getCost());
+            } else
+                others.add(kvStore);
+        }
+
+        final Map<String, Double> scores = new HashMap<String, Double>();
+        for (Kvs kvStore : eligible) {
+            double latency = maxLatency > 0 ? latencies.get(kvStore.getId()) / maxLatency : 0;
+            double cost = maxCost > 0 ? kvStore.getCost() / maxCost : 0;
+            scores.put(kvStore.getId(), (1 - this.costWeight) * latency + this.costWeight * cost);
+        }
+        Collections.sort(eligible, new Comparator<Kvs>() {
+            public int compare(Kvs kvs1, Kvs kvs2) {
+                return Double.compare(scores.get(kvs1.getId()), scores.get(kvs2.getId()));
+            }
+        });
+
+        eligible.addAll(others);
+        return eligible;
+    }
+}
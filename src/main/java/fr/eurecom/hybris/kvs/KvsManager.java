@@ -15,29 +15,56 @@
  */
 package fr.eurecom.hybris.kvs;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jclouds.rest.AuthorizationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fr.eurecom.hybris.Config;
+import fr.eurecom.hybris.Utils;
 import fr.eurecom.hybris.kvs.drivers.AmazonKvs;
 import fr.eurecom.hybris.kvs.drivers.AzureKvs;
+import fr.eurecom.hybris.kvs.drivers.FileSystemKvs;
 import fr.eurecom.hybris.kvs.drivers.GoogleKvs;
 import fr.eurecom.hybris.kvs.drivers.Kvs;
 import fr.eurecom.hybris.kvs.drivers.RackspaceKvs;
+import fr.eurecom.hybris.kvs.drivers.SimulatedKvs;
 import fr.eurecom.hybris.kvs.drivers.TransientKvs;
+import fr.eurecom.hybris.kvs.drivers.TransportConfig;
+import fr.eurecom.hybris.mds.Metadata.Timestamp;
 
 
 /**
@@ -52,17 +79,105 @@ public class KvsManager {
 
     private final Config conf;
     private final List<Kvs> kvsLst;                     // kvStores list (not sorted)
-    private final List<Kvs> kvsLstByReads;              // kvStores sorted by read latency
-    private final List<Kvs> kvsLstByWrites;             // kvStores sorted by write latency
+    private final AtomicReference<List<Kvs>> kvsLstByReads;     // kvStores sorted by read latency (immutable snapshot)
+    private final AtomicReference<List<Kvs>> kvsLstByWrites;    // kvStores sorted by write latency (immutable snapshot)
+
+    private final Map<String, LatencyStats> readStats;  // live latency estimators, by Kvs id
+    private final Map<String, LatencyStats> writeStats;
+    private final Map<String, LatencyModel> readModels; // size-aware latency models, by Kvs id
+    private final Map<String, LatencyModel> writeModels;
+    private final Map<String, CircuitBreaker> breakers; // circuit breakers, by Kvs id
+    private volatile Map<String, double[]> peerLatencies;   // observed by other clients, by Kvs id
+    private final double peerMinHealth;                 // median peer health below which a Kvs is ranked last
+    private final Map<String, AtomicInteger> inFlight;  // requests being served, by Kvs id
+    private final Map<String, AtomicInteger> peakInFlight;
+    private final Map<String, AtomicLong> saturated;    // requests started beyond the connection pool size
+    private final ScheduledExecutorService prober;      // probes the Kvs whose circuit is open
+    private final ExecutorService partReader;           // ranged reads of the parts of large values
+    private final ExecutorService probeRunner;          // runs the probes, so that a hung Kvs holds none of the prober
+    private final AtomicLong lastSort;                  // time of the last sorting [ms]
+    private final LatencyProfile latencyProfile;        // persisted latencies, null if disabled
+    private static final long PROBE_INTERVAL = 5;       // [s]
+    private static final long PROBE_TIMEOUT = 10;       // [s]
+    private static final String PROBE_KEY = "hybris-probe";
+
+    private static final double DEADLINE_FACTOR = 2;    // slack over the predicted latency
+    private static final long MIN_DEADLINE = 1000;      // [ms]
+    private static final int MIN_DEADLINE_SAMPLES = 10; // observations needed to trust the estimates
+    private static final long SORT_INTERVAL = 1000;     // min time between two sortings [ms]
+    private static final int DELETE_THREADS = 16;       // parallel deletes, for Kvs without batch deletes
+    private static final int LIST_PAGE_SIZE = 1000;     // keys fetched per listing request
+    private static final int SATURATION_LOG_INTERVAL = 1000;    // saturated requests between warnings
 
     private final int LATENCY_TEST_DATA_SIZE = 100;     // default value: 100kB
 
+    private ExecutorFactory executorFactory;
+    private PlacementPolicy placement;
+    private final BufferPool bufferPool;                // buffers for streaming reads
+
+    private static final double BYTES_PER_GB = 1024 * 1024 * 1024;
+
+    /**
+     * Factory of the executors running KvsPutWorker and KvsGetWorker tasks.
+     */
+    public interface ExecutorFactory {
+        /**
+         * @param maxThreads - max number of concurrent tasks a platform thread pool should run
+         * @return a new executor
+         */
+        ExecutorService newExecutor(int maxThreads);
+    }
+
+    /**
+     * Built-in execution modes:
+     * PLATFORM runs tasks on bounded pools of platform threads,
+     * VIRTUAL runs each task on its own virtual thread (on JDK 21+,
+     * otherwise it falls back to PLATFORM), so that blocked cloud calls
+     * do not cap the throughput at the number of platform threads.
+     */
+    public enum ExecutionMode implements ExecutorFactory {
+        PLATFORM {
+            public ExecutorService newExecutor(int maxThreads) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                        60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+                executor.allowCoreThreadTimeOut(true);
+                return executor;
+            }
+        },
+        VIRTUAL {
+            public ExecutorService newExecutor(int maxThreads) {
+                if (VIRTUAL_EXECUTOR_METHOD != null)
+                    try {
+                        return (ExecutorService) VIRTUAL_EXECUTOR_METHOD.invoke(null);
+                    } catch (ReflectiveOperationException e) {
+                        logger.warn("Could not create a virtual thread executor", e);
+                    }
+                return PLATFORM.newExecutor(maxThreads);
+            }
+        };
+
+        public String toString() {
+            return super.toString().toLowerCase();
+        }
+    };
+
+    private static final Method VIRTUAL_EXECUTOR_METHOD;   // null if virtual threads are not supported
+    static {
+        Method method = null;
+        try {
+            method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) { }
+        VIRTUAL_EXECUTOR_METHOD = method;
+    }
+
     public enum KvsId {
         AMAZON((short) 0),
         AZURE((short) 1),
         GOOGLE((short) 2),
         RACKSPACE((short) 3),
-        TRANSIENT((short) 4);
+        TRANSIENT((short) 4),
+        FILESYSTEM((short) 5),
+        SIMULATED((short) 6);
 
         private short serialNum;
 
@@ -81,6 +196,8 @@ public class KvsManager {
                 case 2: return GOOGLE;
                 case 3: return RACKSPACE;
                 case 4: return TRANSIENT;
+                case 5: return FILESYSTEM;
+                case 6: return SIMULATED;
                 default: throw new IllegalArgumentException();
             }
         }
@@ -95,69 +212,355 @@ public class KvsManager {
         this.conf = Config.getInstance();
         this.conf.loadAccountsProperties(accountsFile);
 
+        try {
+            this.executorFactory = ExecutionMode.valueOf(
+                    this.conf.getProperty(Config.KVS_EXECUTOR, "platform").trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown KVS execution mode, falling back to platform threads.");
+            this.executorFactory = ExecutionMode.PLATFORM;
+        }
+        if (ExecutionMode.VIRTUAL.equals(this.executorFactory) && VIRTUAL_EXECUTOR_METHOD == null)
+            logger.warn("Virtual threads are not supported by this JVM, falling back to platform threads.");
+
+        String placementName = this.conf.getProperty(Config.KVS_PLACEMENT, "latency").trim();
+        if ("cost".equalsIgnoreCase(placementName))
+            this.placement = new CostAwarePlacement(
+                    Double.parseDouble(this.conf.getProperty(Config.KVS_PLACEMENT_COSTWEIGHT, "0.5")),
+                    Long.parseLong(this.conf.getProperty(Config.KVS_PLACEMENT_SLO, "200")));
+        else if ("p2c".equalsIgnoreCase(placementName))
+            this.placement = new PowerOfTwoPlacement();
+        else if ("weighted".equalsIgnoreCase(placementName))
+            this.placement = new WeightedRandomPlacement();
+        else if ("hash".equalsIgnoreCase(placementName))
+            this.placement = new ConsistentHashPlacement(
+                    Integer.parseInt(this.conf.getProperty(Config.KVS_PLACEMENT_VNODES, "64")));
+        else {
+            if (!"latency".equalsIgnoreCase(placementName))
+                logger.warn("Unknown placement policy {}, falling back to latency.", placementName);
+            this.placement = new LatencyPlacement();
+        }
+
+        this.bufferPool = new BufferPool(1024L * 1024 *
+                Integer.parseInt(this.conf.getProperty(Config.KVS_BUFFERPOOL, "64")));
+
         this.kvsLst = new ArrayList<Kvs>();
-        this.kvsLstByReads = new ArrayList<Kvs>();
-        this.kvsLstByWrites = new ArrayList<Kvs>();
+        this.kvsLstByReads = new AtomicReference<List<Kvs>>();
+        this.kvsLstByWrites = new AtomicReference<List<Kvs>>();
+        this.readStats = new ConcurrentHashMap<String, LatencyStats>();
+        this.writeStats = new ConcurrentHashMap<String, LatencyStats>();
+        this.readModels = new ConcurrentHashMap<String, LatencyModel>();
+        this.writeModels = new ConcurrentHashMap<String, LatencyModel>();
+        this.breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+        this.peerLatencies = Collections.emptyMap();
+        this.inFlight = new ConcurrentHashMap<String, AtomicInteger>();
+        this.peakInFlight = new ConcurrentHashMap<String, AtomicInteger>();
+        this.saturated = new ConcurrentHashMap<String, AtomicLong>();
+        this.lastSort = new AtomicLong(0);
 
         String[] accountIds = this.conf.getAccountsIds();
+        double breakerThreshold = Double.parseDouble(this.conf.getProperty(Config.KVS_BREAKER_THRESHOLD, "0.5"));
+        int breakerMinSamples = Integer.parseInt(this.conf.getProperty(Config.KVS_BREAKER_MINSAMPLES, "5"));
+        long breakerOpenTime = 1000L * Integer.parseInt(this.conf.getProperty(Config.KVS_BREAKER_OPENTIME, "30"));
+        this.peerMinHealth = 1 - breakerThreshold;
+
+        long startupTimeout = 1000L * Integer.parseInt(this.conf.getProperty(Config.KVS_STARTUP_TIMEOUT, "30"));
+        final boolean lazyContainers = Boolean.parseBoolean(this.conf.getProperty(Config.KVS_LAZYCONTAINERS, "false"));
+        final String rootContainer = container;
+
+        // drivers are initialized in parallel, so that startup is bounded by the slowest cloud and the timeout
+        ExecutorService initExecutor = this.newExecutor(accountIds.length);
+        List<Future<Kvs>> inits = new ArrayList<Future<Kvs>>(accountIds.length);
+        for (int i=0; i<accountIds.length; i++) {
+            final String accountId = accountIds[i];
+            final int idx = i + 1;
+            inits.add(initExecutor.submit(new Callable<Kvs>() {
+                public Kvs call() throws IOException {
+                    Kvs kvStore = KvsManager.this.newKvs(accountId, rootContainer, idx);
+                    if (kvStore != null && !lazyContainers)
+                        kvStore.verifyContainer();
+                    return kvStore;
+                }
+            }));
+        }
 
-        Kvs kvStore;
-        String accessKey, secretKey;
-        boolean enabled;
-        int cost;
-        int i = 0;
-        for (String accountId : accountIds) {
-        	i++;
-            accessKey = this.conf.getAccountsProperty( String.format(Config.C_AKEY, accountId));
-            secretKey = this.conf.getAccountsProperty( String.format(Config.C_SKEY, accountId) );
-            enabled = Boolean.parseBoolean( this.conf.getAccountsProperty( String.format(Config.C_ENABLED, accountId)) );
-            cost = Integer.parseInt( this.conf.getAccountsProperty( String.format(Config.C_COST, accountId) ));
-
-            try {
-                switch (KvsId.valueOf(accountId.toUpperCase())) {
-                    case AMAZON:
-                        kvStore = new AmazonKvs(accountId, accessKey, secretKey,
-                                container, enabled, cost);
-                        break;
-                    case AZURE:
-                        kvStore = new AzureKvs(accountId, accessKey, secretKey,
-                                container, enabled, cost);
-                        break;
-                    case GOOGLE:
-                        kvStore = new GoogleKvs(accountId, accessKey, secretKey,
-                                container, enabled, cost);
-                        break;
-                    case RACKSPACE:
-                        kvStore = new RackspaceKvs(accountId, accessKey, secretKey,
-                                container, enabled, cost);
-                        break;
-                    case TRANSIENT:
-                        kvStore = new TransientKvs(accountId+i, accessKey, secretKey,
-                                container, enabled, cost);
-                        break;
-                    default:
-                        logger.error("Hybris could not find any driver for {} KvStore", accountId);
-                        continue;
+        long deadline = System.currentTimeMillis() + startupTimeout;
+        try {
+            for (int i=0; i<inits.size(); i++) {
+                Kvs kvStore;
+                try {
+                    kvStore = inits.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    inits.get(i).cancel(true);
+                    logger.error("{} KvStore not initialized within {} ms, skipped", accountIds[i], startupTimeout);
+                    continue;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IllegalArgumentException)   // configuration error
+                        throw new IOException(e.getCause());
+                    logger.error("Could not initialize {} KvStore, skipped", accountIds[i], e.getCause());
+                    continue;
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
                 }
-            } catch (IllegalArgumentException e) {
-                logger.error("Hybris could not find any driver for {} KvStore", accountId);
-                throw new IOException(e);
+                if (kvStore == null)
+                    continue;
+
+                this.kvsLst.add(kvStore);
+                this.inFlight.put(kvStore.getId(), new AtomicInteger(0));
+                this.peakInFlight.put(kvStore.getId(), new AtomicInteger(0));
+                this.saturated.put(kvStore.getId(), new AtomicLong(0));
+                this.readStats.put(kvStore.getId(), new LatencyStats());
+                this.writeStats.put(kvStore.getId(), new LatencyStats());
+                this.readModels.put(kvStore.getId(), new LatencyModel());
+                this.writeModels.put(kvStore.getId(), new LatencyModel());
+                this.breakers.put(kvStore.getId(), new CircuitBreaker(breakerThreshold, breakerMinSamples, breakerOpenTime));
             }
-
-            this.kvsLst.add(kvStore);
+        } finally {
+            initExecutor.shutdownNow();
         }
+        if (this.kvsLst.isEmpty() && accountIds.length > 0)
+            throw new IOException("Could not initialize any KvStore");
 
-        this.kvsLstByReads.addAll(this.kvsLst);
-        this.kvsLstByWrites.addAll(this.kvsLst);
+        this.kvsLstByReads.set(Collections.unmodifiableList(new ArrayList<Kvs>(this.kvsLst)));
+        this.kvsLstByWrites.set(Collections.unmodifiableList(new ArrayList<Kvs>(this.kvsLst)));
 
-        if (testLatency)
+        String profilePath = this.conf.getProperty(Config.KVS_LATENCYPROFILE, "").trim();
+        this.latencyProfile = profilePath.isEmpty() ? null : new LatencyProfile(profilePath);
+        int restored = this.loadLatencyProfile();
+        if (testLatency && restored < this.kvsLst.size())
             this.testLatencyAndSortClouds(this.LATENCY_TEST_DATA_SIZE);
+        else if (restored > 0)
+            this.sortKvs();
+
+        int partReaders = 0;
+        for (Kvs kvStore : this.kvsLst)
+            partReaders += kvStore.getTransport().getParallelParts();
+        this.partReader = newDaemonPool(partReaders, "hybris-kvs-part-reader");
+        this.probeRunner = newDaemonPool(this.kvsLst.size(), "hybris-kvs-probe");
+
+        this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "hybris-kvs-prober");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.prober.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                KvsManager.this.probeOpenCircuits();
+            }
+        }, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.SECONDS);
+        if (this.latencyProfile != null) {
+            int profileInterval = Integer.parseInt(this.conf.getProperty(Config.KVS_LATENCYPROFILE_INTERVAL, "300"));
+            this.prober.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    KvsManager.this.saveLatencyProfile();
+                }
+            }, profileInterval, profileInterval, TimeUnit.SECONDS);
+        }
     }
 
 
     public List<Kvs> getKvsList()                   { return this.kvsLst; }
-    public List<Kvs> getKvsSortedByReadLatency()    { return this.kvsLstByReads; }
-    public List<Kvs> getKvsSortedByWriteLatency()   { return this.kvsLstByWrites; }
+    public List<Kvs> getKvsSortedByReadLatency()    { return this.kvsLstByReads.get(); }
+    public List<Kvs> getKvsSortedByWriteLatency()   { return this.kvsLstByWrites.get(); }
+    public LatencyStats getReadStats(Kvs kvStore)   { return this.readStats.get(kvStore.getId()); }
+    public LatencyStats getWriteStats(Kvs kvStore)  { return this.writeStats.get(kvStore.getId()); }
+    public LatencyModel getReadModel(Kvs kvStore)   { return this.readModels.get(kvStore.getId()); }
+    public LatencyModel getWriteModel(Kvs kvStore)  { return this.writeModels.get(kvStore.getId()); }
+    public CircuitBreaker getCircuitBreaker(Kvs kvStore) { return this.breakers.get(kvStore.getId()); }
+
+    /**
+     * @return the number of requests currently being served by a Kvs
+     */
+    public int getInFlight(Kvs kvStore) {
+        AtomicInteger counter = this.inFlight.get(kvStore.getId());
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * @return the highest number of requests served at once by a Kvs
+     */
+    public int getPeakInFlight(Kvs kvStore) {
+        AtomicInteger peak = this.peakInFlight.get(kvStore.getId());
+        return peak == null ? 0 : peak.get();
+    }
+
+    /**
+     * @return the number of requests started while all the connections
+     *          of the Kvs pool were already busy
+     */
+    public long getSaturatedRequests(Kvs kvStore) {
+        AtomicLong count = this.saturated.get(kvStore.getId());
+        return count == null ? 0 : count.get();
+    }
+
+    public BufferPool getBufferPool()               { return this.bufferPool; }
+    public PlacementPolicy getPlacementPolicy()     { return this.placement; }
+    public void setPlacementPolicy(PlacementPolicy placement) {
+        this.placement = placement;
+    }
+
+    /**
+     * @param key - the key being written (null if unknown)
+     * @param size - size of each chunk [B]
+     * @return the Kvs on which chunks should be written, in order of preference
+     */
+    public List<Kvs> getKvsForWrites(String key, long size) {
+        return this.placement.rankForWrites(this, key, size);
+    }
+
+    /**
+     * @param key - the key being read (null if unknown)
+     * @param size - size of each chunk [B]
+     * @return the Kvs from which chunks should be read, in order of preference
+     */
+    public List<Kvs> getKvsForReads(String key, long size) {
+        return this.placement.rankForReads(this, key, size);
+    }
+
+    /**
+     * Estimates the storage cost of writing <chunks> chunks of the given size
+     * on the Kvs chosen by the current placement policy.
+     * @return the cost [cents] per month of storage
+     */
+    public double estimateWriteCost(long size, int chunks) {
+        return this.estimateCost(this.getKvsForWrites(null, size), size, chunks);
+    }
+
+    /**
+     * Estimates the egress cost of reading <chunks> chunks of the given size
+     * from the Kvs chosen by the current placement policy.
+     * @return the cost [cents]
+     */
+    public double estimateReadCost(long size, int chunks) {
+        return this.estimateCost(this.getKvsForReads(null, size), size, chunks);
+    }
+
+    /**
+     * @return the predicted read latency [ms] of an object of the given size:
+     *          the size-aware model prediction if any, otherwise the latency estimate
+     */
+    public double predictReadLatency(Kvs kvStore, long size) {
+        double predicted = this.readModels.get(kvStore.getId()).predict(size);
+        return Double.isNaN(predicted) ? kvStore.getReadLatency() : predicted;
+    }
+
+    /**
+     * @return the predicted write latency [ms] of an object of the given size:
+     *          the size-aware model prediction if any, otherwise the latency estimate
+     */
+    public double predictWriteLatency(Kvs kvStore, long size) {
+        double predicted = this.writeModels.get(kvStore.getId()).predict(size);
+        return Double.isNaN(predicted) ? kvStore.getWriteLatency() : predicted;
+    }
+
+    /**
+     * Computes the time after which a write request is considered straggling:
+     * twice the latency predicted for its size plus the tail (p99) latency spread observed,
+     * bounded by MIN_DEADLINE and <maxDeadline>.
+     * @param kvStore
+     * @param size [B]
+     * @param maxDeadline - the deadline to adopt if the Kvs has not been observed enough [ms]
+     * @return the deadline [ms]
+     */
+    public long getWriteDeadline(Kvs kvStore, long size, long maxDeadline) {
+        return this.getDeadline(this.writeStats.get(kvStore.getId()),
+                this.predictWriteLatency(kvStore, size), maxDeadline);
+    }
+
+    /**
+     * Computes the time after which a read request is considered straggling.
+     * @see #getWriteDeadline(Kvs, long, long)
+     */
+    public long getReadDeadline(Kvs kvStore, long size, long maxDeadline) {
+        return this.getDeadline(this.readStats.get(kvStore.getId()),
+                this.predictReadLatency(kvStore, size), maxDeadline);
+    }
+
+    /**
+     * Returns the Kvs sorted by predicted read completion time
+     * of an object of the given size.
+     * @param size [B]
+     */
+    public List<Kvs> getKvsSortedByReadLatency(long size) {
+        return this.sortByPrediction(size, true);
+    }
+
+    /**
+     * Returns the Kvs sorted by predicted write completion time
+     * of an object of the given size.
+     * @param size [B]
+     */
+    public List<Kvs> getKvsSortedByWriteLatency(long size) {
+        return this.sortByPrediction(size, false);
+    }
+
+    public void setExecutorFactory(ExecutorFactory executorFactory) {
+        this.executorFactory = executorFactory;
+    }
+
+    /**
+     * Creates an executor for running KVS workers, according to the current execution mode.
+     * @param maxThreads - max number of concurrent tasks, when running on platform threads
+     * @return a new executor, to be shut down by the caller
+     */
+    public ExecutorService newExecutor(int maxThreads) {
+        return this.executorFactory.newExecutor(Math.max(1, maxThreads));
+    }
+
+    /**
+     * Returns the configured Kvs having the given id
+     * (e.g. to resolve the Kvs references read from metadata).
+     * @param id
+     * @return the Kvs or null if no Kvs with such id is configured
+     */
+    public Kvs getKvsById(String id) {
+        for (Kvs kvStore : this.kvsLst)
+            if (kvStore.getId().equals(id))
+                return kvStore;
+        return null;
+    }
+
+
+    /**
+     * Request to a Kvs whose outcome is reported once to the circuit breaker:
+     * a request already recorded as timed out does not count as a success
+     * (or a second failure) when it completes late.
+     */
+    public abstract class KvsWorker<T> implements Callable<T> {
+
+        protected final Kvs kvStore;
+        private final AtomicBoolean outcomeRecorded = new AtomicBoolean(false);
+
+        protected KvsWorker(Kvs kvStore) {
+            this.kvStore = kvStore;
+        }
+
+        /**
+         * Records the request as failed (e.g. timed out),
+         * unless its outcome has already been recorded.
+         */
+        public void recordFailure() {
+            if (this.outcomeRecorded.compareAndSet(false, true))
+                KvsManager.this.recordFailure(this.kvStore);
+        }
+
+        /**
+         * Gives up the request without recording any outcome, e.g. once it is
+         * not needed anymore: its cancellation is not reported as a failure.
+         */
+        public void abandon() {
+            this.outcomeRecorded.set(true);
+        }
+
+        /**
+         * @return true if the caller has to record the outcome of the request,
+         * false if it has already been recorded
+         */
+        protected boolean claimOutcome() {
+            return this.outcomeRecorded.compareAndSet(false, true);
+        }
+    }
 
 
     /**
@@ -165,24 +568,31 @@ public class KvsManager {
      * write operations on cloud stores.
      * @author p.viotti
      */
-    public class KvsPutWorker implements Callable<Kvs> {
+    public class KvsPutWorker extends KvsWorker<Kvs> {
 
-        private final Kvs kvStore;
         private final String key;
         private final byte[] value;
 
         public KvsPutWorker(Kvs kvStore, String key, byte[] value) {
-            this.kvStore = kvStore;
+            super(kvStore);
             this.key = key;
             this.value = value;
         }
 
         public Kvs call() {
+            AtomicInteger counter = KvsManager.this.startRequest(this.kvStore);
             try {
+                long start = System.currentTimeMillis();
                 KvsManager.this.put(this.kvStore, this.key, this.value);
+                KvsManager.this.recordWrite(this.kvStore, this.value.length,
+                        System.currentTimeMillis() - start, this.claimOutcome());
                 return this.kvStore;
             } catch (Exception e) {
+                this.recordFailure();
                 return null;
+            } finally {
+                if (counter != null)
+                    counter.decrementAndGet();
             }
         }
     }
@@ -193,21 +603,84 @@ public class KvsManager {
      * read operations on cloud stores.
      * @author p.viotti
      */
-    public class KvsGetWorker implements Callable<byte[]> {
+    public class KvsGetWorker extends KvsWorker<byte[]> {
 
-        private final Kvs kvStore;
         private final String key;
+        private final long offset;
+        private final int length;   // -1 to read the whole value
+        private final long sizeHint; // expected size of the whole value, 0 if unknown
 
         public KvsGetWorker(Kvs kvStore, String key) {
-            this.kvStore = kvStore;
+            this(kvStore, key, 0L);
+        }
+
+        /**
+         * @param sizeHint - the expected size of the value, to read large values in parallel parts
+         */
+        public KvsGetWorker(Kvs kvStore, String key, long sizeHint) {
+            this(kvStore, key, 0, -1, sizeHint);
+        }
+
+        public KvsGetWorker(Kvs kvStore, String key, long offset, int length) {
+            this(kvStore, key, offset, length, 0);
+        }
+
+        private KvsGetWorker(Kvs kvStore, String key, long offset, int length, long sizeHint) {
+            super(kvStore);
             this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.sizeHint = sizeHint;
         }
 
         public byte[] call() {
+            AtomicInteger counter = KvsManager.this.startRequest(this.kvStore);
             try {
-                return KvsManager.this.get(this.kvStore, this.key);
+                long start = System.currentTimeMillis();
+                byte[] value;
+                if (this.length < 0)
+                    value = KvsManager.this.get(this.kvStore, this.key, this.sizeHint);
+                else
+                    value = KvsManager.this.get(this.kvStore, this.key, this.offset, this.length);
+                if (value != null)
+                    KvsManager.this.recordRead(this.kvStore, value.length,
+                            System.currentTimeMillis() - start, this.claimOutcome());
+                return value;
             } catch (Exception e) {
+                this.recordFailure();
                 return null;
+            } finally {
+                if (counter != null)
+                    counter.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Worker thread class in charge of deleting
+     * a batch of keys from a cloud store.
+     * @author p.viotti
+     */
+    public class KvsDeleteWorker implements Callable<List<String>> {
+
+        private final Kvs kvStore;
+        private final List<String> keys;
+
+        public KvsDeleteWorker(Kvs kvStore, List<String> keys) {
+            this.kvStore = kvStore;
+            this.keys = keys;
+        }
+
+        public List<String> call() {
+            try {
+                this.kvStore.verifyContainer();
+                List<String> failed = this.kvStore.deleteAll(this.keys);
+                if (!failed.isEmpty())
+                    logger.warn("Could not delete {} keys from {}", failed.size(), this.kvStore);
+                return failed;
+            } catch (Exception e) {
+                logger.warn("Could not delete {} keys from {}", this.keys.size(), this.kvStore, e);
+                return this.keys;
             }
         }
     }
@@ -248,7 +721,7 @@ public class KvsManager {
                 start = System.currentTimeMillis();
                 KvsManager.this.put(this.kvStore, testKey, this.testData);
                 end = System.currentTimeMillis();
-                this.kvStore.setWriteLatency(end - start);
+                KvsManager.this.recordWrite(this.kvStore, this.testData.length, end - start);
             } catch (Exception e) {
                 this.kvStore.setWriteLatency(Integer.MAX_VALUE);
                 if (e instanceof AuthorizationException)
@@ -270,7 +743,7 @@ public class KvsManager {
             if (retrieved == null || !Arrays.equals(this.testData, retrieved))
                 this.kvStore.setReadLatency(Integer.MAX_VALUE);
             else
-                this.kvStore.setReadLatency(end - start);
+                KvsManager.this.recordRead(this.kvStore, this.testData.length, end - start);
 
             // Clean up
             try {
@@ -287,6 +760,7 @@ public class KvsManager {
 
     public void put(Kvs kvStore, String key, byte[] data) throws IOException {
         try {
+            kvStore.verifyContainer();
             kvStore.put(key, data);
         } catch (IOException e) {
             logger.warn("Could not put " + key + " on " + kvStore, e);
@@ -297,6 +771,7 @@ public class KvsManager {
 
     public byte[] get(Kvs kvStore, String key) throws IOException {
         try {
+            kvStore.verifyContainer();
             byte[] value = kvStore.get(key);
             if (value == null)
                 logger.warn("Could not find key {} in {}", key, kvStore);
@@ -308,8 +783,90 @@ public class KvsManager {
     }
 
 
+    /**
+     * Reads a value of about <sizeHint> bytes. Values reaching the multipart threshold of the Kvs
+     * are read by parallel ranged reads of one part each, so as to use several connections.
+     */
+    public byte[] get(Kvs kvStore, String key, long sizeHint) throws IOException {
+        if (sizeHint <= 0 || sizeHint < kvStore.getTransport().getMultipartThreshold())
+            return this.get(kvStore, key);
+        try {
+            kvStore.verifyContainer();
+            byte[] value = this.getParts(kvStore, key, sizeHint);
+            if (value == null)
+                logger.warn("Could not find key {} in {}", key, kvStore);
+            return value;
+        } catch (IOException e) {
+            logger.warn("Could not get " + key + " from " + kvStore, e);
+            throw e;
+        }
+    }
+
+
+    public void put(Kvs kvStore, String key, ByteBuffer data) throws IOException {
+        try {
+            kvStore.verifyContainer();
+            kvStore.put(key, data);
+        } catch (IOException e) {
+            logger.warn("Could not put " + key + " on " + kvStore, e);
+            throw e;
+        }
+    }
+
+
+    /**
+     * Reads a value into a buffer of the KvsManager pool.
+     * @return the buffer, to be released with getBufferPool().release(), or null if the key does not exist
+     */
+    public ByteBuffer getBuffer(Kvs kvStore, String key) throws IOException {
+        try {
+            kvStore.verifyContainer();
+            ByteBuffer value = kvStore.get(key, this.bufferPool);
+            if (value == null)
+                logger.warn("Could not find key {} in {}", key, kvStore);
+            return value;
+        } catch (IOException e) {
+            logger.warn("Could not get " + key + " from " + kvStore, e);
+            throw e;
+        }
+    }
+
+
+    /**
+     * Copies a value to a channel.
+     * @return the number of bytes copied, or -1 if the key does not exist
+     */
+    public long get(Kvs kvStore, String key, WritableByteChannel target) throws IOException {
+        try {
+            kvStore.verifyContainer();
+            long copied = kvStore.get(key, target);
+            if (copied < 0)
+                logger.warn("Could not find key {} in {}", key, kvStore);
+            return copied;
+        } catch (IOException e) {
+            logger.warn("Could not get " + key + " from " + kvStore, e);
+            throw e;
+        }
+    }
+
+
+    public byte[] get(Kvs kvStore, String key, long offset, int length) throws IOException {
+        try {
+            kvStore.verifyContainer();
+            byte[] value = kvStore.get(key, offset, length);
+            if (value == null)
+                logger.warn("Could not find key {} in {}", key, kvStore);
+            return value;
+        } catch (IOException e) {
+            logger.warn("Could not get " + key + " [" + offset + "+" + length + "] from " + kvStore, e);
+            throw e;
+        }
+    }
+
+
     public void delete(Kvs kvStore, String key) throws IOException {
         try {
+            kvStore.verifyContainer();
             kvStore.delete(key);
         } catch (IOException e) {
             logger.warn("Could not delete " + key + " from " + kvStore, e);
@@ -318,8 +875,67 @@ public class KvsManager {
     }
 
 
+    /**
+     * Deletes many keys from several Kvs at once: the Kvs are processed in parallel,
+     * each one through its native batch delete if it has one (see Kvs.isBulkDeleteNative),
+     * or through parallel single deletes otherwise.
+     * @param keys - the keys to be deleted, by Kvs
+     * @return the keys which could not be deleted, by Kvs (only the Kvs with failures are included)
+     */
+    public Map<Kvs, List<String>> deleteAll(Map<Kvs, ? extends Collection<String>> keys) {
+
+        Map<Future<List<String>>, Kvs> futures = new HashMap<Future<List<String>>, Kvs>();
+        Map<Future<List<String>>, List<String>> batches = new HashMap<Future<List<String>>, List<String>>();
+        ExecutorService executor = this.newExecutor(DELETE_THREADS);
+        for (Map.Entry<Kvs, ? extends Collection<String>> entry : keys.entrySet()) {
+            List<String> kvsKeys = new ArrayList<String>(entry.getValue());
+            if (kvsKeys.isEmpty())
+                continue;
+            int batchSize = entry.getKey().isBulkDeleteNative() ? kvsKeys.size() :
+                (kvsKeys.size() + DELETE_THREADS - 1) / DELETE_THREADS;
+            for (int i=0; i<kvsKeys.size(); i+=batchSize) {
+                List<String> batch = kvsKeys.subList(i, Math.min(i + batchSize, kvsKeys.size()));
+                Future<List<String>> future = executor.submit(new KvsDeleteWorker(entry.getKey(), batch));
+                futures.put(future, entry.getKey());
+                batches.put(future, batch);
+            }
+        }
+        executor.shutdown();
+
+        Map<Kvs, List<String>> failed = new HashMap<Kvs, List<String>>();
+        for (Map.Entry<Future<List<String>>, Kvs> entry : futures.entrySet()) {
+            List<String> batchFailed;
+            try {
+                batchFailed = entry.getKey().get();
+            } catch (InterruptedException | ExecutionException e) {
+                batchFailed = batches.get(entry.getKey());
+            }
+            if (batchFailed.isEmpty())
+                continue;
+            List<String> kvsFailed = failed.get(entry.getValue());
+            if (kvsFailed == null) {
+                kvsFailed = new ArrayList<String>();
+                failed.put(entry.getValue(), kvsFailed);
+            }
+            kvsFailed.addAll(batchFailed);
+        }
+        return failed;
+    }
+
+
+    /**
+     * Deletes many keys from a Kvs.
+     * @return the keys which could not be deleted
+     */
+    public List<String> deleteAll(Kvs kvStore, Collection<String> keys) {
+        List<String> failed = this.deleteAll(Collections.singletonMap(kvStore, keys)).get(kvStore);
+        return failed == null ? new ArrayList<String>() : failed;
+    }
+
+
     public List<String> list(Kvs kvStore) throws IOException {
         try {
+            kvStore.verifyContainer();
             return kvStore.list();
         } catch (IOException e) {
             logger.warn("Could not list keys in {}", kvStore, e);
@@ -328,6 +944,21 @@ public class KvsManager {
     }
 
 
+    /**
+     * Lists lazily the keys of a Kvs starting with <prefix>, page by page.
+     * Failures while fetching pages after the first one are thrown by the iterator as Kvs.ListingException.
+     */
+    public Iterator<String> list(Kvs kvStore, String prefix) throws IOException {
+        try {
+            kvStore.verifyContainer();
+            return kvStore.list(prefix, LIST_PAGE_SIZE);
+        } catch (IOException e) {
+            logger.warn("Could not list keys with prefix {} in {}", prefix, kvStore, e);
+            throw e;
+        }
+    }
+
+
     public void shutdown(Kvs kvStore) {
         try {
             kvStore.shutdown();
@@ -342,20 +973,142 @@ public class KvsManager {
         logger.info("Performing {} kB latency tests on cloud kvStores..", testDataSize);
         this.testLatency(testDataSize);
 
-        Collections.sort(this.kvsLstByReads, Kvs.COMPARATOR_BY_READS);
-        Collections.sort(this.kvsLstByWrites, Kvs.COMPARATOR_BY_WRITES);
+        this.sortKvs();
 
         if (logger.isDebugEnabled()) {
             logger.debug("Cloud kvStores sorted by write latency:");
-            for(Kvs kvs : this.kvsLstByWrites)
+            for(Kvs kvs : this.kvsLstByWrites.get())
                 logger.debug("\t* {}", kvs.toVerboseString());
             logger.debug("Cloud kvStores sorted by read latency:");
-            for(Kvs kvs : this.kvsLstByReads)
+            for(Kvs kvs : this.kvsLstByReads.get())
                 logger.debug("\t* {}", kvs.toVerboseString());
         }
     }
 
 
+    /**
+     * Feeds the read latency estimators of a Kvs with a live sample
+     * and updates the orderings if they are due.
+     * @param kvStore
+     * @param size - size of the object read [B]
+     * @param latency [ms]
+     */
+    public void recordRead(Kvs kvStore, long size, long latency) {
+        this.recordRead(kvStore, size, latency, true);
+    }
+
+
+    /**
+     * @param success - whether to report the request as successful to the circuit breaker
+     */
+    private void recordRead(Kvs kvStore, long size, long latency, boolean success) {
+        LatencyStats stats = this.readStats.get(kvStore.getId());
+        if (stats == null)
+            return;
+        stats.add(latency);
+        this.readModels.get(kvStore.getId()).add(size, latency);
+        this.updateLatencies(kvStore);
+        if (success)
+            this.recordSuccess(kvStore);
+        this.sortIfDue();
+    }
+
+
+    /**
+     * Feeds the write latency estimators of a Kvs with a live sample
+     * and updates the orderings if they are due.
+     * @param kvStore
+     * @param size - size of the object written [B]
+     * @param latency [ms]
+     */
+    public void recordWrite(Kvs kvStore, long size, long latency) {
+        this.recordWrite(kvStore, size, latency, true);
+    }
+
+
+    /**
+     * @param success - whether to report the request as successful to the circuit breaker
+     */
+    private void recordWrite(Kvs kvStore, long size, long latency, boolean success) {
+        LatencyStats stats = this.writeStats.get(kvStore.getId());
+        if (stats == null)
+            return;
+        stats.add(latency);
+        this.writeModels.get(kvStore.getId()).add(size, latency);
+        this.updateLatencies(kvStore);
+        if (success)
+            this.recordSuccess(kvStore);
+        this.sortIfDue();
+    }
+
+
+    /**
+     * Merges the latencies observed by the other clients into the orderings:
+     * each Kvs is ranked by the worst of its local and peer latencies,
+     * and last if most peers see it failing.
+     * Kvs missing from the map are ranked by local observations only.
+     * @param latencies - median peer read latency [ms], write latency [ms] and health, by Kvs id
+     */
+    public void mergePeerLatencies(Map<String, double[]> latencies) {
+        Map<String, double[]> previous = this.peerLatencies;
+        this.peerLatencies = Collections.unmodifiableMap(new HashMap<String, double[]>(latencies));
+        for (Kvs kvStore : this.kvsLst) {
+            boolean wasFailing = this.isFailingForPeers(previous.get(kvStore.getId()));
+            boolean failing = this.isFailingForPeers(latencies.get(kvStore.getId()));
+            if (failing && !wasFailing)
+                logger.warn("{} is failing for most peers, ranking it last", kvStore);
+            else if (wasFailing && !failing) {
+                logger.info("{} is not failing for most peers anymore", kvStore);
+                kvStore.setReadLatency(Integer.MAX_VALUE);      // ranked last until observed, locally or by peers
+                kvStore.setWriteLatency(Integer.MAX_VALUE);
+            }
+            this.updateLatencies(kvStore);
+        }
+        this.sortKvs();
+    }
+
+
+    /**
+     * Records a failed request (error or timeout) on a Kvs,
+     * removing it from the orderings if its circuit opens.
+     * @param kvStore
+     */
+    public void recordFailure(Kvs kvStore) {
+        CircuitBreaker breaker = this.breakers.get(kvStore.getId());
+        if (breaker != null && breaker.onFailure()) {
+            logger.warn("Circuit opened for {}: {}", kvStore, breaker);
+            kvStore.setAvailable(false);
+            this.sortKvs();
+        }
+    }
+
+
+    /**
+     * Stops the background probing of failing Kvs.
+     */
+    public void shutdown() {
+        this.prober.shutdownNow();
+        this.probeRunner.shutdownNow();
+        this.partReader.shutdownNow();
+        this.saveLatencyProfile();
+    }
+
+
+    /**
+     * Persists the latency estimators of the Kvs, if a latency profile is configured.
+     */
+    public void saveLatencyProfile() {
+        if (this.latencyProfile == null)
+            return;
+        try {
+            this.latencyProfile.save(this);
+            logger.debug("Latency profile saved to {}", this.latencyProfile.getPath());
+        } catch (IOException e) {
+            logger.warn("Could not save the latency profile to {}", this.latencyProfile.getPath(), e);
+        }
+    }
+
+
     /**
      * Empty the data storage root container.
      * ATTENTION: it erases all data stored in the root container!
@@ -364,21 +1117,435 @@ public class KvsManager {
      */
     public void emptyStorageContainer(Kvs kvStore) throws IOException {
         logger.debug("Listing {}", kvStore);
-        List<String> keys = kvStore.list();
-        for (String key : keys)
-            try {
-                logger.debug("Removing {} from {}", key, kvStore);
-                kvStore.delete(key);
-            } catch (IOException e) { }
+        kvStore.verifyContainer();
+        Iterator<String> keys = kvStore.list("", LIST_PAGE_SIZE);
+        try {
+            while (keys.hasNext()) {
+                String key = keys.next();
+                try {
+                    logger.debug("Removing {} from {}", key, kvStore);
+                    kvStore.delete(key);
+                } catch (IOException e) { }
+            }
+        } catch (Kvs.ListingException e) {
+            throw e.getCause();
+        }
     }
 
     /* ---------------------------------------------------------------------------------------
                                         Private methods
        --------------------------------------------------------------------------------------- */
 
+    /**
+     * Reads a value by ranged reads of one part each, at most <parallel parts> at once,
+     * on the shared part readers. The last part is read with one more byte, so that a value
+     * ending exactly at a part boundary needs no further request; parts following the expected
+     * size are read sequentially, until the end of the value.
+     * @return the value, or null if the key does not exist
+     */
+    private byte[] getParts(final Kvs kvStore, final String key, long sizeHint) throws IOException {
+        final int partSize = kvStore.getTransport().getPartSize();
+        final int parts = (int) ((sizeHint + partSize - 1) / partSize);
+        if (parts == 0)
+            return kvStore.get(key);
+        final byte[][] values = new byte[parts][];
+        final AtomicInteger nextPart = new AtomicInteger(0);
+
+        int readers = Math.min(parts, kvStore.getTransport().getParallelParts());
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(readers);
+        for (int i=0; i<readers; i++)
+            futures.add(this.partReader.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    int part;
+                    while ((part = nextPart.getAndIncrement()) < parts) {
+                        int length = part < parts - 1 ? partSize : partSize + 1;    // tells if the value goes on
+                        values[part] = kvStore.get(key, (long) part * partSize, length);
+                        if (values[part] == null)
+                            break;
+                    }
+                    return null;
+                }
+            }));
+        try {
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            for (Future<Void> future : futures)
+                future.cancel(true);
+        }
+
+        ByteArrayOutputStream value = new ByteArrayOutputStream((int) sizeHint);
+        byte[] part = null;
+        for (int i=0; i<parts; i++) {
+            part = values[i];
+            if (part == null)
+                return null;
+            value.write(part, 0, part.length);
+        }
+        boolean more = part.length > partSize;      // the value is larger than expected
+        while (more) {
+            part = kvStore.get(key, value.size(), partSize);
+            if (part == null)
+                return null;
+            value.write(part, 0, part.length);
+            more = part.length == partSize;
+        }
+        return value.toByteArray();
+    }
+
+
+    /**
+     * Counts a request starting on a Kvs, and whether it has to wait for a pooled connection.
+     * @return the in-flight counter to be decremented once the request is over, or null
+     */
+    private AtomicInteger startRequest(Kvs kvStore) {
+        AtomicInteger counter = this.inFlight.get(kvStore.getId());
+        if (counter == null)
+            return null;
+        int current = counter.incrementAndGet();
+
+        AtomicInteger peak = this.peakInFlight.get(kvStore.getId());
+        int previous;
+        while (current > (previous = peak.get()) && !peak.compareAndSet(previous, current)) { }
+
+        int maxConnections = kvStore.getTransport().getMaxConnections();
+        if (TransportConfig.isSet(maxConnections) && current > maxConnections)
+            if (this.saturated.get(kvStore.getId()).incrementAndGet() % SATURATION_LOG_INTERVAL == 1)
+                logger.warn("{} connection pool saturated: {} requests in flight, {} connections",
+                        kvStore, current, maxConnections);
+        return counter;
+    }
+
+
+    /**
+     * Creates the driver of a Kvs as configured by the accounts properties,
+     * without creating its root container.
+     * @param idx - the position of the Kvs in the accounts list, starting from 1
+     * @return the Kvs, or null if no driver is available for it
+     */
+    private Kvs newKvs(String accountId, String container, int idx) throws IOException {
+
+        String accessKey, secretKey;
+        boolean enabled;
+        int cost;
+        String capacity, type, kvsContainer, region;
+        TransportConfig transport;
+        Kvs kvStore;
+
+        accessKey = this.conf.getAccountsProperty( String.format(Config.C_AKEY, accountId));
+        secretKey = this.conf.getAccountsProperty( String.format(Config.C_SKEY, accountId) );
+        enabled = Boolean.parseBoolean( this.conf.getAccountsProperty( String.format(Config.C_ENABLED, accountId)) );
+        cost = Integer.parseInt( this.conf.getAccountsProperty( String.format(Config.C_COST, accountId) ));
+        capacity = this.conf.getAccountsProperty( String.format(Config.C_CAPACITY, accountId) );
+        // several instances of the same driver (e.g. accounts or regions) can be given different names
+        type = this.conf.getAccountsProperty( String.format(Config.C_TYPE, accountId) );
+        if (type == null)
+            type = accountId;
+        kvsContainer = this.conf.getAccountsProperty( String.format(Config.C_CONTAINER, accountId) );
+        if (kvsContainer == null)
+            kvsContainer = container;
+        region = this.conf.getAccountsProperty( String.format(Config.C_REGION, accountId) );
+        transport = this.newTransportConfig(accountId);
+
+        try {
+            switch (KvsId.valueOf(type.trim().toUpperCase())) {
+                case AMAZON:
+                    kvStore = new AmazonKvs(accountId, accessKey, secretKey,
+                            kvsContainer, enabled, cost, region, transport);
+                    break;
+                case AZURE:
+                    kvStore = new AzureKvs(accountId, accessKey, secretKey,
+                            kvsContainer, enabled, cost, transport);
+                    break;
+                case GOOGLE:
+                    kvStore = new GoogleKvs(accountId, accessKey, secretKey,
+                            kvsContainer, enabled, cost, transport);
+                    break;
+                case RACKSPACE:
+                    kvStore = new RackspaceKvs(accountId, accessKey, secretKey,
+                            kvsContainer, enabled, cost, transport);
+                    break;
+                case TRANSIENT:
+                    kvStore = new TransientKvs(accountId+idx, accessKey, secretKey,
+                            kvsContainer, enabled, cost);
+                    break;
+                case FILESYSTEM:
+                    kvStore = new FileSystemKvs(accountId,
+                            this.conf.getAccountsProperty( String.format(Config.C_PATH, accountId) ),
+                            kvsContainer, enabled, cost, Long.parseLong(this.conf.getAccountsProperty(
+                                    String.format(Config.C_SYNCINTERVAL, accountId), "0").trim()));
+                    break;
+                case SIMULATED:
+                    kvStore = this.newSimulatedKvs(accountId, kvsContainer, enabled, cost);
+                    break;
+                default:
+                    logger.error("Hybris could not find any driver for {} KvStore", accountId);
+                    return null;
+            }
+        } catch (IllegalArgumentException e) {
+            logger.error("Hybris could not find any {} driver for {} KvStore", type, accountId);
+            throw e;
+        }
+
+        if (capacity != null)
+            kvStore.setCapacity(Integer.parseInt(capacity.trim()));
+        return kvStore;
+    }
+
+
+    /**
+     * Reads the transport settings of a Kvs from the accounts properties.
+     */
+    private TransportConfig newTransportConfig(String accountId) {
+        TransportConfig transport = new TransportConfig();
+        transport.setMaxConnections(this.getAccountsInt(Config.C_TR_MAXCONNECTIONS, accountId));
+        transport.setMaxConcurrentRequests(this.getAccountsInt(Config.C_TR_MAXCONCURRENCY, accountId));
+        transport.setConnectionTimeout(this.getAccountsInt(Config.C_TR_CONNECTTIMEOUT, accountId));
+        transport.setSocketTimeout(this.getAccountsInt(Config.C_TR_SOCKETTIMEOUT, accountId));
+        transport.setSocketSendBuffer(this.getAccountsInt(Config.C_TR_SENDBUFFER, accountId));
+        transport.setSocketReceiveBuffer(this.getAccountsInt(Config.C_TR_RECEIVEBUFFER, accountId));
+        transport.setMaxRetries(this.getAccountsInt(Config.C_TR_MAXRETRIES, accountId));
+        transport.setMultipartThreshold(this.getAccountsInt(Config.C_TR_MULTIPARTTHRESHOLD, accountId));
+        transport.setPartSize(this.getAccountsInt(Config.C_TR_PARTSIZE, accountId));
+        return transport;
+    }
+
+    private int getAccountsInt(String key, String accountId) {
+        return Integer.parseInt(this.conf.getAccountsProperty(String.format(key, accountId),
+                String.valueOf(TransportConfig.UNSET)).trim());
+    }
+
+
+    /**
+     * Creates a SimulatedKvs configured by the accounts properties:
+     * latency = "<median ms>[,<sigma>]", bandwidth [B/s], errorrate,
+     * outages = "<start s>-<end s>[:hang],...", seed.
+     */
+    private SimulatedKvs newSimulatedKvs(String accountId, String container, boolean enabled, int cost) {
+
+        SimulatedKvs kvStore = new SimulatedKvs(accountId, container, enabled, cost, Long.parseLong(
+                this.conf.getAccountsProperty(String.format(Config.C_SIM_SEED, accountId), "0").trim()));
+
+        String[] latency = this.conf.getAccountsProperty(
+                String.format(Config.C_SIM_LATENCY, accountId), "0").split(",");
+        kvStore.setLatency(Double.parseDouble(latency[0].trim()),
+                latency.length > 1 ? Double.parseDouble(latency[1].trim()) : 0);
+        kvStore.setBandwidth(Long.parseLong(this.conf.getAccountsProperty(
+                String.format(Config.C_SIM_BANDWIDTH, accountId), "0").trim()));
+        kvStore.setErrorRate(Double.parseDouble(this.conf.getAccountsProperty(
+                String.format(Config.C_SIM_ERRORRATE, accountId), "0").trim()));
+
+        String outages = this.conf.getAccountsProperty(String.format(Config.C_SIM_OUTAGES, accountId));
+        if (outages != null)
+            for (String outage : outages.split(",")) {
+                if (outage.trim().isEmpty())
+                    continue;
+                String[] window = outage.trim().split(":");
+                String[] bounds = window[0].split("-");
+                kvStore.addOutage(1000L * Long.parseLong(bounds[0].trim()), 1000L * Long.parseLong(bounds[1].trim()),
+                        window.length > 1 && "hang".equalsIgnoreCase(window[1].trim()));
+            }
+        logger.debug("Created {}", kvStore.toVerboseString());
+        return kvStore;
+    }
+
+
+    /**
+     * Sets the latencies a Kvs is ranked by, from the local estimators and the peer observations.
+     */
+    private void updateLatencies(Kvs kvStore) {
+        double read = this.readStats.get(kvStore.getId()).getEwma();
+        double write = this.writeStats.get(kvStore.getId()).getEwma();
+        double[] peer = this.peerLatencies.get(kvStore.getId());
+        if (peer != null) {
+            if (this.isFailingForPeers(peer)) {
+                read = Integer.MAX_VALUE;
+                write = Integer.MAX_VALUE;
+            } else {
+                read = worst(read, peer[0]);
+                write = worst(write, peer[1]);
+            }
+        }
+        if (!Double.isNaN(read))
+            kvStore.setReadLatency(Math.round(read));
+        if (!Double.isNaN(write))
+            kvStore.setWriteLatency(Math.round(write));
+    }
+
+
+    private boolean isFailingForPeers(double[] peer) {
+        return peer != null && peer[2] < this.peerMinHealth;
+    }
+
+
+    private static double worst(double local, double peer) {
+        if (Double.isNaN(local))
+            return peer;
+        if (Double.isNaN(peer))
+            return local;
+        return Math.max(local, peer);
+    }
+
+
+    private void recordSuccess(Kvs kvStore) {
+        CircuitBreaker breaker = this.breakers.get(kvStore.getId());
+        if (breaker != null && breaker.onSuccess()) {
+            logger.info("Circuit closed for {}", kvStore);
+            kvStore.setAvailable(true);
+            this.sortKvs();
+        }
+    }
+
+
+    /**
+     * Probes the Kvs whose circuit has been open long enough
+     * by writing, reading and deleting a small object.
+     * Probes run on their own threads: one not completed within PROBE_TIMEOUT counts as failed.
+     */
+    private void probeOpenCircuits() {
+        for (final Kvs kvStore : this.kvsLst) {
+            final CircuitBreaker breaker = this.breakers.get(kvStore.getId());
+            if (breaker == null || !breaker.tryProbe())
+                continue;
+
+            final AtomicBoolean outcomeRecorded = new AtomicBoolean(false);
+            final Future<?> probe = this.probeRunner.submit(new Runnable() {
+                public void run() {
+                    String probeKey = Utils.getKvsKey(PROBE_KEY, new Timestamp(0, UUID.randomUUID().toString()));
+                    byte[] probeData = new byte[1024];
+                    try {
+                        kvStore.verifyContainer();
+                        kvStore.put(probeKey, probeData);
+                        if (!Arrays.equals(probeData, kvStore.get(probeKey)))
+                            throw new IOException("Probe data mismatch");
+                        kvStore.delete(probeKey);
+                        if (outcomeRecorded.compareAndSet(false, true)) {
+                            logger.debug("Probe of {} succeeded", kvStore);
+                            KvsManager.this.recordSuccess(kvStore);
+                        }
+                    } catch (Exception e) {
+                        if (outcomeRecorded.compareAndSet(false, true)) {
+                            logger.debug("Probe of {} failed", kvStore, e);
+                            breaker.onFailure();
+                        }
+                    }
+                }
+            });
+            this.prober.schedule(new Runnable() {
+                public void run() {
+                    if (outcomeRecorded.compareAndSet(false, true)) {
+                        logger.debug("Probe of {} timed out", kvStore);
+                        probe.cancel(true);
+                        breaker.onFailure();
+                    }
+                }
+            }, PROBE_TIMEOUT, TimeUnit.SECONDS);
+        }
+    }
+
+
+    /**
+     * @return a pool of at most <threads> daemon threads, which terminate when idle
+     */
+    private static ExecutorService newDaemonPool(int threads, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads),
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+
+    /**
+     * Sorts the Kvs by current latency estimates, at most once per SORT_INTERVAL
+     * and by a single thread at a time; readers keep using the previous snapshot meanwhile.
+     */
+    private void sortIfDue() {
+        long now = System.currentTimeMillis();
+        long last = this.lastSort.get();
+        if (now - last >= SORT_INTERVAL && this.lastSort.compareAndSet(last, now))
+            this.sortKvs();
+    }
+
+
+    /**
+     * @return the number of Kvs whose latencies have been restored from the latency profile
+     */
+    private int loadLatencyProfile() {
+        if (this.latencyProfile == null)
+            return 0;
+        try {
+            int restored = this.latencyProfile.load(this);
+            logger.info("Latency profile of {}/{} KvStores restored from {}",
+                    restored, this.kvsLst.size(), this.latencyProfile.getPath());
+            return restored;
+        } catch (IOException e) {
+            logger.warn("Could not load the latency profile from {}", this.latencyProfile.getPath(), e);
+            return 0;
+        }
+    }
+
+
+    private void sortKvs() {
+        List<Kvs> byReads = new ArrayList<Kvs>(this.kvsLst);
+        List<Kvs> byWrites = new ArrayList<Kvs>(this.kvsLst);
+        Collections.sort(byReads, Kvs.COMPARATOR_BY_READS);
+        Collections.sort(byWrites, Kvs.COMPARATOR_BY_WRITES);
+        this.kvsLstByReads.set(Collections.unmodifiableList(byReads));
+        this.kvsLstByWrites.set(Collections.unmodifiableList(byWrites));
+    }
+
+
+    /**
+     * Sorts the Kvs by the latency predicted by their models for the given size;
+     * Kvs not observed yet are ranked by their latency estimate, disabled Kvs come last.
+     */
+    private List<Kvs> sortByPrediction(long size, boolean reads) {
+        final Map<String, Double> predictions = new HashMap<String, Double>();
+        for (Kvs kvStore : this.kvsLst)
+            predictions.put(kvStore.getId(), reads ?
+                    this.predictReadLatency(kvStore, size) : this.predictWriteLatency(kvStore, size));
+
+        List<Kvs> sorted = new ArrayList<Kvs>(this.kvsLst);
+        Collections.sort(sorted, new Comparator<Kvs>() {
+            public int compare(Kvs kvs1, Kvs kvs2) {
+                if (kvs1.isEnabled() != kvs2.isEnabled())
+                    return kvs1.isEnabled() ? -1 : 1;
+                return Double.compare(predictions.get(kvs1.getId()), predictions.get(kvs2.getId()));
+            }
+        });
+        return sorted;
+    }
+
+
+    private long getDeadline(LatencyStats stats, double predicted, long maxDeadline) {
+        if (stats == null || stats.getCount() < MIN_DEADLINE_SAMPLES)
+            return maxDeadline;
+        double tail = Math.max(0, stats.getPercentile(0.99) - stats.getEwma());
+        long deadline = (long) (DEADLINE_FACTOR * predicted + tail);
+        return Math.max(Math.min(MIN_DEADLINE, maxDeadline), Math.min(maxDeadline, deadline));
+    }
+
+
+    private double estimateCost(List<Kvs> ranked, long size, int chunks) {
+        double cost = 0;
+        for (int i=0; i<Math.min(chunks, ranked.size()); i++)
+            cost += ranked.get(i).getCost() * size / BYTES_PER_GB;
+        return cost;
+    }
+
 
     private void testLatency(int testDataSize) {
-        ExecutorService executor = Executors.newFixedThreadPool(this.kvsLst.size());
+        ExecutorService executor = this.newExecutor(this.kvsLst.size());
         List<FutureTask<Object>> futureLst = new ArrayList<FutureTask<Object>>(this.kvsLst.size());
         for (Kvs kvStore : this.kvsLst) {
             FutureTask<Object> f = new FutureTask<Object>(new LatencyTester(kvStore, testDataSize), null);
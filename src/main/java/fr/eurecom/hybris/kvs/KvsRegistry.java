@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fr.eurecom.hybris.kvs.KvsManager.KvsId;
+
+/**
+ * Singleton registry of the numeric ids of the Kvs instances,
+ * used to serialize chunk locations in metadata.
+ * The built-in driver names keep their legacy serial numbers,
+ * so that metadata written by previous versions can still be read;
+ * the ids of other named instances are assigned through the MDS (see MdsManager.registerKvs).
+ * @author P. Viotti
+ */
+public class KvsRegistry {
+
+    private static KvsRegistry instance = null;
+
+    private final Map<String, Short> ids;
+    private final Map<Short, String> names;
+
+    private KvsRegistry() {
+        this.ids = new ConcurrentHashMap<String, Short>();
+        this.names = new ConcurrentHashMap<Short, String>();
+        this.load(getReserved());
+    }
+
+    public static synchronized KvsRegistry getInstance() {
+        if (instance == null)
+            instance = new KvsRegistry();
+        return instance;
+    }
+
+    /**
+     * @return the serial numbers of the built-in drivers, by name
+     */
+    public static Map<String, Short> getReserved() {
+        Map<String, Short> reserved = new HashMap<String, Short>();
+        for (KvsId kvsId : KvsId.values())
+            reserved.put(kvsId.toString(), (short) kvsId.getSerial());
+        return reserved;
+    }
+
+    /**
+     * Adds the given ids to the registry.
+     * @param registry - Kvs ids, by name
+     */
+    public void load(Map<String, Short> registry) {
+        for (Map.Entry<String, Short> entry : registry.entrySet()) {
+            this.ids.put(entry.getKey(), entry.getValue());
+            this.names.put(entry.getValue(), entry.getKey());
+        }
+    }
+
+    /**
+     * @return the id of the named Kvs, or null if it is not registered
+     */
+    public Short getId(String name) {
+        return this.ids.get(name);
+    }
+
+    /**
+     * @return the name of the Kvs with the given id, or null if it is not registered
+     */
+    public String getName(short id) {
+        return this.names.get(id);
+    }
+
+    public Map<String, Short> getIds() {
+        return Collections.unmodifiableMap(this.ids);
+    }
+
+    public String toString() {
+        return "KvsRegistry " + this.ids;
+    }
+}
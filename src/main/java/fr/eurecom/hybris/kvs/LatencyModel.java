@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+/**
+ * Size-aware latency model of a Kvs: latency = a + b * size,
+ * where a is the fixed cost of a request (first byte latency) and b the inverse of the bandwidth.
+ * The parameters are fitted by least squares over the observed operations,
+ * older observations being exponentially forgotten.
+ * @author P. Viotti
+ */
+public class LatencyModel {
+
+    public static final double DEFAULT_DECAY = 0.98;
+
+    private final double decay;     // weight of past observations at each new one
+
+    /* weighted sums of the observations (x = size [B], y = latency [ms]) */
+    private double n, sx, sy, sxx, sxy;
+
+    private double a;   // fixed cost [ms]
+    private double b;   // transfer cost [ms/B]
+
+    public LatencyModel() {
+        this(DEFAULT_DECAY);
+    }
+
+    public LatencyModel(double decay) {
+        this.decay = decay;
+    }
+
+    /**
+     * Records an observed operation.
+     * @param size [B]
+     * @param latency [ms]
+     */
+    public synchronized void add(long size, long latency) {
+        this.n   = this.decay * this.n   + 1;
+        this.sx  = this.decay * this.sx  + size;
+        this.sy  = this.decay * this.sy  + latency;
+        this.sxx = this.decay * this.sxx + (double) size * size;
+        this.sxy = this.decay * this.sxy + (double) size * latency;
+        this.fit();
+    }
+
+    /**
+     * @return the weighted sums of the observations, to persist the model
+     */
+    public synchronized double[] getState() {
+        return new double[] { this.n, this.sx, this.sy, this.sxx, this.sxy };
+    }
+
+    /**
+     * Restores the observations of a persisted model.
+     * @param state - as returned by getState()
+     */
+    public synchronized void setState(double[] state) {
+        this.n   = state[0];
+        this.sx  = state[1];
+        this.sy  = state[2];
+        this.sxx = state[3];
+        this.sxy = state[4];
+        if (this.n > 0)
+            this.fit();
+    }
+
+    private void fit() {
+        double meanX = this.sx / this.n;
+        double meanY = this.sy / this.n;
+        double varX = this.sxx / this.n - meanX * meanX;
+        // sizes observed so far do not differ enough to estimate the bandwidth
+        if (varX <= meanX * meanX * 1e-6 || varX <= 0) {
+            this.b = 0;
+            this.a = meanY;
+            return;
+        }
+        double cov = this.sxy / this.n - meanX * meanY;
+        this.b = Math.max(0, cov / varX);
+        this.a = Math.max(0, meanY - this.b * meanX);
+    }
+
+    /**
+     * @param size [B]
+     * @return the predicted latency [ms] of an operation of the given size,
+     *          or NaN if no operation has been observed
+     */
+    public synchronized double predict(long size) {
+        if (this.n == 0)
+            return Double.NaN;
+        return this.a + this.b * size;
+    }
+
+    public synchronized double getFixedCost()       { return this.a; }
+    public synchronized double getTransferCost()    { return this.b; }
+
+    public synchronized String toString() {
+        return "LatencyModel [a=" + this.a + " ms, b=" + this.b + " ms/B]";
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.util.List;
+
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+
+/**
+ * Default placement: Kvs ranked by predicted completion time.
+ * @author P. Viotti
+ */
+public class LatencyPlacement implements PlacementPolicy {
+
+    public List<Kvs> rankForWrites(KvsManager kvs, String key, long size) {
+        return kvs.getKvsSortedByWriteLatency(size);
+    }
+
+    public List<Kvs> rankForReads(KvsManager kvs, String key, long size) {
+        return kvs.getKvsSortedByReadLatency(size);
+    }
+
+    public String toString() {
+        return "latency";
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+
+/**
+ * Latency models and moving averages of the Kvs, persisted in a local file
+ * so that clients start with informed orderings and without latency tests.
+ * @author P. Viotti
+ */
+public class LatencyProfile {
+
+    private static final String SAVED = "saved";
+    private static final String READ_MODEL = "%s.read.model";
+    private static final String WRITE_MODEL = "%s.write.model";
+    private static final String READ_EWMA = "%s.read.ewma";
+    private static final String WRITE_EWMA = "%s.write.ewma";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Path path;
+
+    public LatencyProfile(String path) {
+        this.path = Paths.get(path);
+    }
+
+    /**
+     * Writes the current latency estimators of the Kvs, replacing the file atomically.
+     */
+    public void save(KvsManager kvs) throws IOException {
+        Properties profile = new Properties();
+        profile.setProperty(SAVED, String.valueOf(System.currentTimeMillis()));
+        for (Kvs kvStore : kvs.getKvsList()) {
+            String id = kvStore.getId();
+            profile.setProperty(String.format(READ_MODEL, id), toString(kvs.getReadModel(kvStore).getState()));
+            profile.setProperty(String.format(WRITE_MODEL, id), toString(kvs.getWriteModel(kvStore).getState()));
+            if (!Double.isNaN(kvs.getReadStats(kvStore).getEwma()))
+                profile.setProperty(String.format(READ_EWMA, id), String.valueOf(kvs.getReadStats(kvStore).getEwma()));
+            if (!Double.isNaN(kvs.getWriteStats(kvStore).getEwma()))
+                profile.setProperty(String.format(WRITE_EWMA, id), String.valueOf(kvs.getWriteStats(kvStore).getEwma()));
+        }
+
+        if (this.path.getParent() != null)
+            Files.createDirectories(this.path.getParent());
+        Path tmp = this.path.resolveSibling(this.path.getFileName() + TMP_SUFFIX);
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            profile.store(out, "Hybris latency profile");
+        }
+        Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the latency estimators of the Kvs found in the file.
+     * @return the number of Kvs whose read and write latencies have been restored
+     */
+    public int load(KvsManager kvs) throws IOException {
+        Properties profile = new Properties();
+        try (InputStream in = Files.newInputStream(this.path)) {
+            profile.load(in);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+
+        int restored = 0;
+        for (Kvs kvStore : kvs.getKvsList()) {
+            String id = kvStore.getId();
+            try {
+                String readModel = profile.getProperty(String.format(READ_MODEL, id));
+                String writeModel = profile.getProperty(String.format(WRITE_MODEL, id));
+                String readEwma = profile.getProperty(String.format(READ_EWMA, id));
+                String writeEwma = profile.getProperty(String.format(WRITE_EWMA, id));
+                if (readModel != null)
+                    kvs.getReadModel(kvStore).setState(toState(readModel));
+                if (writeModel != null)
+                    kvs.getWriteModel(kvStore).setState(toState(writeModel));
+                if (readEwma != null) {
+                    kvs.getReadStats(kvStore).restore(Double.parseDouble(readEwma));
+                    kvStore.setReadLatency(Math.round(kvs.getReadStats(kvStore).getEwma()));
+                }
+                if (writeEwma != null) {
+                    kvs.getWriteStats(kvStore).restore(Double.parseDouble(writeEwma));
+                    kvStore.setWriteLatency(Math.round(kvs.getWriteStats(kvStore).getEwma()));
+                }
+                if (readEwma != null && writeEwma != null)
+                    restored++;
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Malformed latency profile entry for " + id, e);
+            }
+        }
+        return restored;
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    private static String toString(double[] state) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<state.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(state[i]);
+        }
+        return sb.toString();
+    }
+
+    private static double[] toState(String value) {
+        String[] fields = value.split(",");
+        double[] state = new double[5];
+        for (int i=0; i<state.length; i++)
+            state[i] = Double.parseDouble(fields[i].trim());
+        return state;
+    }
+}
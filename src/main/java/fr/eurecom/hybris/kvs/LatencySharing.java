@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.eurecom.hybris.Config;
+import fr.eurecom.hybris.HybrisException;
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+import fr.eurecom.hybris.mds.MdsManager;
+
+/**
+ * Periodically publishes on MDS a compact summary of the latencies and health
+ * observed by this client on each Kvs, and merges the summaries of the other clients
+ * into the Kvs orderings, so that a degraded Kvs is avoided by all the clients
+ * as soon as some of them notice it.
+ * @author P. Viotti
+ */
+public class LatencySharing {
+
+    private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
+
+    private static final int MAX_AGE_INTERVALS = 3;     // summaries not updated for longer are ignored
+
+    private final KvsManager kvs;
+    private final MdsManager mds;
+    private final String clientId;
+    private final int interval;         // time between two exchanges [s]
+
+    private final ScheduledExecutorService scheduler;
+
+
+    public LatencySharing(KvsManager kvs, MdsManager mds, String clientId, int interval) {
+        this.kvs = kvs;
+        this.mds = mds;
+        this.clientId = clientId;
+        this.interval = interval;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                LatencySharing.this.exchange();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+
+    /**
+     * Publishes the local summary and merges the summaries of the other clients.
+     */
+    public void exchange() {
+        try {
+            this.mds.publishLatency(this.clientId, this.getSummary());
+            Map<String, byte[]> summaries = this.mds.getLatencies(MAX_AGE_INTERVALS * 1000L * this.interval);
+            summaries.remove(this.clientId);
+            this.kvs.mergePeerLatencies(getMedians(summaries.values()));
+            logger.debug("Kvs latencies merged from {} peers", summaries.size());
+        } catch (HybrisException | RuntimeException e) {
+            logger.warn("Could not exchange the Kvs latencies", e);
+        }
+    }
+
+
+    /**
+     * @return one "id=read,write,health" line per Kvs, as observed locally;
+     *          latencies [ms] are -1 if no request has been observed
+     */
+    public byte[] getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Kvs kvStore : this.kvs.getKvsList()) {
+            double read = this.kvs.getReadStats(kvStore).getEwma();
+            double write = this.kvs.getWriteStats(kvStore).getEwma();
+            sb.append(kvStore.getId()).append('=')
+              .append(Double.isNaN(read) ? -1 : Math.round(read)).append(',')
+              .append(Double.isNaN(write) ? -1 : Math.round(write)).append(',')
+              .append(String.format(Locale.ROOT, "%.2f", this.kvs.getCircuitBreaker(kvStore).getHealth()))
+              .append('\n');
+        }
+        return sb.toString().getBytes();
+    }
+
+
+    /**
+     * Stops publishing; the published summary disappears with the MDS session.
+     */
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+    }
+
+
+    /**
+     * Aggregates the summaries of several clients.
+     * Medians are used so that a few clients with unusual network conditions
+     * do not affect the orderings of the others.
+     * @param summaries - as returned by getSummary()
+     * @return the median read latency [ms], write latency [ms] and health, by Kvs id;
+     *          latencies are NaN if no client has observed any request
+     */
+    public static Map<String, double[]> getMedians(Collection<byte[]> summaries) {
+
+        Map<String, List<List<Double>>> samples = new HashMap<String, List<List<Double>>>();
+        for (byte[] summary : summaries)
+            for (String line : new String(summary).split("\n")) {
+                int sep = line.lastIndexOf('=');
+                String[] fields = line.substring(sep + 1).split(",");
+                if (sep <= 0 || fields.length != 3)
+                    continue;
+                double[] values = new double[3];
+                try {
+                    for (int i=0; i<values.length; i++)
+                        values[i] = Double.parseDouble(fields[i].trim());
+                } catch (NumberFormatException e) {
+                    logger.debug("Malformed Kvs latency summary line: {}", line);
+                    continue;
+                }
+
+                List<List<Double>> kvsSamples = samples.get(line.substring(0, sep));
+                if (kvsSamples == null) {
+                    kvsSamples = new ArrayList<List<Double>>();
+                    for (int i=0; i<values.length; i++)
+                        kvsSamples.add(new ArrayList<Double>());
+                    samples.put(line.substring(0, sep), kvsSamples);
+                }
+                for (int i=0; i<values.length; i++)
+                    if (values[i] >= 0)
+                        kvsSamples.get(i).add(values[i]);
+            }
+
+        Map<String, double[]> medians = new HashMap<String, double[]>();
+        for (Map.Entry<String, List<List<Double>>> entry : samples.entrySet()) {
+            double[] median = new double[3];
+            for (int i=0; i<median.length; i++)
+                median[i] = median(entry.getValue().get(i));
+            medians.put(entry.getKey(), median);
+        }
+        return medians;
+    }
+
+
+    private static double median(List<Double> values) {
+        if (values.isEmpty())
+            return Double.NaN;
+        Collections.sort(values);
+        int mid = values.size() / 2;
+        if (values.size() % 2 == 1)
+            return values.get(mid);
+        return (values.get(mid - 1) + values.get(mid)) / 2;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency estimators of a Kvs:
+ * exponentially weighted moving average and percentiles
+ * over a window of the most recent samples.
+ * @author P. Viotti
+ */
+public class LatencyStats {
+
+    public static final double DEFAULT_ALPHA = 0.2;
+    public static final int DEFAULT_WINDOW = 256;
+
+    private final double alpha;             // weight of the most recent sample
+    private final AtomicLong ewma;          // bits of the double average, NaN if no sample
+    private final AtomicLongArray window;   // most recent samples, circular
+    private final AtomicLong count;
+
+    public LatencyStats() {
+        this(DEFAULT_ALPHA, DEFAULT_WINDOW);
+    }
+
+    public LatencyStats(double alpha, int windowSize) {
+        this.alpha = alpha;
+        this.ewma = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+        this.window = new AtomicLongArray(windowSize);
+        this.count = new AtomicLong(0);
+    }
+
+    /**
+     * Records a latency sample.
+     * @param latency [ms]
+     */
+    public void add(long latency) {
+        long idx = this.count.getAndIncrement();
+        this.window.set((int) (idx % this.window.length()), latency);
+
+        long oldBits, newBits;
+        do {
+            oldBits = this.ewma.get();
+            double old = Double.longBitsToDouble(oldBits);
+            double avg = Double.isNaN(old) ? latency : this.alpha * latency + (1 - this.alpha) * old;
+            newBits = Double.doubleToLongBits(avg);
+        } while (!this.ewma.compareAndSet(oldBits, newBits));
+    }
+
+    /**
+     * Initializes the moving average with a persisted one, unless samples have already been recorded.
+     * @param ewma [ms]
+     */
+    public void restore(double ewma) {
+        long nan = Double.doubleToLongBits(Double.NaN);
+        this.ewma.compareAndSet(nan, Double.doubleToLongBits(ewma));
+    }
+
+    /**
+     * @return the moving average latency [ms], or NaN if no sample has been recorded
+     */
+    public double getEwma() {
+        return Double.longBitsToDouble(this.ewma.get());
+    }
+
+    /**
+     * @param q - the quantile, in [0, 1]
+     * @return the latency quantile [ms] over the recent samples, or -1 if no sample has been recorded
+     */
+    public long getPercentile(double q) {
+        int n = (int) Math.min(this.count.get(), this.window.length());
+        if (n == 0)
+            return -1;
+        long[] samples = new long[n];
+        for (int i=0; i<n; i++)
+            samples[i] = this.window.get(i);
+        Arrays.sort(samples);
+        int idx = (int) Math.ceil(q * n) - 1;
+        return samples[Math.max(0, Math.min(n - 1, idx))];
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    public String toString() {
+        return "LatencyStats [ewma=" + Math.round(this.getEwma()) +
+                ", p50=" + this.getPercentile(0.5) +
+                ", p99=" + this.getPercentile(0.99) +
+                ", count=" + this.getCount() + "]";
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import fr.eurecom.hybris.Config;
+import fr.eurecom.hybris.HybrisException;
+import fr.eurecom.hybris.Utils;
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+import fr.eurecom.hybris.mds.MdsManager;
+import fr.eurecom.hybris.mds.Metadata.PackRef;
+
+/**
+ * Buffers the chunks of small values for a short time window
+ * and writes them as a single pack object on each Kvs,
+ * so that many small puts cost a single cloud request per Kvs.
+ * @author P. Viotti
+ */
+public class PackManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
+    private static final int CONCURRENT_FLUSHES = 2;    // packs written at once, further flushes wait
+
+    private final KvsManager kvs;
+    private final MdsManager mds;
+    private final String clientId;
+
+    private final int window;           // max time a chunk is buffered [ms]
+    private final int timeout;          // max time a pack write may take [s]
+    private final int maxPackSize;      // pack size flush threshold, per Kvs [B]
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService flusher;      // runs the flushes triggered by the window
+    private final ExecutorService writer;       // writes the packs on the Kvs
+    private final AtomicLong packCounter;
+
+    private Pack currentPack;           // guarded by this
+
+
+    /**
+     * Chunks being buffered before being written as one object per Kvs.
+     */
+    private class Pack {
+
+        private final String packId;
+        private final Map<Kvs, ByteArrayOutputStream> buffers;
+        private final List<SettableFuture<List<PackRef>>> waiting;
+        private final List<List<PackRef>> refs;
+        private final List<List<Kvs>> placements;   // the Kvs of each chunk of each value
+
+        private Pack() {
+            this.packId = Utils.getPackKey(PackManager.this.clientId,
+                    PackManager.this.packCounter.incrementAndGet());
+            this.buffers = new LinkedHashMap<Kvs, ByteArrayOutputStream>();
+            this.waiting = new ArrayList<SettableFuture<List<PackRef>>>();
+            this.refs = new ArrayList<List<PackRef>>();
+            this.placements = new ArrayList<List<Kvs>>();
+        }
+
+        private int maxBufferSize() {
+            int max = 0;
+            for (ByteArrayOutputStream buffer : this.buffers.values())
+                max = Math.max(max, buffer.size());
+            return max;
+        }
+    }
+
+
+    /**
+     * @param window - max time a chunk is buffered [ms]
+     * @param maxPackSize - pack size flush threshold, per Kvs [B]
+     * @param timeout - max time a pack write may take [s]
+     */
+    public PackManager(KvsManager kvs, MdsManager mds, String clientId,
+            int window, int maxPackSize, int timeout) {
+        this.kvs = kvs;
+        this.mds = mds;
+        this.clientId = clientId;
+        this.window = window;
+        this.maxPackSize = maxPackSize;
+        this.timeout = timeout;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.flusher = kvs.newExecutor(CONCURRENT_FLUSHES);
+        this.writer = kvs.newExecutor(CONCURRENT_FLUSHES * kvs.getKvsList().size());
+        this.packCounter = new AtomicLong(System.currentTimeMillis());
+    }
+
+
+    /**
+     * Appends the chunks of a value to the current pack.
+     * @param kvStores - the Kvs on which each chunk has to be stored
+     * @param chunks - the chunks to be stored, in the same order as kvStores
+     * @return a future holding the location of each chunk, completed once the pack is durable
+     */
+    public ListenableFuture<List<PackRef>> add(List<Kvs> kvStores, List<byte[]> chunks) {
+
+        SettableFuture<List<PackRef>> future = SettableFuture.create();
+        Pack full = null;
+        synchronized (this) {
+            if (this.currentPack == null) {
+                this.currentPack = new Pack();
+                final Pack scheduled = this.currentPack;
+                this.scheduler.schedule(new Runnable() {
+                    public void run() {
+                        PackManager.this.flusher.execute(new Runnable() {
+                            public void run() {
+                                PackManager.this.flush(scheduled);
+                            }
+                        });
+                    }
+                }, this.window, TimeUnit.MILLISECONDS);
+            }
+
+            List<PackRef> chunkRefs = new ArrayList<PackRef>(chunks.size());
+            for (int i=0; i<kvStores.size(); i++) {
+                ByteArrayOutputStream buffer = this.currentPack.buffers.get(kvStores.get(i));
+                if (buffer == null) {
+                    buffer = new ByteArrayOutputStream();
+                    this.currentPack.buffers.put(kvStores.get(i), buffer);
+                }
+                chunkRefs.add(new PackRef(this.currentPack.packId, buffer.size(), chunks.get(i).length));
+                buffer.write(chunks.get(i), 0, chunks.get(i).length);
+            }
+            this.currentPack.refs.add(chunkRefs);
+            this.currentPack.placements.add(new ArrayList<Kvs>(kvStores));
+            this.currentPack.waiting.add(future);
+
+            if (this.currentPack.maxBufferSize() >= this.maxPackSize)
+                full = this.currentPack;
+        }
+
+        if (full != null)
+            this.flush(full);
+        return future;
+    }
+
+
+    /**
+     * Writes immediately any buffered chunk and stops the pack manager.
+     */
+    public void shutdown() {
+        Pack pending;
+        synchronized (this) {
+            pending = this.currentPack;
+        }
+        if (pending != null)
+            this.flush(pending);
+        this.scheduler.shutdown();
+        this.flusher.shutdown();
+        this.writer.shutdown();
+    }
+
+
+    /* ---------------------------------------------------------------------------------------
+                                        Private methods
+       --------------------------------------------------------------------------------------- */
+
+    /**
+     * Writes a pack on its Kvs, unless it has already been flushed.
+     * The pack is recorded on MDS before being written,
+     * so that partially written packs get eventually garbage collected.
+     * Writes not completed within the timeout are cancelled; a value succeeds
+     * if at least DATACHUNKS of its chunks are stored, reads tolerating the others.
+     */
+    private void flush(Pack pack) {
+
+        synchronized (this) {
+            if (this.currentPack != pack)
+                return;
+            this.currentPack = null;
+        }
+
+        long totalSize = 0;
+        for (ByteArrayOutputStream buffer : pack.buffers.values())
+            totalSize += buffer.size();
+
+        Set<Kvs> stored = new HashSet<Kvs>();
+        IOException error = null;
+        try {
+            this.mds.markPack(pack.packId, totalSize);
+
+            Map<Kvs, Future<Kvs>> futures = new LinkedHashMap<Kvs, Future<Kvs>>();
+            for (Map.Entry<Kvs, ByteArrayOutputStream> entry : pack.buffers.entrySet())
+                futures.put(entry.getKey(), this.writer.submit(this.kvs.new KvsPutWorker(entry.getKey(),
+                        pack.packId, entry.getValue().toByteArray())));
+
+            long deadline = System.currentTimeMillis() + this.timeout * 1000L;
+            for (Map.Entry<Kvs, Future<Kvs>> entry : futures.entrySet())
+                try {
+                    long wait = Math.max(0, deadline - System.currentTimeMillis());
+                    if (entry.getValue().get(wait, TimeUnit.MILLISECONDS) != null)
+                        stored.add(entry.getKey());
+                    else
+                        logger.warn("Could not store pack {} on {}", pack.packId, entry.getKey());
+                } catch (ExecutionException e) {
+                    logger.warn("Could not store pack {} on {}", pack.packId, entry.getKey(), e);
+                } catch (TimeoutException e) {
+                    logger.warn("Timeout while storing pack {} on {}", pack.packId, entry.getKey());
+                    entry.getValue().cancel(true);
+                }
+        } catch (HybrisException e) {
+            error = new IOException("Could not store pack " + pack.packId, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = new IOException("Could not store pack " + pack.packId, e);
+        }
+
+        if (error == null && stored.size() == pack.buffers.size())
+            logger.debug("Pack {} stored: {} values, {} B", pack.packId, pack.waiting.size(), totalSize);
+        else if (error == null)
+            logger.warn("Pack {} stored on {} Kvs out of {}", pack.packId, stored.size(), pack.buffers.size());
+        else
+            logger.warn("Could not store pack {}", pack.packId, error);
+
+        for (int i=0; i<pack.waiting.size(); i++) {
+            List<Kvs> placement = pack.placements.get(i);
+            int chunksStored = 0;
+            for (Kvs kvStore : placement)
+                if (stored.contains(kvStore))
+                    chunksStored++;
+            if (error == null && chunksStored >= Math.min(Utils.DATACHUNKS, placement.size()))
+                pack.waiting.get(i).set(pack.refs.get(i));
+            else
+                pack.waiting.get(i).setException(error != null ? error :
+                    new IOException("Could not store enough chunks in pack " + pack.packId + ": "
+                            + chunksStored + "/" + Utils.DATACHUNKS));
+        }
+    }
+}
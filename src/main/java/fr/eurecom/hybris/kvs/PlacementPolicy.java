@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.util.List;
+
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+
+/**
+ * Strategy ranking the Kvs on which chunks are written and from which they are read.
+ * @author P. Viotti
+ */
+public interface PlacementPolicy {
+
+    /**
+     * @param kvs - the KvsManager, providing the Kvs and their latency estimates
+     * @param key - the key being written (null if unknown)
+     * @param size - size of each chunk to be written [B]
+     * @return the Kvs, in order of preference for writing
+     */
+    List<Kvs> rankForWrites(KvsManager kvs, String key, long size);
+
+    /**
+     * @param kvs - the KvsManager, providing the Kvs and their latency estimates
+     * @param key - the key being read (null if unknown)
+     * @param size - size of each chunk to be read [B]
+     * @return the Kvs, in order of preference for reading
+     */
+    List<Kvs> rankForReads(KvsManager kvs, String key, long size);
+}
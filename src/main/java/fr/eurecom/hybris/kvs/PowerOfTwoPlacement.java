@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+
+/**
+ * Placement balancing the load by the power of two choices:
+ * each position is taken by the least loaded (fewest requests in flight)
+ * of two Kvs picked at random among the remaining ones,
+ * ties being broken by predicted latency.
+ * Disabled Kvs are ranked last.
+ * @author P. Viotti
+ */
+public class PowerOfTwoPlacement implements PlacementPolicy {
+
+    public List<Kvs> rankForWrites(KvsManager kvs, String key, long size) {
+        return this.rank(kvs, size, false);
+    }
+
+    public List<Kvs> rankForReads(KvsManager kvs, String key, long size) {
+        return this.rank(kvs, size, true);
+    }
+
+    public String toString() {
+        return "p2c";
+    }
+
+    /* ---------------------------------------------------------------------------------------
+                                        Private methods
+       --------------------------------------------------------------------------------------- */
+
+    private List<Kvs> rank(KvsManager kvs, long size, boolean reads) {
+
+        List<Kvs> remaining = new ArrayList<Kvs>();
+        List<Kvs> disabled = new ArrayList<Kvs>();
+        for (Kvs kvStore : kvs.getKvsList())
+            if (kvStore.isEnabled())
+                remaining.add(kvStore);
+            else
+                disabled.add(kvStore);
+
+        Random random = ThreadLocalRandom.current();
+        List<Kvs> ranked = new ArrayList<Kvs>(remaining.size() + disabled.size());
+        while (remaining.size() > 1) {
+            int i = random.nextInt(remaining.size());
+            int j = random.nextInt(remaining.size() - 1);
+            if (j >= i)
+                j++;
+            int chosen = this.isPreferred(kvs, remaining.get(i), remaining.get(j), size, reads) ? i : j;
+            ranked.add(remaining.remove(chosen));
+        }
+        ranked.addAll(remaining);
+        ranked.addAll(disabled);
+        return ranked;
+    }
+
+    private boolean isPreferred(KvsManager kvs, Kvs kvs1, Kvs kvs2, long size, boolean reads) {
+        int load1 = kvs.getInFlight(kvs1);
+        int load2 = kvs.getInFlight(kvs2);
+        if (load1 != load2)
+            return load1 < load2;
+        if (reads)
+            return kvs.predictReadLatency(kvs1, size) <= kvs.predictReadLatency(kvs2, size);
+        else
+            return kvs.predictWriteLatency(kvs1, size) <= kvs.predictWriteLatency(kvs2, size);
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+
+/**
+ * Placement spreading the chunks at random among the Kvs,
+ * each Kvs being ranked first with a probability proportional to its capacity
+ * (weighted sampling without replacement).
+ * Disabled Kvs, and Kvs with no capacity, are ranked last.
+ * @author P. Viotti
+ */
+public class WeightedRandomPlacement implements PlacementPolicy {
+
+    public List<Kvs> rankForWrites(KvsManager kvs, String key, long size) {
+        return this.rank(kvs);
+    }
+
+    public List<Kvs> rankForReads(KvsManager kvs, String key, long size) {
+        return this.rank(kvs);
+    }
+
+    public String toString() {
+        return "weighted";
+    }
+
+    /* ---------------------------------------------------------------------------------------
+                                        Private methods
+       --------------------------------------------------------------------------------------- */
+
+    private List<Kvs> rank(KvsManager kvs) {
+
+        List<Kvs> eligible = new ArrayList<Kvs>();
+        List<Kvs> others = new ArrayList<Kvs>();
+        final Map<String, Double> scores = new HashMap<String, Double>();
+        Random random = ThreadLocalRandom.current();
+        for (Kvs kvStore : kvs.getKvsList())
+            if (kvStore.isEnabled() && kvStore.getCapacity() > 0) {
+                // sorting by u^(1/w) draws the Kvs without replacement, with probabilities proportional to w
+                scores.put(kvStore.getId(), Math.pow(random.nextDouble(), 1.0 / kvStore.getCapacity()));
+                eligible.add(kvStore);
+            } else
+                others.add(kvStore);
+
+        Collections.sort(eligible, new Comparator<Kvs>() {
+            public int compare(Kvs kvs1, Kvs kvs2) {
+                return Double.compare(scores.get(kvs2.getId()), scores.get(kvs1.getId()));
+            }
+        });
+
+        eligible.addAll(others);
+        return eligible;
+    }
+}
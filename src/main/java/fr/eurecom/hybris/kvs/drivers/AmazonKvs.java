@@ -17,17 +17,31 @@ package fr.eurecom.hybris.kvs.drivers;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.http.HttpStatus;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
@@ -40,35 +54,88 @@ import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
 import com.amazonaws.services.s3.transfer.Upload;
 import com.google.common.io.ByteStreams;
 
+import fr.eurecom.hybris.kvs.BufferPool;
+
 public class AmazonKvs extends Kvs {
 
     private transient final AmazonS3 s3;
     private transient final TransferManager tm;
 
+    private transient final Region region;    // bucket location
+
+    private static final int MAX_BULK_DELETE = 1000;  // max keys per multi-object delete request
+
     public AmazonKvs(String id, final String accessKey, final String secretKey,
             String container, boolean enabled, int cost) throws IOException {
+        this(id, accessKey, secretKey, container, enabled, cost, null);
+    }
+
+    /**
+     * @param region - the location of the bucket (e.g. "eu-west-1"), null for the default one
+     */
+    public AmazonKvs(String id, final String accessKey, final String secretKey,
+            String container, boolean enabled, int cost, String region) throws IOException {
+        this(id, accessKey, secretKey, container, enabled, cost, region, new TransportConfig());
+    }
+
+    /**
+     * @param transport - the settings of the HTTP client (TCP keep-alive is not configurable in this SDK)
+     */
+    public AmazonKvs(String id, final String accessKey, final String secretKey,
+            String container, boolean enabled, int cost, String region,
+            TransportConfig transport) throws IOException {
         super(id, container, enabled, cost);
+        this.transport = transport;
+        try {
+            this.region = region == null ? Region.EU_Ireland : Region.fromValue(region.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        }
 
         BasicAWSCredentials credentials = new BasicAWSCredentials(accessKey, secretKey);
-        this.s3 = new AmazonS3Client(credentials);
+        ClientConfiguration clientConf = new ClientConfiguration();
+        if (TransportConfig.isSet(transport.getMaxConnections()))
+            clientConf.setMaxConnections(transport.getMaxConnections());
+        if (TransportConfig.isSet(transport.getConnectionTimeout()))
+            clientConf.setConnectionTimeout(transport.getConnectionTimeout());
+        if (TransportConfig.isSet(transport.getSocketTimeout()))
+            clientConf.setSocketTimeout(transport.getSocketTimeout());
+        if (TransportConfig.isSet(transport.getSocketSendBuffer()) || TransportConfig.isSet(transport.getSocketReceiveBuffer()))
+            clientConf.setSocketBufferSizeHints(Math.max(0, transport.getSocketSendBuffer()),
+                                                Math.max(0, transport.getSocketReceiveBuffer()));
+        if (TransportConfig.isSet(transport.getMaxRetries()))
+            clientConf.setMaxErrorRetry(transport.getMaxRetries());
+        this.s3 = new AmazonS3Client(credentials, clientConf);
 
-        this.tm = new TransferManager(credentials);
+        // shares the connection pool of the client, uploading up to <parallel parts> parts at once
+        this.tm = new TransferManager(this.s3, (ThreadPoolExecutor) Executors.newFixedThreadPool(
+                transport.getParallelParts(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "s3-transfer-" + AmazonKvs.this.id);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }));
         TransferManagerConfiguration tmc = new TransferManagerConfiguration();
-        tmc.setMultipartUploadThreshold(30000000);  // 30 MB
-        tmc.setMinimumUploadPartSize(10000000);     // 10 MB
+        tmc.setMultipartUploadThreshold(transport.getMultipartThreshold());
+        tmc.setMinimumUploadPartSize(transport.getPartSize());
         this.tm.setConfiguration(tmc);
-
-        this.createContainer();
     }
 
     public void put(String key, byte[] value) throws IOException {
-        try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(value);
+        this.put(key, new ByteArrayInputStream(value), value.length);
+    }
+
+    public void put(String key, ByteBuffer value) throws IOException {
+        this.put(key, new ByteBufferInputStream(value), value.remaining());
+    }
 
+    private void put(String key, InputStream in, long length) throws IOException {
+        try {
             ObjectMetadata om = new ObjectMetadata();
-            om.setContentLength(value.length);
+            om.setContentLength(length);
 
-            PutObjectRequest request = new PutObjectRequest(this.rootContainer, key, bais, om);
+            PutObjectRequest request = new PutObjectRequest(this.rootContainer, key, in, om);
             request.setStorageClass(StorageClass.ReducedRedundancy);
 
             Upload upload = this.tm.upload(request);   // NB: asynchronous, returns immediately
@@ -94,6 +161,67 @@ public class AmazonKvs extends Kvs {
         }
     }
 
+    public byte[] get(String key, long offset, int length) throws IOException {
+        if (length <= 0)
+            return this.get(key) == null ? null : new byte[0];
+        try {
+            GetObjectRequest request = new GetObjectRequest(this.rootContainer, key);
+            request.setRange(offset, offset + length - 1);
+            S3Object object = this.s3.getObject(request);
+            return ByteStreams.toByteArray(object.getObjectContent());
+        } catch (AmazonClientException e) {
+
+            if (e instanceof AmazonS3Exception) {
+                AmazonS3Exception as3e = (AmazonS3Exception) e;
+                if (as3e.getStatusCode() == HttpStatus.SC_NOT_FOUND)
+                    return null;
+                if (as3e.getStatusCode() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE)
+                    return new byte[0];     // offset beyond the end of the object
+            }
+
+            throw new IOException(e);
+        }
+    }
+
+    public ByteBuffer get(String key, BufferPool pool) throws IOException {
+        S3Object object = this.getObject(key);
+        if (object == null)
+            return null;
+        long length = object.getObjectMetadata().getContentLength();
+        if (length > Integer.MAX_VALUE) {
+            object.getObjectContent().close();
+            throw new IOException("Value too large: " + length + " B");
+        }
+        ByteBuffer buffer = pool.acquire((int) length);
+        try {
+            return readFully(object.getObjectContent(), buffer);
+        } catch (IOException e) {
+            pool.release(buffer);
+            throw e;
+        }
+    }
+
+    public long get(String key, WritableByteChannel target) throws IOException {
+        S3Object object = this.getObject(key);
+        if (object == null)
+            return -1;
+        return copy(object.getObjectContent(), target);
+    }
+
+    /**
+     * @return the object, whose content has to be read and closed, or null if it does not exist
+     */
+    private S3Object getObject(String key) throws IOException {
+        try {
+            return this.s3.getObject(new GetObjectRequest(this.rootContainer, key));
+        } catch (AmazonClientException e) {
+            if (e instanceof AmazonS3Exception &&
+                    ((AmazonS3Exception) e).getStatusCode() == HttpStatus.SC_NOT_FOUND)
+                return null;
+            throw new IOException(e);
+        }
+    }
+
     public void delete(String key) throws IOException {
         try {
             this.s3.deleteObject(this.rootContainer, key);
@@ -102,6 +230,30 @@ public class AmazonKvs extends Kvs {
         }
     }
 
+    public List<String> deleteAll(Collection<String> keys) throws IOException {
+        List<String> failed = new ArrayList<String>();
+        List<String> keyLst = new ArrayList<String>(keys);
+        for (int i=0; i<keyLst.size(); i+=MAX_BULK_DELETE) {
+            List<KeyVersion> batch = new ArrayList<KeyVersion>(MAX_BULK_DELETE);
+            for (String key : keyLst.subList(i, Math.min(i + MAX_BULK_DELETE, keyLst.size())))
+                batch.add(new KeyVersion(key));
+            DeleteObjectsRequest request = new DeleteObjectsRequest(this.rootContainer).withKeys(batch);
+            request.setQuiet(true);     // only report errors
+            try {
+                this.s3.deleteObjects(request);
+            } catch (MultiObjectDeleteException e) {
+                for (DeleteError error : e.getErrors())
+                    failed.add(error.getKey());
+            } catch (AmazonClientException e) {
+                for (KeyVersion keyVersion : batch)
+                    failed.add(keyVersion.getKey());
+            }
+        }
+        return failed;
+    }
+
+    public boolean isBulkDeleteNative() { return true; }
+
     public List<String> list() throws IOException {
         try {
             List<String> keys = new ArrayList<String>();
@@ -126,10 +278,36 @@ public class AmazonKvs extends Kvs {
         }
     }
 
-    private void createContainer() throws IOException {
+    public Iterator<String> list(String prefix, int pageSize) throws IOException {
+        final ListObjectsRequest request = new ListObjectsRequest()
+                                                .withBucketName(this.rootContainer)
+                                                .withPrefix(prefix)
+                                                .withMaxKeys(pageSize);
+        return new PagedIterator() {
+            private ObjectListing listing = null;
+
+            protected List<String> nextPage() throws IOException {
+                if (this.listing != null && !this.listing.isTruncated())
+                    return null;
+                try {
+                    this.listing = this.listing == null ?
+                            AmazonKvs.this.s3.listObjects(request) :
+                            AmazonKvs.this.s3.listNextBatchOfObjects(this.listing);
+                } catch (AmazonClientException e) {
+                    throw new IOException(e);
+                }
+                List<String> keys = new ArrayList<String>(this.listing.getObjectSummaries().size());
+                for (S3ObjectSummary objectSummary : this.listing.getObjectSummaries())
+                    keys.add(objectSummary.getKey());
+                return keys;
+            }
+        }.start();
+    }
+
+    protected void createContainer() throws IOException {
         try {
             if (!this.s3.doesBucketExist(this.rootContainer))
-                this.s3.createBucket(this.rootContainer, Region.EU_Ireland);    // XXX hardcoded bucket location
+                this.s3.createBucket(this.rootContainer, this.region);
         } catch (AmazonClientException e) {
             throw new IOException(e);
         }
@@ -18,10 +18,15 @@ package fr.eurecom.hybris.kvs.drivers;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -32,24 +37,43 @@ import com.microsoft.windowsazure.services.blob.client.CloudBlobClient;
 import com.microsoft.windowsazure.services.blob.client.CloudBlobContainer;
 import com.microsoft.windowsazure.services.blob.client.CloudBlockBlob;
 import com.microsoft.windowsazure.services.blob.client.ListBlobItem;
+import com.microsoft.windowsazure.services.blob.client.ResultSegment;
 import com.microsoft.windowsazure.services.core.storage.CloudStorageAccount;
+import com.microsoft.windowsazure.services.core.storage.ResultContinuation;
 import com.microsoft.windowsazure.services.core.storage.StorageException;
 
 import fr.eurecom.hybris.Config;
+import fr.eurecom.hybris.kvs.BufferPool;
 
 public class AzureKvs extends Kvs {
 
     private transient static Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
 
     private static final String ERROR_BLOB_NOT_FOUND = "BlobNotFound";
+    private static final String ERROR_INVALID_RANGE = "InvalidRange";
 
     private transient final CloudBlobClient blobClient;
     private transient CloudBlobContainer containerRef;
-    private transient HashMap<String, CloudBlockBlob> blobRefs;     // cached references of already used blobs
+    private static final int DEFAULT_CONCURRENT_REQUESTS = 200;     // parallel block uploads per blob
+    private static final int MIN_SINGLE_BLOB_PUT = 1024 * 1024;         // service limits
+    private static final int MAX_SINGLE_BLOB_PUT = 64 * 1024 * 1024;
+    private static final int MIN_BLOCK_SIZE = 16 * 1024;
+    private static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
 
     public AzureKvs(String id, String accessKey, String secretKey,
             String container, boolean enabled, int cost) throws IOException {
+        this(id, accessKey, secretKey, container, enabled, cost, new TransportConfig());
+    }
+
+    /**
+     * @param transport - the settings of the client: the SDK connects through HttpURLConnection,
+     *          whose connection pool is configured JVM-wide (http.maxConnections, http.keepAlive),
+     *          so only the request concurrency and the timeout apply per Kvs
+     */
+    public AzureKvs(String id, String accessKey, String secretKey,
+            String container, boolean enabled, int cost, TransportConfig transport) throws IOException {
         super(id, container, enabled, cost);
+        this.transport = transport;
 
         String storageConnectionString = "DefaultEndpointsProtocol=http;" +
                 "AccountName=" + accessKey +
@@ -58,23 +82,41 @@ public class AzureKvs extends Kvs {
         try {
             storageAccount = CloudStorageAccount.parse(storageConnectionString);
             this.blobClient = storageAccount.createCloudBlobClient();
-            this.blobClient.setSingleBlobPutThresholdInBytes(30000000);  // 30 MB
-            this.blobClient.setConcurrentRequestCount(200);
+            // larger blobs are uploaded as blocks, <concurrent requests> at once
+            this.blobClient.setSingleBlobPutThresholdInBytes(Math.max(MIN_SINGLE_BLOB_PUT,
+                    Math.min(transport.getMultipartThreshold(), MAX_SINGLE_BLOB_PUT)));
+            this.blobClient.setWriteBlockSizeInBytes(
+                    Math.max(MIN_BLOCK_SIZE, Math.min(transport.getPartSize(), MAX_BLOCK_SIZE)));
+            this.blobClient.setConcurrentRequestCount(TransportConfig.isSet(transport.getMaxConcurrentRequests()) ?
+                    transport.getMaxConcurrentRequests() : DEFAULT_CONCURRENT_REQUESTS);
+            if (TransportConfig.isSet(transport.getSocketTimeout()))
+                this.blobClient.setTimeoutInMs(transport.getSocketTimeout());
         } catch (InvalidKeyException | URISyntaxException e) {
             logger.error("Could not initialize {} KvStore", id, e);
             throw new IOException(e);
         }
 
-        this.createContainer();
-        this.blobRefs = new HashMap<String, CloudBlockBlob>();
+        try {
+            this.containerRef = this.blobClient.getContainerReference(this.rootContainer);
+        } catch (StorageException | URISyntaxException e) {
+            logger.error("Could not initialize {} KvStore", id, e);
+            throw new IOException(e);
+        }
     }
 
     public void put(String key, byte[] value) throws IOException {
+        this.put(key, new ByteArrayInputStream(value), value.length);
+    }
+
+    public void put(String key, ByteBuffer value) throws IOException {
+        this.put(key, new ByteBufferInputStream(value), value.remaining());
+    }
+
+    private void put(String key, InputStream in, long length) throws IOException {
         try {
             CloudBlockBlob blob = this.containerRef.getBlockBlobReference(key);
             blob.getProperties().setContentMD5(null);
-            blob.upload(new ByteArrayInputStream(value), value.length);
-            this.blobRefs.put(key, blob);
+            blob.upload(in, length);
         } catch (URISyntaxException | StorageException | IOException e) {
             throw new IOException(e);
         }
@@ -82,9 +124,7 @@ public class AzureKvs extends Kvs {
 
     public byte[] get(String key) throws IOException {
         try {
-            CloudBlockBlob blob = this.blobRefs.get(key);
-            if (blob == null)
-                blob = this.containerRef.getBlockBlobReference(key);
+            CloudBlockBlob blob = this.containerRef.getBlockBlobReference(key);
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             blob.download(baos);
             return baos.toByteArray();
@@ -100,13 +140,122 @@ public class AzureKvs extends Kvs {
         }
     }
 
+    public byte[] get(String key, long offset, int length) throws IOException {
+        if (length <= 0)
+            return this.get(key) == null ? null : new byte[0];
+        try {
+            CloudBlockBlob blob = this.containerRef.getBlockBlobReference(key);
+            byte[] buffer = new byte[length];
+            blob.downloadRange(offset, length, buffer, 0);
+            // the blob length is updated from the response: trim the ranges crossing the end of the blob
+            long available = blob.getProperties().getLength() - offset;
+            if (available > 0 && available < length)
+                return Arrays.copyOf(buffer, (int) available);
+            return buffer;
+        } catch (URISyntaxException | StorageException e) {
+
+            if (e instanceof StorageException) {
+                StorageException se = (StorageException) e;
+                if (ERROR_BLOB_NOT_FOUND.equals(se.getErrorCode()))
+                    return null;
+                if (ERROR_INVALID_RANGE.equals(se.getErrorCode()))
+                    return new byte[0];     // offset beyond the end of the blob
+            }
+
+            throw new IOException(e);
+        }
+    }
+
+    public ByteBuffer get(String key, BufferPool pool) throws IOException {
+        PooledOutputStream out = new PooledOutputStream(pool);
+        try {
+            CloudBlockBlob blob = this.containerRef.getBlockBlobReference(key);
+            blob.download(out);
+            out.buffer.flip();
+            return out.buffer;
+        } catch (URISyntaxException | StorageException | IOException e) {
+            pool.release(out.buffer);
+            if (e instanceof StorageException &&
+                    ERROR_BLOB_NOT_FOUND.equals(((StorageException) e).getErrorCode()))
+                return null;
+            throw new IOException(e);
+        }
+    }
+
+    public long get(String key, WritableByteChannel target) throws IOException {
+        try {
+            CloudBlockBlob blob = this.containerRef.getBlockBlobReference(key);
+            CountingChannelOutputStream out = new CountingChannelOutputStream(target);
+            blob.download(out);
+            return out.count;
+        } catch (URISyntaxException | StorageException e) {
+            if (e instanceof StorageException &&
+                    ERROR_BLOB_NOT_FOUND.equals(((StorageException) e).getErrorCode()))
+                return -1;
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes the downloaded blocks straight to a channel.
+     */
+    private static class CountingChannelOutputStream extends OutputStream {
+
+        private final WritableByteChannel target;
+        private long count = 0;
+
+        private CountingChannelOutputStream(WritableByteChannel target) {
+            this.target = target;
+        }
+
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeFully(ByteBuffer.wrap(b, off, len), this.target);
+            this.count += len;
+        }
+    }
+
+    /**
+     * Writes the downloaded blocks into pooled buffers, growing them as needed
+     * (the blob length is not known before downloading it).
+     */
+    private static class PooledOutputStream extends OutputStream {
+
+        private static final int INITIAL_SIZE = 64 * 1024;
+
+        private final BufferPool pool;
+        private ByteBuffer buffer;
+
+        private PooledOutputStream(BufferPool pool) {
+            this.pool = pool;
+            this.buffer = pool.acquire(INITIAL_SIZE);
+            this.buffer.limit(this.buffer.capacity());
+        }
+
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.buffer.remaining() < len) {
+                ByteBuffer larger = this.pool.acquire(Math.max(2 * this.buffer.capacity(), this.buffer.position() + len));
+                larger.limit(larger.capacity());
+                this.buffer.flip();
+                larger.put(this.buffer);
+                this.pool.release(this.buffer);
+                this.buffer = larger;
+            }
+            this.buffer.put(b, off, len);
+        }
+    }
+
     public void delete(String key) throws IOException {
         try {
-            CloudBlockBlob blob = this.blobRefs.get(key);
-            if (blob == null)
-                blob = this.containerRef.getBlockBlobReference(key);
+            CloudBlockBlob blob = this.containerRef.getBlockBlobReference(key);
             blob.delete();
-            this.blobRefs.remove(key);
         } catch (URISyntaxException | StorageException e) {
 
             if (e instanceof StorageException) {
@@ -132,11 +281,40 @@ public class AzureKvs extends Kvs {
         }
     }
 
-    private void createContainer() throws IOException {
+    public Iterator<String> list(final String prefix, final int pageSize) throws IOException {
+        return new PagedIterator() {
+            private ResultContinuation token = null;
+            private boolean complete = false;
+
+            protected List<String> nextPage() throws IOException {
+                if (this.complete)
+                    return null;
+                ResultSegment<ListBlobItem> segment;
+                try {
+                    segment = AzureKvs.this.containerRef.listBlobsSegmented(prefix, true, null,
+                            pageSize, this.token, null, null);
+                } catch (StorageException e) {
+                    throw new IOException(e);
+                }
+                this.token = segment.getContinuationToken();
+                this.complete = !segment.getHasMoreResults();
+                List<String> keys = new ArrayList<String>(segment.getResults().size());
+                for (ListBlobItem blobItem : segment.getResults())
+                    if (blobItem instanceof CloudBlob)
+                        try {
+                            keys.add(((CloudBlob) blobItem).getName());
+                        } catch (URISyntaxException e) {
+                            throw new IOException(e);
+                        }
+                return keys;
+            }
+        }.start();
+    }
+
+    protected void createContainer() throws IOException {
         try {
-            this.containerRef = this.blobClient.getContainerReference(this.rootContainer);
             this.containerRef.createIfNotExist();
-        } catch (StorageException | URISyntaxException e) {
+        } catch (StorageException e) {
             throw new IOException(e);
         }
     }
@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs.drivers;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.eurecom.hybris.Config;
+import fr.eurecom.hybris.kvs.BufferPool;
+
+/**
+ * Kvs storing each value in a file of a local (or network mounted) directory tree:
+ * <path>/<container>/<2 hex digits of the key hash>/<url encoded key>.
+ * Values are written to a temporary file which is then atomically renamed;
+ * depending on <syncInterval>, they are synced to disk on each write (0),
+ * in batches every <syncInterval> ms (> 0), or when the OS decides to (< 0).
+ * Large values are read through memory mapping, and can be copied to a channel
+ * without going through user space.
+ */
+public class FileSystemKvs extends Kvs {
+
+    private transient static Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
+
+    private static final long MMAP_THRESHOLD = 1024 * 1024;   // min size of memory-mapped reads [B]
+    private static final String TMP_SUFFIX = "~tmp";     // never found in url encoded keys
+
+    private transient final Path root;
+    private transient final long syncInterval;                  // [ms]
+    private transient final Set<Path> unsynced;                 // files written since the last batched sync
+    private transient final ScheduledExecutorService syncer;    // null unless syncs are batched
+
+    public FileSystemKvs(String id, String path, String container,
+            boolean enabled, int cost, long syncInterval) throws IOException {
+        super(id, container, enabled, cost);
+        this.root = Paths.get(path == null ? System.getProperty("java.io.tmpdir") : path, container);
+        this.syncInterval = syncInterval;
+        this.unsynced = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+        Files.createDirectories(this.root);
+
+        if (syncInterval > 0) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "hybris-fs-sync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.syncer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    FileSystemKvs.this.syncAll();
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        } else
+            this.syncer = null;
+    }
+
+    public void put(String key, byte[] value) throws IOException {
+        this.put(key, ByteBuffer.wrap(value));
+    }
+
+    public void put(String key, ByteBuffer value) throws IOException {
+        Path file = this.getPath(key);
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(value.duplicate(), channel);
+            if (this.syncInterval == 0)
+                channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (this.syncInterval > 0)
+            this.unsynced.add(file);
+    }
+
+    public byte[] get(String key) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.getPath(key), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Value too large: " + size + " B");
+            byte[] value = new byte[(int) size];
+            if (size >= MMAP_THRESHOLD)
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size).get(value);
+            else
+                this.readFully(channel, ByteBuffer.wrap(value), 0);
+            return value;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    public byte[] get(String key, long offset, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.getPath(key), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (offset >= size)
+                return new byte[0];
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, size - offset));
+            this.readFully(channel, buffer, offset);
+            return buffer.array();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    public ByteBuffer get(String key, BufferPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.getPath(key), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Value too large: " + size + " B");
+            ByteBuffer buffer = pool.acquire((int) size);
+            try {
+                this.readFully(channel, buffer, 0);
+            } catch (IOException e) {
+                pool.release(buffer);
+                throw e;
+            }
+            buffer.flip();
+            return buffer;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Copies the value to <target>, letting the OS move the bytes directly when possible (e.g. to a socket).
+     */
+    public long get(String key, WritableByteChannel target) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.getPath(key), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size)
+                position += channel.transferTo(position, size - position, target);
+            return size;
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    public void delete(String key) throws IOException {
+        Path file = this.getPath(key);
+        this.unsynced.remove(file);
+        Files.deleteIfExists(file);
+    }
+
+    public List<String> list() throws IOException {
+        List<String> keys = new ArrayList<String>();
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(this.root)) {
+            for (Path shard : shards) {
+                if (!Files.isDirectory(shard))
+                    continue;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(shard)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        if (!name.endsWith(TMP_SUFFIX))
+                            keys.add(URLDecoder.decode(name, "UTF-8"));
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Keys are spread over the shard directories by hash, so each page holds
+     * the matching keys of one shard; the encoded prefix is matched on file names.
+     */
+    public Iterator<String> list(String prefix, int pageSize) throws IOException {
+        final String encodedPrefix = URLEncoder.encode(prefix, "UTF-8");
+        final List<Path> shards = new ArrayList<Path>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(this.root)) {
+            for (Path shard : dirs)
+                if (Files.isDirectory(shard))
+                    shards.add(shard);
+        }
+        final Iterator<Path> shardIt = shards.iterator();
+        return new PagedIterator() {
+            protected List<String> nextPage() throws IOException {
+                List<String> keys = new ArrayList<String>();
+                while (keys.isEmpty() && shardIt.hasNext())
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(shardIt.next())) {
+                        for (Path file : files) {
+                            String name = file.getFileName().toString();
+                            if (name.startsWith(encodedPrefix) && !name.endsWith(TMP_SUFFIX))
+                                keys.add(URLDecoder.decode(name, "UTF-8"));
+                        }
+                    } catch (NoSuchFileException e) { }     // shard removed meanwhile
+                return keys.isEmpty() ? null : keys;
+            }
+        }.start();
+    }
+
+    public void shutdown() throws IOException {
+        if (this.syncer != null) {
+            this.syncer.shutdown();
+            this.syncAll();
+        }
+    }
+
+    private Path getPath(String key) throws UnsupportedEncodingException {
+        String shard = String.format("%02x", key.hashCode() & 0xff);
+        return this.root.resolve(shard).resolve(URLEncoder.encode(key, "UTF-8"));
+    }
+
+    private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+            position += read;
+        }
+    }
+
+    /**
+     * Flushes to disk the files written since the last batch.
+     */
+    private void syncAll() {
+        List<Path> batch = new ArrayList<Path>(this.unsynced);
+        this.unsynced.removeAll(batch);
+        for (Path file : batch)
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            } catch (NoSuchFileException e) {
+                // deleted in the meanwhile
+            } catch (IOException e) {
+                logger.warn("Could not sync {} to disk", file, e);
+            }
+        if (!batch.isEmpty())
+            logger.debug("Synced {} files of {} to disk", batch.size(), this.id);
+    }
+}
@@ -18,13 +18,19 @@ package fr.eurecom.hybris.kvs.drivers;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.http.HttpStatus;
+import org.jets3t.service.Jets3tProperties;
 import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
 import org.jets3t.service.impl.rest.httpclient.GoogleStorageService;
 import org.jets3t.service.model.GSObject;
+import org.jets3t.service.model.StorageObject;
 import org.jets3t.service.security.GSCredentials;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +38,7 @@ import org.slf4j.LoggerFactory;
 import com.google.common.io.ByteStreams;
 
 import fr.eurecom.hybris.Config;
+import fr.eurecom.hybris.kvs.BufferPool;
 
 public class GoogleKvs extends Kvs {
 
@@ -41,25 +48,55 @@ public class GoogleKvs extends Kvs {
 
     public GoogleKvs(String id, String accessKey, String secretKey,
             String container, boolean enabled, int cost) throws IOException {
+        this(id, accessKey, secretKey, container, enabled, cost, new TransportConfig());
+    }
+
+    /**
+     * @param transport - the settings of the jets3t HTTP client
+     */
+    public GoogleKvs(String id, String accessKey, String secretKey,
+            String container, boolean enabled, int cost, TransportConfig transport) throws IOException {
         super(id, container, enabled, cost);
+        this.transport = transport;
+
+        Jets3tProperties properties = new Jets3tProperties();
+        if (TransportConfig.isSet(transport.getMaxConnections())) {
+            properties.setProperty("httpclient.max-connections", String.valueOf(transport.getMaxConnections()));
+            properties.setProperty("httpclient.max-connections-per-host", String.valueOf(transport.getMaxConnections()));
+        }
+        if (TransportConfig.isSet(transport.getConnectionTimeout()))
+            properties.setProperty("httpclient.connection-timeout-ms", String.valueOf(transport.getConnectionTimeout()));
+        if (TransportConfig.isSet(transport.getSocketTimeout()))
+            properties.setProperty("httpclient.socket-timeout-ms", String.valueOf(transport.getSocketTimeout()));
+        if (TransportConfig.isSet(transport.getSocketSendBuffer()))
+            properties.setProperty("httpclient.socket-send-buffer", String.valueOf(transport.getSocketSendBuffer()));
+        if (TransportConfig.isSet(transport.getSocketReceiveBuffer()))
+            properties.setProperty("httpclient.socket-receive-buffer", String.valueOf(transport.getSocketReceiveBuffer()));
+        if (TransportConfig.isSet(transport.getMaxRetries()))
+            properties.setProperty("httpclient.retry-max", String.valueOf(transport.getMaxRetries()));
 
         GSCredentials gsCredentials = new GSCredentials(accessKey, secretKey);
         try {
-            this.gsService = new GoogleStorageService(gsCredentials);
+            this.gsService = new GoogleStorageService(gsCredentials, null, null, properties);
         } catch (ServiceException e) {
             logger.error("Could not initialize {} KvStore", id, e);
             throw new IOException(e);
         }
-
-        this.createContainer();
     }
 
     public void put(String key, byte[] value) throws IOException {
+        this.put(key, new ByteArrayInputStream(value), value.length);
+    }
+
+    public void put(String key, ByteBuffer value) throws IOException {
+        this.put(key, new ByteBufferInputStream(value), value.remaining());
+    }
+
+    private void put(String key, InputStream in, long length) throws IOException {
         try {
             GSObject object = new GSObject(key);
-            ByteArrayInputStream in = new ByteArrayInputStream(value);
             object.setDataInputStream(in);
-            object.setContentLength(value.length);
+            object.setContentLength(length);
             this.gsService.putObject(this.rootContainer, object);
         } catch (ServiceException e) {
             throw new IOException(e);
@@ -83,6 +120,73 @@ public class GoogleKvs extends Kvs {
         }
     }
 
+    public byte[] get(String key, long offset, int length) throws IOException {
+        if (length <= 0)
+            return this.get(key) == null ? null : new byte[0];
+        try {
+            GSObject object = this.gsService.getObject(this.rootContainer, key,
+                    null, null, null, null, offset, offset + length - 1);
+            return ByteStreams.toByteArray(object.getDataInputStream());
+        } catch (ServiceException | IOException e) {
+
+            if (e instanceof ServiceException) {
+                ServiceException se = (ServiceException) e;
+                if (se.getResponseCode() == HttpStatus.SC_NOT_FOUND)
+                    return null;
+                if (se.getResponseCode() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE)
+                    return new byte[0];     // offset beyond the end of the object
+            }
+
+            throw new IOException(e);
+        }
+    }
+
+    public ByteBuffer get(String key, BufferPool pool) throws IOException {
+        GSObject object = this.getObject(key);
+        if (object == null)
+            return null;
+        try {
+            long length = object.getContentLength();
+            if (length > Integer.MAX_VALUE) {
+                object.closeDataInputStream();
+                throw new IOException("Value too large: " + length + " B");
+            }
+            ByteBuffer buffer = pool.acquire((int) length);
+            try {
+                return readFully(object.getDataInputStream(), buffer);
+            } catch (IOException e) {
+                pool.release(buffer);
+                throw e;
+            }
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public long get(String key, WritableByteChannel target) throws IOException {
+        GSObject object = this.getObject(key);
+        if (object == null)
+            return -1;
+        try {
+            return copy(object.getDataInputStream(), target);
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the object, whose data stream has to be read and closed, or null if it does not exist
+     */
+    private GSObject getObject(String key) throws IOException {
+        try {
+            return this.gsService.getObject(this.rootContainer, key);
+        } catch (ServiceException e) {
+            if (e.getResponseCode() == HttpStatus.SC_NOT_FOUND)
+                return null;
+            throw new IOException(e);
+        }
+    }
+
     public void delete(String key) throws IOException {
         try {
             this.gsService.deleteObject(this.rootContainer, key);
@@ -112,7 +216,32 @@ public class GoogleKvs extends Kvs {
         }
     }
 
-    private void createContainer() throws IOException {
+    public Iterator<String> list(final String prefix, final int pageSize) throws IOException {
+        return new PagedIterator() {
+            private String priorLastKey = null;
+            private boolean complete = false;
+
+            protected List<String> nextPage() throws IOException {
+                if (this.complete)
+                    return null;
+                StorageObjectsChunk chunk;
+                try {
+                    chunk = GoogleKvs.this.gsService.listObjectsChunked(GoogleKvs.this.rootContainer,
+                            prefix, null, pageSize, this.priorLastKey);
+                } catch (ServiceException e) {
+                    throw new IOException(e);
+                }
+                this.complete = chunk.isListingComplete();
+                this.priorLastKey = chunk.getPriorLastKey();
+                List<String> keys = new ArrayList<String>(chunk.getObjects().length);
+                for (StorageObject obj : chunk.getObjects())
+                    keys.add(obj.getName());
+                return keys;
+            }
+        }.start();
+    }
+
+    protected void createContainer() throws IOException {
         try {
             this.gsService.getOrCreateBucket(this.rootContainer);
         } catch (ServiceException e) {
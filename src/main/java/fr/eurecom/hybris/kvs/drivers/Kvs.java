@@ -15,20 +15,40 @@
  */
 package fr.eurecom.hybris.kvs.drivers;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+
+import fr.eurecom.hybris.kvs.BufferPool;
 
 public class Kvs {
 
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
     protected final String id;
     protected transient boolean enabled;
+    protected transient volatile boolean available = true;  // false while its circuit breaker is open
     protected transient String rootContainer;
 
     /* measures to compare the providers */
-    protected transient long writeLatency;
-    protected transient long readLatency;
+    protected transient volatile long writeLatency;
+    protected transient volatile long readLatency;
     protected transient int cost; // $ cents per GB
+    protected transient int capacity = 1; // relative share of the load it can take
+    protected transient TransportConfig transport = new TransportConfig();
+    private transient volatile boolean containerVerified = false;
 
     /**
      * Static Comparator objects for ordering the Kvs list
@@ -66,22 +86,141 @@ public class Kvs {
     }
 
     public String getId()           { return this.id; }
-    public boolean isEnabled()      { return this.enabled; }
+    public boolean isEnabled()      { return this.enabled && this.available; }
     public void setEnabled(boolean enabled)         { this.enabled = enabled; }
+    public boolean isAvailable()    { return this.available; }
+    public void setAvailable(boolean available)     { this.available = available; }
     public long getWriteLatency()   { return this.writeLatency; }
     public void setWriteLatency(long writeLatency) { this.writeLatency = writeLatency; }
     public long getReadLatency()    { return this.readLatency; }
     public void setReadLatency(long readLatency)    { this.readLatency = readLatency; }
     public int getCost()            { return this.cost; }
     public void setCost(int cost)   { this.cost = cost; }
+    public int getCapacity()        { return this.capacity; }
+    public void setCapacity(int capacity)           { this.capacity = capacity; }
+    public TransportConfig getTransport()           { return this.transport; }
 
     /* APIs */
     public void put(String key, byte[] value) throws IOException { }
     public byte[] get(String key) throws IOException { return null; }
+
+    /**
+     * Reads <length> bytes of the value associated with <key> starting at <offset>.
+     * Drivers not supporting ranged reads fall back to retrieving the whole value.
+     */
+    public byte[] get(String key, long offset, int length) throws IOException {
+        byte[] value = this.get(key);
+        if (value == null)
+            return null;
+        if (offset >= value.length)
+            return new byte[0];
+        return Arrays.copyOfRange(value, (int) offset, (int) Math.min(offset + length, value.length));
+    }
     public List<String> list() throws IOException { return null; }
+
+    /**
+     * Lists lazily the keys starting with <prefix>, fetching them in pages of about <pageSize> keys.
+     * The first page is fetched before returning; failures while fetching the following ones
+     * are thrown by the iterator as ListingException.
+     * Drivers not supporting paginated listings fall back to filtering the whole listing.
+     */
+    public Iterator<String> list(String prefix, int pageSize) throws IOException {
+        final Iterator<String> keys = this.list().iterator();
+        final String keyPrefix = prefix;
+        return new PagedIterator() {
+            protected List<String> nextPage() {
+                List<String> page = new ArrayList<String>();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    if (key.startsWith(keyPrefix))
+                        page.add(key);
+                }
+                return page.isEmpty() ? null : page;
+            }
+        }.start();
+    }
+
+    /* Streaming APIs: drivers override them to avoid materializing values in intermediate arrays */
+
+    /**
+     * Stores the remaining bytes of <value> (its position is left unchanged).
+     */
+    public void put(String key, ByteBuffer value) throws IOException {
+        this.put(key, toArray(value));
+    }
+
+    /**
+     * Reads the value associated with <key> into a buffer taken from <pool>.
+     * @return the buffer holding the value between position 0 and its limit,
+     *          to be released to the pool after use, or null if the key does not exist
+     */
+    public ByteBuffer get(String key, BufferPool pool) throws IOException {
+        byte[] value = this.get(key);
+        if (value == null)
+            return null;
+        ByteBuffer buffer = pool.acquire(value.length);
+        buffer.put(value);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Copies the value associated with <key> to <target>.
+     * @return the number of bytes copied, or -1 if the key does not exist
+     */
+    public long get(String key, WritableByteChannel target) throws IOException {
+        byte[] value = this.get(key);
+        if (value == null)
+            return -1;
+        writeFully(ByteBuffer.wrap(value), target);
+        return value.length;
+    }
     public void delete(String key) throws IOException { }
+
+    /**
+     * Deletes several keys. Drivers supporting batch deletes override it
+     * (and isBulkDeleteNative), the others delete the keys one by one.
+     * @return the keys which could not be deleted
+     */
+    public List<String> deleteAll(Collection<String> keys) throws IOException {
+        List<String> failed = new ArrayList<String>();
+        for (String key : keys)
+            try {
+                this.delete(key);
+            } catch (IOException e) {
+                failed.add(key);
+            }
+        return failed;
+    }
+
+    /**
+     * @return true if deleteAll deletes keys in batches rather than one by one
+     */
+    public boolean isBulkDeleteNative() { return false; }
     public void shutdown() throws IOException { }
 
+    /**
+     * Creates the root container if it does not exist yet.
+     * Drivers do not call it on construction, so that they can be built without any round trip.
+     */
+    protected void createContainer() throws IOException { }
+
+    /**
+     * Creates the root container on the first call, and after failures.
+     */
+    public void verifyContainer() throws IOException {
+        if (this.containerVerified)
+            return;
+        synchronized (this) {
+            if (!this.containerVerified) {
+                this.createContainer();
+                this.containerVerified = true;
+            }
+        }
+    }
+
+    public boolean isContainerVerified()            { return this.containerVerified; }
+
     public boolean equals(Object obj) {
         if (this == obj)
             return true;
@@ -100,10 +239,170 @@ public class Kvs {
         return this.id;
     }
 
+    /* Helpers for the streaming APIs */
+
+    /**
+     * @return the remaining bytes of <buffer>, without copying them if they fill its backing array
+     */
+    protected static byte[] toArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 &&
+                buffer.remaining() == buffer.array().length)
+            return buffer.array();
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+    /**
+     * Reads <in> into the remaining space of <buffer>.
+     * @return the buffer, flipped
+     */
+    protected static ByteBuffer readFully(InputStream in, ByteBuffer buffer) throws IOException {
+        try {
+            while (buffer.hasRemaining()) {
+                int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (read < 0)
+                    throw new EOFException("Value shorter than its content length");
+                buffer.position(buffer.position() + read);
+            }
+        } finally {
+            in.close();
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Copies <in> to <target>.
+     * @return the number of bytes copied
+     */
+    protected static long copy(InputStream in, WritableByteChannel target) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        long copied = 0;
+        try {
+            while (source.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                copied += target.write(buffer);
+                buffer.compact();
+            }
+        } finally {
+            source.close();
+        }
+        return copied;
+    }
+
+    protected static void writeFully(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+        while (buffer.hasRemaining())
+            target.write(buffer);
+    }
+
+    /**
+     * Iterator over a listing fetched page by page from a provider.
+     */
+    protected static abstract class PagedIterator implements Iterator<String> {
+
+        private Iterator<String> page = Collections.<String>emptyIterator();
+        private boolean done = false;
+
+        /**
+         * @return the next page of keys, or null if the listing is over
+         */
+        protected abstract List<String> nextPage() throws IOException;
+
+        /**
+         * Fetches the first page, so that listing failures are reported to the caller.
+         */
+        protected Iterator<String> start() throws IOException {
+            this.advance();
+            return this;
+        }
+
+        private boolean advance() throws IOException {
+            while (!this.page.hasNext()) {
+                if (this.done)
+                    return false;
+                List<String> keys = this.nextPage();
+                if (keys == null) {
+                    this.done = true;
+                    return false;
+                }
+                this.page = keys.iterator();
+            }
+            return true;
+        }
+
+        public boolean hasNext() {
+            try {
+                return this.advance();
+            } catch (IOException e) {
+                throw new ListingException(e);
+            }
+        }
+
+        public String next() {
+            if (!this.hasNext())
+                throw new NoSuchElementException();
+            return this.page.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Failure while fetching a page of a lazy listing.
+     */
+    public static class ListingException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ListingException(IOException cause) {
+            super(cause);
+        }
+
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * InputStream over the remaining bytes of a ByteBuffer, for SDKs taking streams.
+     */
+    protected static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!this.buffer.hasRemaining())
+                return -1;
+            len = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, len);
+            return len;
+        }
+
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+
     public String toVerboseString() {
         return "Kvs (" + this.id + ") [enabled=" + this.enabled +
+                ", available=" + this.available +
                 ", writeLatency=" + this.writeLatency +
                 ", readLatency=" + this.readLatency +
-                ", cost=" + this.cost + "]";
+                ", cost=" + this.cost +
+                ", capacity=" + this.capacity + "]";
     }
 }
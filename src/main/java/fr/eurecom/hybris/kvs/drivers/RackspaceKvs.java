@@ -16,52 +16,93 @@
 package fr.eurecom.hybris.kvs.drivers;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Properties;
 
+import org.jclouds.Constants;
 import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.BlobStores;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.GetOptions;
 import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.http.HttpResponseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.io.ByteStreams;
 
 import fr.eurecom.hybris.Config;
+import fr.eurecom.hybris.kvs.BufferPool;
 
 public class RackspaceKvs extends Kvs {
 
     private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
 
     private final static String rackspaceId = "cloudfiles-uk";
+    private final static String PROPERTY_MPU_PART_SIZE = "jclouds.mpu.parts.size";
     private transient final BlobStore blobStore;
 
     public RackspaceKvs(String id, String accessKey, String secretKey,
             String container, boolean enabled, int cost) throws IOException {
+        this(id, accessKey, secretKey, container, enabled, cost, new TransportConfig());
+    }
+
+    /**
+     * @param transport - the settings of the jclouds HTTP client (socket buffers are not configurable)
+     */
+    public RackspaceKvs(String id, String accessKey, String secretKey,
+            String container, boolean enabled, int cost, TransportConfig transport) throws IOException {
         super(id, container, enabled, cost);
+        this.transport = transport;
+
+        Properties overrides = new Properties();
+        if (TransportConfig.isSet(transport.getMaxConnections())) {
+            overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_CONTEXT, String.valueOf(transport.getMaxConnections()));
+            overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_HOST, String.valueOf(transport.getMaxConnections()));
+        }
+        if (TransportConfig.isSet(transport.getMaxConcurrentRequests()))
+            overrides.setProperty(Constants.PROPERTY_USER_THREADS, String.valueOf(transport.getMaxConcurrentRequests()));
+        if (TransportConfig.isSet(transport.getConnectionTimeout()))
+            overrides.setProperty(Constants.PROPERTY_CONNECTION_TIMEOUT, String.valueOf(transport.getConnectionTimeout()));
+        if (TransportConfig.isSet(transport.getSocketTimeout()))
+            overrides.setProperty(Constants.PROPERTY_SO_TIMEOUT, String.valueOf(transport.getSocketTimeout()));
+        if (TransportConfig.isSet(transport.getMaxRetries()))
+            overrides.setProperty(Constants.PROPERTY_MAX_RETRIES, String.valueOf(transport.getMaxRetries()));
+        overrides.setProperty(PROPERTY_MPU_PART_SIZE, String.valueOf(transport.getPartSize()));
 
         try {
             BlobStoreContext context = ContextBuilder.newBuilder(rackspaceId)
                     .credentials(accessKey, secretKey)
+                    .overrides(overrides)
                     .buildView(BlobStoreContext.class);
             this.blobStore = context.getBlobStore();
         } catch (NoSuchElementException e) {
             logger.error("Could not initialize {} KvStore", id, e);
             throw new IOException(e);
         }
+    }
 
-        this.createContainer();
+    /**
+     * @return multipart upload options for values larger than the multipart threshold
+     */
+    private PutOptions putOptions(long length) {
+        return length >= this.transport.getMultipartThreshold() ? PutOptions.Builder.multipart() : PutOptions.NONE;
     }
 
     public void put(String key, byte[] value) throws IOException {
         try {
             Blob blob = this.blobStore.blobBuilder(key).payload(value).build();
-            this.blobStore.putBlob(this.rootContainer, blob);
+            this.blobStore.putBlob(this.rootContainer, blob, this.putOptions(value.length));
         } catch (Exception e) {
             throw new IOException(e);
         }
@@ -78,6 +119,71 @@ public class RackspaceKvs extends Kvs {
         }
     }
 
+    public byte[] get(String key, long offset, int length) throws IOException {
+        if (length <= 0)
+            return this.get(key) == null ? null : new byte[0];
+        try {
+            Blob blob = this.blobStore.getBlob(this.rootContainer, key,
+                    GetOptions.Builder.range(offset, offset + length - 1));
+            if (blob == null)
+                return null;
+            return ByteStreams.toByteArray(blob.getPayload().openStream());
+        } catch (HttpResponseException e) {
+            if (e.getResponse() != null && e.getResponse().getStatusCode() == 416)
+                return new byte[0];     // offset beyond the end of the object
+            throw new IOException(e);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    public void put(String key, ByteBuffer value) throws IOException {
+        try {
+            Blob blob = this.blobStore.blobBuilder(key)
+                    .payload(new ByteBufferInputStream(value))
+                    .contentLength(value.remaining()).build();
+            this.blobStore.putBlob(this.rootContainer, blob, this.putOptions(value.remaining()));
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    public ByteBuffer get(String key, BufferPool pool) throws IOException {
+        try {
+            Blob blob = this.blobStore.getBlob(this.rootContainer, key);
+            if (blob == null)
+                return null;
+            Long length = blob.getMetadata().getContentMetadata().getContentLength();
+            if (length == null || length > Integer.MAX_VALUE) {     // unknown length: read it whole
+                byte[] value = ByteStreams.toByteArray(blob.getPayload().openStream());
+                ByteBuffer buffer = pool.acquire(value.length);
+                buffer.put(value);
+                buffer.flip();
+                return buffer;
+            }
+            ByteBuffer buffer = pool.acquire(length.intValue());
+            try {
+                return readFully(blob.getPayload().openStream(), buffer);
+            } catch (IOException e) {
+                pool.release(buffer);
+                throw e;
+            }
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    public long get(String key, WritableByteChannel target) throws IOException {
+        try {
+            Blob blob = this.blobStore.getBlob(this.rootContainer, key);
+            if (blob == null)
+                return -1;
+            return copy(blob.getPayload().openStream(), target);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
     public void delete(String key) throws IOException {
         try {
             this.blobStore.removeBlob(this.rootContainer, key);
@@ -100,7 +206,39 @@ public class RackspaceKvs extends Kvs {
         }
     }
 
-    private void createContainer() throws IOException {
+    /**
+     * The jclouds listing options do not support prefixes,
+     * so keys are filtered page by page as they are fetched.
+     */
+    public Iterator<String> list(final String prefix, final int pageSize) throws IOException {
+        return new PagedIterator() {
+            private String marker = null;
+            private boolean complete = false;
+
+            protected List<String> nextPage() throws IOException {
+                List<String> keys = new ArrayList<String>();
+                while (keys.isEmpty() && !this.complete) {
+                    ListContainerOptions options = ListContainerOptions.Builder.maxResults(pageSize);
+                    if (this.marker != null)
+                        options = options.afterMarker(this.marker);
+                    PageSet<? extends StorageMetadata> page;
+                    try {
+                        page = RackspaceKvs.this.blobStore.list(RackspaceKvs.this.rootContainer, options);
+                    } catch (Exception ex) {
+                        throw new IOException(ex);
+                    }
+                    for (StorageMetadata resourceMd : page)
+                        if (resourceMd.getName().startsWith(prefix))
+                            keys.add(resourceMd.getName());
+                    this.marker = page.getNextMarker();
+                    this.complete = this.marker == null;
+                }
+                return keys.isEmpty() ? null : keys;
+            }
+        }.start();
+    }
+
+    protected void createContainer() throws IOException {
         try {
             this.blobStore.createContainerInLocation(null, this.rootContainer);
         } catch (Exception ex) {
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs.drivers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory Kvs simulating a remote cloud store, for reproducible benchmarks and tests:
+ * each request takes a log-normally distributed time (plus the transfer time, if the bandwidth is capped),
+ * fails with a given probability, and fails or hangs during the configured outage windows.
+ * Random draws come from a seeded generator, hence a single-threaded workload is replayed identically.
+ */
+public class SimulatedKvs extends Kvs {
+
+    private transient final Map<String, byte[]> hashMap;
+    private transient final Random random;
+    private transient final long startTime;     // [ms], outage windows are relative to it
+
+    private transient volatile double medianLatency = 0;    // [ms]
+    private transient volatile double sigma = 0;            // shape of the latency distribution, 0 for constant latency
+    private transient volatile long bandwidth = 0;          // [B/s], 0 for unlimited
+    private transient volatile double errorRate = 0;        // in [0, 1]
+    private transient final List<Outage> outages;
+
+    private static class Outage {
+        private final long start, end;  // [ms] since the creation of the Kvs
+        private final boolean hang;     // whether requests block until the end of the outage, or fail
+
+        private Outage(long start, long end, boolean hang) {
+            this.start = start;
+            this.end = end;
+            this.hang = hang;
+        }
+    }
+
+    public SimulatedKvs(String id, String container, boolean enabled, int cost, long seed) {
+        super(id, container, enabled, cost);
+        this.hashMap = new ConcurrentHashMap<String, byte[]>();
+        this.random = new Random(seed);
+        this.startTime = System.currentTimeMillis();
+        this.outages = new ArrayList<Outage>();
+    }
+
+    /**
+     * @param median - median latency of a request [ms]
+     * @param sigma - standard deviation of the log of the latency (0 for constant latency)
+     */
+    public void setLatency(double median, double sigma) {
+        this.medianLatency = median;
+        this.sigma = sigma;
+    }
+
+    /**
+     * @param bandwidth - transfer rate cap [B/s], 0 for unlimited
+     */
+    public void setBandwidth(long bandwidth)    { this.bandwidth = bandwidth; }
+
+    /**
+     * @param errorRate - probability of a request to fail, in [0, 1]
+     */
+    public void setErrorRate(double errorRate)  { this.errorRate = errorRate; }
+
+    /**
+     * Makes the Kvs unavailable in the given time window.
+     * @param start - [ms] since the creation of the Kvs
+     * @param end - [ms] since the creation of the Kvs
+     * @param hang - if true, requests block until the end of the outage, otherwise they fail immediately
+     */
+    public synchronized void addOutage(long start, long end, boolean hang) {
+        this.outages.add(new Outage(start, end, hang));
+    }
+
+    public void put(String key, byte[] value) throws IOException {
+        this.simulate(value.length);
+        this.hashMap.put(key, value);
+    }
+
+    public byte[] get(String key) throws IOException {
+        byte[] value = this.hashMap.get(key);
+        this.simulate(value == null ? 0 : value.length);
+        return value;
+    }
+
+    public byte[] get(String key, long offset, int length) throws IOException {
+        byte[] value = this.hashMap.get(key);
+        if (value == null) {
+            this.simulate(0);
+            return null;
+        }
+        int end = (int) Math.min(offset + length, value.length);
+        this.simulate(Math.max(0, end - offset));
+        return offset >= value.length ? new byte[0] : Arrays.copyOfRange(value, (int) offset, end);
+    }
+
+    public void delete(String key) throws IOException {
+        this.simulate(0);
+        this.hashMap.remove(key);
+    }
+
+    public List<String> list() throws IOException {
+        this.simulate(0);
+        return new ArrayList<String>(this.hashMap.keySet());
+    }
+
+    public String toVerboseString() {
+        return "SimulatedKvs (" + this.id + ") [latency=" + this.medianLatency + " ms, sigma=" + this.sigma +
+                ", bandwidth=" + this.bandwidth + " B/s, errorRate=" + this.errorRate +
+                ", outages=" + this.outages.size() + "]";
+    }
+
+    /**
+     * Delays the calling thread as a request transferring <size> bytes would,
+     * and throws an exception if the request is to fail.
+     */
+    private void simulate(long size) throws IOException {
+
+        Outage outage = this.getOutage(System.currentTimeMillis() - this.startTime);
+        if (outage != null) {
+            if (!outage.hang)
+                throw new IOException("Simulated outage of " + this.id);
+            sleep(this.startTime + outage.end - System.currentTimeMillis());
+        }
+
+        double gaussian, uniform;
+        synchronized (this.random) {
+            gaussian = this.random.nextGaussian();
+            uniform = this.random.nextDouble();
+        }
+        double latency = this.medianLatency * Math.exp(this.sigma * gaussian);
+        if (this.bandwidth > 0)
+            latency += 1000.0 * size / this.bandwidth;
+        sleep(Math.round(latency));
+
+        if (uniform < this.errorRate)
+            throw new IOException("Simulated failure of " + this.id);
+    }
+
+    private synchronized Outage getOutage(long time) {
+        for (Outage outage : this.outages)
+            if (time >= outage.start && time < outage.end)
+                return outage;
+        return null;
+    }
+
+    private static void sleep(long millis) throws IOException {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package fr.eurecom.hybris.kvs.drivers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -38,6 +39,15 @@ public class TransientKvs extends Kvs {
         return this.hashMap.get(key);
     }
 
+    public byte[] get(String key, long offset, int length) {
+        byte[] value = this.hashMap.get(key);
+        if (value == null)
+            return null;
+        if (offset >= value.length)
+            return new byte[0];
+        return Arrays.copyOfRange(value, (int) offset, (int) Math.min(offset + Math.max(0, length), value.length));
+    }
+
     public void delete(String key) {
         this.hashMap.remove(key);
     }
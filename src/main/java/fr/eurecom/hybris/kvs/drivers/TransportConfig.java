@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs.drivers;
+
+/**
+ * Transport settings of the SDK client of a Kvs.
+ * Settings left unset (negative) keep the SDK defaults;
+ * each driver applies the ones its SDK supports.
+ */
+public class TransportConfig {
+
+    public static final int UNSET = -1;
+    public static final int DEFAULT_MULTIPART_THRESHOLD = 30000000;    // 30 MB
+    public static final int DEFAULT_PART_SIZE = 10000000;              // 10 MB
+    public static final int DEFAULT_PARALLEL_PARTS = 4;
+
+    private int maxConnections = UNSET;          // HTTP connection pool size
+    private int maxConcurrentRequests = UNSET;  // parallel requests issued for a single operation
+    private int connectionTimeout = UNSET;      // [ms]
+    private int socketTimeout = UNSET;          // [ms]
+    private int socketSendBuffer = UNSET;       // [B]
+    private int socketReceiveBuffer = UNSET;    // [B]
+    private int maxRetries = UNSET;
+    private int multipartThreshold = UNSET;     // [B] size from which values are transferred in parts
+    private int partSize = UNSET;               // [B]
+
+    public static boolean isSet(int value)          { return value >= 0; }
+
+    public int getMaxConnections()                  { return this.maxConnections; }
+    public int getMaxConcurrentRequests()           { return this.maxConcurrentRequests; }
+    public int getConnectionTimeout()               { return this.connectionTimeout; }
+    public int getSocketTimeout()                   { return this.socketTimeout; }
+    public int getSocketSendBuffer()                { return this.socketSendBuffer; }
+    public int getSocketReceiveBuffer()             { return this.socketReceiveBuffer; }
+    public int getMaxRetries()                      { return this.maxRetries; }
+
+    public int getMultipartThreshold() {
+        return isSet(this.multipartThreshold) ? this.multipartThreshold : DEFAULT_MULTIPART_THRESHOLD;
+    }
+    public int getPartSize() {
+        return isSet(this.partSize) && this.partSize > 0 ? this.partSize : DEFAULT_PART_SIZE;
+    }
+    /**
+     * @return the number of parts of a value transferred at once
+     */
+    public int getParallelParts() {
+        return isSet(this.maxConcurrentRequests) && this.maxConcurrentRequests > 0 ?
+                this.maxConcurrentRequests : DEFAULT_PARALLEL_PARTS;
+    }
+
+    public void setMaxConnections(int maxConnections)               { this.maxConnections = maxConnections; }
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) { this.maxConcurrentRequests = maxConcurrentRequests; }
+    public void setConnectionTimeout(int connectionTimeout)         { this.connectionTimeout = connectionTimeout; }
+    public void setSocketTimeout(int socketTimeout)                 { this.socketTimeout = socketTimeout; }
+    public void setSocketSendBuffer(int socketSendBuffer)           { this.socketSendBuffer = socketSendBuffer; }
+    public void setSocketReceiveBuffer(int socketReceiveBuffer)     { this.socketReceiveBuffer = socketReceiveBuffer; }
+    public void setMaxRetries(int maxRetries)                       { this.maxRetries = maxRetries; }
+    public void setMultipartThreshold(int multipartThreshold)       { this.multipartThreshold = multipartThreshold; }
+    public void setPartSize(int partSize)                           { this.partSize = partSize; }
+
+    public String toString() {
+        return "TransportConfig [maxConnections=" + this.maxConnections +
+                ", maxConcurrentRequests=" + this.maxConcurrentRequests +
+                ", connectionTimeout=" + this.connectionTimeout +
+                ", socketTimeout=" + this.socketTimeout +
+                ", socketSendBuffer=" + this.socketSendBuffer +
+                ", socketReceiveBuffer=" + this.socketReceiveBuffer +
+                ", maxRetries=" + this.maxRetries +
+                ", multipartThreshold=" + this.multipartThreshold +
+                ", partSize=" + this.partSize + "]";
+    }
+}
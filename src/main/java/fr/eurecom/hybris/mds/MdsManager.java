@@ -17,19 +17,29 @@ package fr.eurecom.hybris.mds;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
 import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
@@ -58,9 +68,45 @@ public class MdsManager implements ConnectionStateListener {
      */
     public static int NONODE = -1;
 
+    /* Max number of znode writes committed by a single ZooKeeper transaction. */
+    private static final int MULTI_BATCH_SIZE = 200;
+
+    /* Max time to wait for the completion of pipelined reads [s] */
+    private static final int ASYNC_READ_TIMEOUT = 60;
+
+    /**
+     * Outcome of a timestamped write.
+     */
+    public enum WriteOutcome { CREATED, OVERWRITTEN, CONFLICT };
+
+    /**
+     * Callback notified upon completion of asynchronous reads.
+     */
+    public interface ReadCallback {
+        /**
+         * @param key
+         * @param md - the metadata read, or null if the key does not exist
+         * @param stat - the Stat Zookeeper object of the znode, or null if the key does not exist
+         */
+        void onRead(String key, Metadata md, Stat stat);
+        void onError(String key, HybrisException e);
+    }
+
+    /**
+     * Callback notified upon completion of asynchronous writes.
+     */
+    public interface WriteCallback {
+        void onWrite(String key, WriteOutcome outcome);
+        void onError(String key, HybrisException e);
+    }
+
     private final String gcRoot;
     private final String gcStaleDir;
     private final String gcOrphansDir;
+    private final String gcPacksDir;
+    private final String pendingRoot;   // chunks still being uploaded in background
+    private final String kvsRegistryPath;   // numeric ids of the Kvs instances
+    private final String latencyRoot;   // Kvs latency summaries published by the clients
 
     enum GcType { STALE, ORPHAN };
 
@@ -77,6 +123,10 @@ public class MdsManager implements ConnectionStateListener {
         this.gcRoot = this.storageRoot + "-gc";
         this.gcStaleDir = this.gcRoot + "/stale";
         this.gcOrphansDir = this.gcRoot + "/orphans";
+        this.gcPacksDir = this.gcRoot + "/packs";
+        this.pendingRoot = this.storageRoot + "-pending";
+        this.kvsRegistryPath = this.storageRoot + "-kvs";
+        this.latencyRoot = this.storageRoot + "-latency";
 
         try {
             RetryPolicy retryPolicy = new ExponentialBackoffRetry(1000, 3);
@@ -85,7 +135,8 @@ public class MdsManager implements ConnectionStateListener {
             this.zkCli.start();
 
             for (String dir : new String[]{ this.storageRoot, this.gcRoot,
-                    this.gcStaleDir, this.gcOrphansDir })
+                    this.gcStaleDir, this.gcOrphansDir, this.gcPacksDir, this.pendingRoot,
+                    this.latencyRoot })
                 try {
                     this.zkCli.create().forPath(dir);
                     logger.debug("Created {}.", dir);
@@ -107,6 +158,39 @@ public class MdsManager implements ConnectionStateListener {
     }
 
 
+    /**
+     * Translates the results of background getData operations
+     * (having the key as context) into ReadCallback notifications.
+     */
+    private class ReadNotifier implements BackgroundCallback {
+
+        private final ReadCallback callback;
+
+        private ReadNotifier(ReadCallback callback) {
+            this.callback = callback;
+        }
+
+        public void processResult(CuratorFramework client, CuratorEvent event) {
+            String key = (String) event.getContext();
+            KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+            if (code == KeeperException.Code.OK)
+                try {
+                    this.callback.onRead(key, new Metadata(event.getData()), event.getStat());
+                } catch (RuntimeException e) {
+                    logger.error("Could not deserialize ZNode " + event.getPath(), e);
+                    this.callback.onError(key, new HybrisException("Could not deserialize the ZNode " + event.getPath(), e));
+                }
+            else if (code == KeeperException.Code.NONODE)
+                this.callback.onRead(key, null, null);
+            else {
+                logger.error("Could not read ZNode {}: {}", event.getPath(), code);
+                this.callback.onError(key, new HybrisException("Could not read the ZNode " + event.getPath(),
+                        KeeperException.create(code, event.getPath())));
+            }
+        }
+    }
+
+
     /**
      * Worker thread class in charge of marking stale and orphan keys.
      */
@@ -155,11 +239,16 @@ public class MdsManager implements ConnectionStateListener {
                     path = MdsManager.this.gcOrphansDir + "/" + Utils.getKvsKey(this.key, this.ts);
                     byte[] value = new Metadata(this.ts, null, null, 0, this.keylist, this.replicas, null).serialize();
                     try {
-                        MdsManager.this.zkCli.create().forPath(path, value);
+                        try {
+                            MdsManager.this.zkCli.create().forPath(path, value);
+                        } catch (KeeperException e) {
+                            if (e.code() != KeeperException.Code.NODEEXISTS)
+                                throw e;
+                            // other chunks of the same version already marked (e.g. late uploads)
+                            path = MdsManager.this.zkCli.create().withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+                                                        .forPath(path + "-", value);
+                        }
                         logger.debug("GcMarker: marked {} as orphan", path);
-                    } catch (KeeperException e){
-                        if (e.code() != KeeperException.Code.NODEEXISTS)
-                            logger.warn("GcMarker: could not create orphan node " + path, e);
                     } catch (Exception e) {
                         logger.warn("GcMarker: could not create orphan node " + path, e);
                     }
@@ -182,17 +271,32 @@ public class MdsManager implements ConnectionStateListener {
      * @throws HybrisException
      */
     public boolean tsWrite(String key, Metadata md, int zkVersion) throws HybrisException {
+        return this.tsConditionalWrite(key, md, zkVersion) == WriteOutcome.OVERWRITTEN;
+    }
+
+
+    /**
+     * Timestamped write on metadata storage, reporting whether it conflicted with a greater version.
+     * @param key - the key
+     * @param md - the metadata to be written
+     * @param zkVersion - the znode version expected to be overwritten; -1 when the znode does not exist
+     * @return CREATED if a new znode has been created,
+     *          OVERWRITTEN if a znode has been modified and stale old values need to be garbage-collected,
+     *          CONFLICT if a greater version has been written concurrently
+     * @throws HybrisException
+     */
+    public WriteOutcome tsConditionalWrite(String key, Metadata md, int zkVersion) throws HybrisException {
 
         String path = this.storageRoot + "/" + key;
         try {
             if (zkVersion == NONODE){
                 this.zkCli.create().forPath(path, md.serialize());
                 logger.debug("ZNode {} created.", path);
-                return false;
+                return WriteOutcome.CREATED;
             } else {
                 this.zkCli.setData().withVersion(zkVersion).forPath(path, md.serialize());
                 logger.debug("ZNode {} modified.", path);
-                return true;
+                return WriteOutcome.OVERWRITTEN;
             }
         } catch (KeeperException e) {       // NONODE exception should not happen since we set a tombstone value upon deletion
 
@@ -210,10 +314,10 @@ public class MdsManager implements ConnectionStateListener {
                 Metadata newmd = new Metadata(newValue);
                 if (md.getTs().isGreater(newmd.getTs())) {
                     logger.debug("Found smaller version ({}) writing {}: retrying.", newmd.getTs(), key);
-                    return this.tsWrite(key, md, stat.getVersion());
+                    return this.tsConditionalWrite(key, md, stat.getVersion());
                 } else {
                     logger.warn("Found greater version ({}) writing {}: failing.", newmd.getTs(), key);
-                    return false;   // XXX
+                    return WriteOutcome.CONFLICT;   // XXX
                     // throw new HybrisException("KeeperException, could not write the key.", e);
                 }
 
@@ -229,6 +333,62 @@ public class MdsManager implements ConnectionStateListener {
     }
 
 
+    /**
+     * Timestamped write of several keys, committed by as few ZooKeeper transactions as possible.
+     * A transaction is atomic, so if any of its writes fails because of a concurrent update
+     * the keys of that transaction are written one by one.
+     * @param mdMap - the metadata to be written, by key
+     * @param zkVersions - the znode version expected to be overwritten for each key; -1 when the znode does not exist
+     * @return the outcome of the write of each key
+     * @throws HybrisException
+     */
+    public Map<String, WriteOutcome> tsMultiWrite(Map<String, Metadata> mdMap,
+            Map<String, Integer> zkVersions) throws HybrisException {
+
+        Map<String, WriteOutcome> outcomes = new HashMap<String, WriteOutcome>();
+        List<String> keys = new ArrayList<String>(mdMap.keySet());
+        for (int from = 0; from < keys.size(); from += MULTI_BATCH_SIZE) {
+
+            List<String> batch = keys.subList(from, Math.min(from + MULTI_BATCH_SIZE, keys.size()));
+            try {
+                CuratorTransaction tx = this.zkCli.inTransaction();
+                CuratorTransactionFinal txFinal = null;
+                for (String key : batch) {
+                    String path = this.storageRoot + "/" + key;
+                    int zkVersion = zkVersions.get(key);
+                    if (zkVersion == NONODE)
+                        txFinal = tx.create().forPath(path, mdMap.get(key).serialize()).and();
+                    else
+                        txFinal = tx.setData().withVersion(zkVersion).forPath(path, mdMap.get(key).serialize()).and();
+                    tx = txFinal;
+                }
+                txFinal.commit();
+                logger.debug("Committed {} ZNodes in one transaction.", batch.size());
+
+                for (String key : batch)
+                    outcomes.put(key, zkVersions.get(key) == NONODE ?
+                            WriteOutcome.CREATED : WriteOutcome.OVERWRITTEN);
+            } catch (KeeperException e) {
+
+                if (e.code() == KeeperException.Code.NODEEXISTS ||
+                        e.code() == KeeperException.Code.BADVERSION) {
+                    logger.debug("Concurrent update within a transaction of {} ZNodes: writing them one by one.", batch.size());
+                    for (String key : batch)
+                        outcomes.put(key, this.tsConditionalWrite(key, mdMap.get(key), zkVersions.get(key)));
+                } else {
+                    logger.error("Could not commit the transaction writing " + batch, e);
+                    throw new HybrisException("Could not commit the transaction writing " + batch, e);
+                }
+
+            } catch (Exception e) {
+                logger.error("Could not commit the transaction writing " + batch, e);
+                throw new HybrisException("Could not commit the transaction writing " + batch + ": " + e.getMessage(), e);
+            }
+        }
+        return outcomes;
+    }
+
+
     /**
      * Timestamped read ("slow read" in ZooKeeper parlance) from metadata storage.
      * @param key the key to read
@@ -294,6 +454,181 @@ public class MdsManager implements ConnectionStateListener {
     }
 
 
+    /**
+     * Timestamped read of several keys: a single sync with the ZooKeeper leader
+     * is followed by the pipelined reads of all the keys.
+     * @param keys the keys to read
+     * @param stats map to be filled with the Stat Zookeeper object of each existing znode (can be null)
+     * @return map of the Metadata objects of the existing keys
+     * @throws HybrisException
+     */
+    public Map<String, Metadata> tsMultiRead(Collection<String> keys, Map<String, Stat> stats) throws HybrisException {
+
+        final Map<String, Metadata> mdMap = new ConcurrentHashMap<String, Metadata>();
+        final Map<String, Stat> statMap = new ConcurrentHashMap<String, Stat>();
+        final List<HybrisException> errors = new ArrayList<HybrisException>(1);
+        final CountDownLatch latch = new CountDownLatch(keys.size());
+
+        this.tsMultiRead(keys, new ReadCallback() {
+            public void onRead(String key, Metadata md, Stat stat) {
+                if (md != null) {
+                    mdMap.put(key, md);
+                    statMap.put(key, stat);
+                }
+                latch.countDown();
+            }
+            public void onError(String key, HybrisException e) {
+                synchronized (errors) {
+                    errors.add(e);
+                }
+                latch.countDown();
+            }
+        });
+
+        try {
+            if (!latch.await(ASYNC_READ_TIMEOUT, TimeUnit.SECONDS))
+                throw new HybrisException("Timeout while reading " + keys.size() + " ZNodes");
+        } catch (InterruptedException e) {
+            throw new HybrisException(e);
+        }
+        if (!errors.isEmpty())
+            throw errors.get(0);
+
+        if (stats != null)
+            stats.putAll(statMap);
+        return new HashMap<String, Metadata>(mdMap);
+    }
+
+
+    /**
+     * Asynchronous timestamped read of several keys: a single sync with the ZooKeeper leader
+     * is followed by the pipelined reads of all the keys, whose results are notified
+     * to the callback (from ZooKeeper event thread) as soon as they are available.
+     * @param keys the keys to read
+     * @param callback the callback notified once for each key
+     * @throws HybrisException
+     */
+    public void tsMultiRead(Collection<String> keys, final ReadCallback callback) throws HybrisException {
+
+        try {
+            this.zkCli.sync().forPath(this.storageRoot);
+        } catch (Exception e) {
+            logger.error("Could not sync ZNode " + this.storageRoot, e);
+            throw new HybrisException("Could not sync the ZNode " + this.storageRoot + e.getMessage(), e);
+        }
+
+        BackgroundCallback bgCallback = new ReadNotifier(callback);
+        for (String key : keys) {
+            String path = this.storageRoot + "/" + key;
+            try {
+                this.zkCli.getData().inBackground(bgCallback, key).forPath(path);
+            } catch (Exception e) {
+                logger.error("Could not read ZNode " + path, e);
+                callback.onError(key, new HybrisException("Could not read the ZNode " + path + e.getMessage(), e));
+            }
+        }
+    }
+
+
+    /**
+     * Asynchronous timestamped read: both the sync with the ZooKeeper leader
+     * and the read are performed in background.
+     * @param key the key to read
+     * @param callback the callback to be notified
+     * @param executor the executor running the callback
+     */
+    public void tsReadAsync(final String key, final ReadCallback callback, final Executor executor) {
+
+        final String path = this.storageRoot + "/" + key;
+        final BackgroundCallback readCallback = new ReadNotifier(callback);
+        try {
+            this.zkCli.sync().inBackground(new BackgroundCallback() {
+                public void processResult(CuratorFramework client, CuratorEvent event) {
+                    try {
+                        client.getData().inBackground(readCallback, key, executor).forPath(path);
+                    } catch (Exception e) {
+                        logger.error("Could not read ZNode " + path, e);
+                        callback.onError(key, new HybrisException("Could not read the ZNode " + path + e.getMessage(), e));
+                    }
+                }
+            }, executor).forPath(path);
+        } catch (Exception e) {
+            logger.error("Could not sync ZNode " + path, e);
+            callback.onError(key, new HybrisException("Could not sync the ZNode " + path + e.getMessage(), e));
+        }
+    }
+
+
+    /**
+     * Asynchronous timestamped write.
+     * Concurrent updates are resolved as in tsConditionalWrite, by asynchronous reads and retries.
+     * @param key - the key
+     * @param md - the metadata to be written
+     * @param zkVersion - the znode version expected to be overwritten; -1 when the znode does not exist
+     * @param callback the callback to be notified
+     * @param executor the executor running the callback
+     */
+    public void tsWriteAsync(final String key, final Metadata md, final int zkVersion,
+            final WriteCallback callback, final Executor executor) {
+
+        final String path = this.storageRoot + "/" + key;
+        final BackgroundCallback retryCallback = new BackgroundCallback() {
+            public void processResult(CuratorFramework client, CuratorEvent event) {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code != KeeperException.Code.OK) {
+                    logger.error("Could not read ZNode {}: {}", path, code);
+                    callback.onError(key, new HybrisException("Could not read the ZNode " + path,
+                            KeeperException.create(code, path)));
+                    return;
+                }
+                try {
+                    Metadata newmd = new Metadata(event.getData());
+                    if (md.getTs().isGreater(newmd.getTs())) {
+                        logger.debug("Found smaller version ({}) writing {}: retrying.", newmd.getTs(), key);
+                        MdsManager.this.tsWriteAsync(key, md, event.getStat().getVersion(), callback, executor);
+                    } else {
+                        logger.warn("Found greater version ({}) writing {}: failing.", newmd.getTs(), key);
+                        callback.onWrite(key, WriteOutcome.CONFLICT);
+                    }
+                } catch (RuntimeException e) {   // e.g. malformed metadata: the write must not be left pending
+                    logger.error("Could not handle ZNode " + path, e);
+                    callback.onError(key, new HybrisException("Could not handle the ZNode " + path + ": " + e.getMessage(), e));
+                }
+            }
+        };
+        BackgroundCallback bgCallback = new BackgroundCallback() {
+            public void processResult(CuratorFramework client, CuratorEvent event) {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code == KeeperException.Code.OK) {
+                    logger.debug("ZNode {} written.", path);
+                    callback.onWrite(key, zkVersion == NONODE ? WriteOutcome.CREATED : WriteOutcome.OVERWRITTEN);
+                } else if (code == KeeperException.Code.NODEEXISTS || code == KeeperException.Code.BADVERSION)
+                    try {                   // multiple clients tried to create or modify the same znode concurrently
+                        client.getData().inBackground(retryCallback, executor).forPath(path);
+                    } catch (Exception e) {
+                        logger.error("Could not read ZNode " + path, e);
+                        callback.onError(key, new HybrisException("Could not read the ZNode " + path + ": " + e.getMessage(), e));
+                    }
+                else {
+                    logger.error("Could not write ZNode {}: {}", path, code);
+                    callback.onError(key, new HybrisException("Could not write the ZNode " + path,
+                            KeeperException.create(code, path)));
+                }
+            }
+        };
+
+        try {
+            if (zkVersion == NONODE)
+                this.zkCli.create().inBackground(bgCallback, executor).forPath(path, md.serialize());
+            else
+                this.zkCli.setData().withVersion(zkVersion).inBackground(bgCallback, executor).forPath(path, md.serialize());
+        } catch (Exception e) {
+            logger.error("Could not write ZNode " + path, e);
+            callback.onError(key, new HybrisException("Could not write ZNode " + path + ": " + e.getMessage(), e));
+        }
+    }
+
+
     /**
      * Get the list of metadata keys stored (filtering out tombstone values).
      * @return the list of metadata keys stored in the
@@ -474,6 +809,281 @@ public class MdsManager implements ConnectionStateListener {
     }
 
 
+    /**
+     * Record the chunks of a value version whose upload is still in progress
+     * after its metadata have been committed.
+     * @param key
+     * @param ts - the timestamp of the value version
+     * @param chunks - the indexes of the chunks being uploaded
+     * @throws HybrisException
+     */
+    public void markPendingChunks(String key, Timestamp ts, List<Integer> chunks) throws HybrisException {
+
+        String znodePath = this.pendingRoot + "/" + Utils.getKvsKey(key, ts);
+        StringBuilder sb = new StringBuilder();
+        for (Integer idx : chunks)
+            sb.append(sb.length() == 0 ? "" : ",").append(idx);
+        try {
+            this.zkCli.create().forPath(znodePath, sb.toString().getBytes());
+            logger.debug("Marked pending chunks {} of {}", chunks, znodePath);
+        } catch (Exception e) {
+            logger.warn("Could not create pending ZNode " + znodePath, e);
+            throw new HybrisException("Could not create pending ZNode " + znodePath, e);
+        }
+    }
+
+
+    /**
+     * Get the value versions having chunks still being uploaded (or whose upload failed).
+     * @param olderThan - only return versions recorded before this time [ms]
+     * @return a map of kvsKeys (key#timestamp) and pending chunks indexes
+     * @throws HybrisException
+     */
+    public Map<String, List<Integer>> getPendingChunks(long olderThan) throws HybrisException {
+
+        Map<String, List<Integer>> pending = new HashMap<String, List<Integer>>();
+        try {
+            for (String kvsKey : this.zkCli.getChildren().forPath(this.pendingRoot)) {
+                Stat stat = new Stat();
+                String raw;
+                try {
+                    raw = new String(this.zkCli.getData().storingStatIn(stat).forPath(this.pendingRoot + "/" + kvsKey));
+                } catch (KeeperException e) {
+                    if (e.code() != KeeperException.Code.NONODE)   // upload completed meanwhile
+                        throw e;
+                    continue;
+                }
+                if (stat.getCtime() >= olderThan)
+                    continue;
+                List<Integer> chunks = new ArrayList<Integer>();
+                for (String idx : raw.split(","))
+                    if (!idx.isEmpty())
+                        chunks.add(Integer.parseInt(idx));
+                pending.put(kvsKey, chunks);
+            }
+        } catch (Exception e) {
+            logger.error("Could not list the children of ZNode " + this.pendingRoot, e);
+            throw new HybrisException("Could not list the children of ZNode " + this.pendingRoot, e);
+        }
+        return pending;
+    }
+
+
+    /**
+     * Record the completion of the upload of all the chunks of a value version.
+     * @param key
+     * @param ts - the timestamp of the value version
+     */
+    public void removePendingChunks(String key, Timestamp ts) {
+
+        String znodePath = this.pendingRoot + "/" + Utils.getKvsKey(key, ts);
+        try {
+            this.zkCli.delete().forPath(znodePath);
+        } catch (KeeperException e) {
+            if (e.code() != KeeperException.Code.NONODE)
+                logger.warn("Could not delete pending ZNode " + znodePath, e);
+        } catch (Exception e) {
+            logger.warn("Could not delete pending ZNode " + znodePath, e);
+        }
+    }
+
+
+    /**
+     * Assigns a stable numeric id to each Kvs instance name, so that
+     * chunk locations can be serialized compactly and consistently by all clients.
+     * The ids are stored on ZooKeeper (one "name=id" line per Kvs) and never change:
+     * unknown names get the smallest id greater than any id already assigned or reserved.
+     * @param names - the names of the Kvs instances to register
+     * @param reserved - ids already assigned to some names (e.g. built-in drivers)
+     * @return the ids of all the Kvs instances registered so far, by name
+     * @throws HybrisException
+     */
+    public Map<String, Short> registerKvs(Collection<String> names, Map<String, Short> reserved)
+            throws HybrisException {
+
+        while (true) {
+            Map<String, Short> registry = new HashMap<String, Short>(reserved);
+            Stat stat = new Stat();
+            boolean exists = true;
+            try {
+                this.zkCli.sync().forPath(this.kvsRegistryPath);
+                String raw = new String(this.zkCli.getData().storingStatIn(stat).forPath(this.kvsRegistryPath));
+                for (String line : raw.split("\n")) {
+                    int sep = line.lastIndexOf('=');
+                    if (sep > 0)
+                        registry.put(line.substring(0, sep), Short.parseShort(line.substring(sep + 1).trim()));
+                }
+            } catch (KeeperException e) {
+                if (e.code() != KeeperException.Code.NONODE)
+                    throw new HybrisException("Could not read ZNode " + this.kvsRegistryPath, e);
+                exists = false;
+            } catch (Exception e) {
+                logger.error("Could not read ZNode " + this.kvsRegistryPath, e);
+                throw new HybrisException("Could not read ZNode " + this.kvsRegistryPath, e);
+            }
+
+            boolean changed = !exists;
+            short next = 0;
+            for (Short id : registry.values())
+                next = (short) Math.max(next, id + 1);
+            for (String name : names)
+                if (!registry.containsKey(name)) {
+                    registry.put(name, next++);
+                    changed = true;
+                }
+            if (!changed)
+                return registry;
+
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Short> entry : registry.entrySet())
+                sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+            try {
+                if (exists)
+                    this.zkCli.setData().withVersion(stat.getVersion())
+                                .forPath(this.kvsRegistryPath, sb.toString().getBytes());
+                else
+                    this.zkCli.create().forPath(this.kvsRegistryPath, sb.toString().getBytes());
+                logger.debug("Kvs registry updated: {}", registry);
+                return registry;
+            } catch (KeeperException e) {
+                if (e.code() != KeeperException.Code.NODEEXISTS &&     // multiple clients tried to create
+                        e.code() != KeeperException.Code.BADVERSION)   // or modify the registry concurrently
+                    throw new HybrisException("Could not update ZNode " + this.kvsRegistryPath, e);
+                logger.debug("Concurrent update of the Kvs registry, retrying");
+            } catch (Exception e) {
+                logger.error("Could not update ZNode " + this.kvsRegistryPath, e);
+                throw new HybrisException("Could not update ZNode " + this.kvsRegistryPath, e);
+            }
+        }
+    }
+
+
+    /**
+     * Record a pack object and its total size (summed over all the KVSs storing it),
+     * so that it can be compacted once most of its chunks are not live anymore.
+     * @param packId
+     * @param size [B]
+     * @throws HybrisException
+     */
+    public void markPack(String packId, long size) throws HybrisException {
+
+        String znodePath = this.gcPacksDir + "/" + packId;
+        try {
+            this.zkCli.create().forPath(znodePath, String.valueOf(size).getBytes());
+            logger.debug("Marked pack {} ({} B)", packId, size);
+        } catch (Exception e) {
+            logger.warn("Could not create pack ZNode " + znodePath, e);
+            throw new HybrisException("Could not create pack ZNode " + znodePath, e);
+        }
+    }
+
+
+    /**
+     * Get recorded packs and their total size.
+     * @param olderThan - only return packs recorded before this time [ms]
+     * @return a map of pack ids and sizes [B]
+     * @throws HybrisException
+     */
+    public Map<String, Long> getPacks(long olderThan) throws HybrisException {
+
+        Map<String, Long> packs = new HashMap<String, Long>();
+        try {
+            for (String packId : this.zkCli.getChildren().forPath(this.gcPacksDir)) {
+                Stat stat = new Stat();
+                byte[] raw = this.zkCli.getData().storingStatIn(stat).forPath(this.gcPacksDir + "/" + packId);
+                if (stat.getCtime() < olderThan)
+                    packs.put(packId, Long.parseLong(new String(raw)));
+            }
+        } catch (Exception e) {
+            logger.error("Could not list the children of ZNode " + this.gcPacksDir, e);
+            throw new HybrisException(e);
+        }
+        return packs;
+    }
+
+
+    /**
+     * Delete the record of a pack which has been removed from KVSs.
+     * @param packId
+     */
+    public void removePack(String packId) {
+
+        String znodePath = this.gcPacksDir + "/" + packId;
+        try {
+            this.zkCli.delete().forPath(znodePath);
+        } catch (KeeperException e) {
+            if (e.code() != KeeperException.Code.NONODE)
+                logger.warn("Could not delete pack ZNode " + znodePath, e);
+        } catch (Exception e) {
+            logger.warn("Could not delete pack ZNode " + znodePath, e);
+        }
+    }
+
+
+    /**
+     * Publishes the Kvs latency summary of a client.
+     * The summary is stored in an ephemeral ZNode, so that it disappears with the client session.
+     * @param clientId
+     * @param summary
+     * @throws HybrisException
+     */
+    public void publishLatency(String clientId, byte[] summary) throws HybrisException {
+
+        String znodePath = this.latencyRoot + "/" + clientId;
+        try {
+            try {
+                this.zkCli.setData().forPath(znodePath, summary);
+            } catch (KeeperException e) {
+                if (e.code() != KeeperException.Code.NONODE)
+                    throw e;
+                this.zkCli.create().withMode(CreateMode.EPHEMERAL).forPath(znodePath, summary);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not publish latency ZNode " + znodePath, e);
+            throw new HybrisException("Could not publish latency ZNode " + znodePath, e);
+        }
+    }
+
+
+    /**
+     * Get the Kvs latency summaries published by the clients.
+     * Summaries not updated for maxAge are skipped; ages are measured on the Zookeeper clock,
+     * with respect to the most recent summary.
+     * @param maxAge [ms]
+     * @return a map of client ids and summaries
+     * @throws HybrisException
+     */
+    public Map<String, byte[]> getLatencies(long maxAge) throws HybrisException {
+
+        Map<String, byte[]> summaries = new HashMap<String, byte[]>();
+        Map<String, Long> mtimes = new HashMap<String, Long>();
+        long newest = 0;
+        try {
+            for (String clientId : this.zkCli.getChildren().forPath(this.latencyRoot)) {
+                Stat stat = new Stat();
+                try {
+                    summaries.put(clientId, this.zkCli.getData().storingStatIn(stat)
+                                                    .forPath(this.latencyRoot + "/" + clientId));
+                } catch (KeeperException e) {
+                    if (e.code() != KeeperException.Code.NONODE)  // client session expired meanwhile
+                        throw e;
+                    continue;
+                }
+                mtimes.put(clientId, stat.getMtime());
+                newest = Math.max(newest, stat.getMtime());
+            }
+        } catch (Exception e) {
+            logger.error("Could not list the children of ZNode " + this.latencyRoot, e);
+            throw new HybrisException(e);
+        }
+
+        for (Map.Entry<String, Long> entry : mtimes.entrySet())
+            if (newest - entry.getValue() > maxAge)
+                summaries.remove(entry.getKey());
+        return summaries;
+    }
+
+
     /**
      * Empty stale and orphan keys containers.
      * @throws HybrisException
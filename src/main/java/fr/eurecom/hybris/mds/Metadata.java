@@ -29,7 +29,7 @@ import com.esotericsoftware.kryo.io.Output;
 
 import fr.eurecom.hybris.Config;
 import fr.eurecom.hybris.Utils;
-import fr.eurecom.hybris.kvs.KvsManager.KvsId;
+import fr.eurecom.hybris.kvs.KvsRegistry;
 import fr.eurecom.hybris.kvs.drivers.Kvs;
 
 /**
@@ -113,6 +113,54 @@ public class Metadata implements KryoSerializable {
         }
     }
 
+    /**
+     * Location of a chunk stored inside a shared pack object.
+     */
+    public static class PackRef {
+
+        private String packId;
+        private long offset;
+        private int length;
+
+        public PackRef() { }
+        public PackRef(String packId, long offset, int length) {
+            this.packId = packId;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getPackId()   { return this.packId; }
+        public long getOffset()     { return this.offset; }
+        public int getLength()      { return this.length; }
+
+        public String toString() {
+            return this.packId + "[" + this.offset + "+" + this.length + "]";
+        }
+
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (this.packId == null ? 0 : this.packId.hashCode());
+            result = prime * result + (int) (this.offset ^ this.offset >>> 32);
+            result = prime * result + this.length;
+            return result;
+        }
+
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || this.getClass() != obj.getClass())
+                return false;
+            PackRef other = (PackRef) obj;
+            if (this.packId == null) {
+                if (other.packId != null)
+                    return false;
+            } else if (!this.packId.equals(other.packId))
+                return false;
+            return this.offset == other.offset && this.length == other.length;
+        }
+    }
+
     private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
 
     private Timestamp ts;
@@ -122,6 +170,7 @@ public class Metadata implements KryoSerializable {
     private byte[] cryptoKey;
     private int size;
     private List<Kvs> chunksLst;
+    private List<PackRef> packRefs;     // chunk locations when stored in packs (null otherwise)
 
     public Metadata() { }
     public Metadata(Timestamp ts, byte[] hash ,ArrayList<byte[]> hashlist, int size, ArrayList<String> keylist,
@@ -145,9 +194,11 @@ public class Metadata implements KryoSerializable {
         this.ts = md.getTs();
         this.chunksLst = md.getChunksLst();
         this.hash = md.getHash();
+        this.hashlist = md.getHashlist();
         this.keylist = md.getkeylist();
         this.cryptoKey = md.getCryptoKey();
         this.size = md.getSize();
+        this.packRefs = md.getPackRefs();
     }
 
     public static Metadata getTombstone(Timestamp ts) {
@@ -158,8 +209,7 @@ public class Metadata implements KryoSerializable {
         Kryo kryo = new Kryo();
         kryo.register(Metadata.class);
         kryo.register(Timestamp.class);
-        byte[] buff = new byte[512];
-        Output output = new Output(buff);
+        Output output = new Output(512, -1);    // grows with the hashes, chunk keys and pack refs
         kryo.writeObject(output, this);
         output.close();
         return output.toBytes();
@@ -185,10 +235,14 @@ public class Metadata implements KryoSerializable {
     public int getSize() { return this.size; }
     public void setSize(int s) { this.size = s; }
     public byte[] getCryptoKey() { return this.cryptoKey; }
+    public List<PackRef> getPackRefs() { return this.packRefs; }
+    public void setPackRefs(List<PackRef> packRefs) { this.packRefs = packRefs; }
+    public boolean isPacked() { return this.packRefs != null; }
 
     public String toString() {
         return "Metadata [ts=" + this.ts + ", hash=" + Utils.bytesToHexStr(this.hash)
                 + ", size=" + this.size + ", replicasLst=" + this.chunksLst +", keylist ="+ this.keylist
+                + (this.packRefs != null ? ", packRefs=" + this.packRefs : "")
                 + ", cryptoKey=" + Utils.bytesToHexStr(this.cryptoKey) + "]";
     }
 
@@ -237,13 +291,12 @@ public class Metadata implements KryoSerializable {
     public void write(Kryo kryo, Output out) {
         kryo.writeClassAndObject(out, this.ts);
 
-        if (this.hash == null){
-            byte[] ba = new byte[Utils.HASH_LENGTH];
-            Arrays.fill(ba, (byte) 0x0);
-            out.write(ba);
+        if (this.hashlist != null) {
+            out.writeInt(this.hashlist.size());
+            for (byte[] alfa : this.hashlist)
+                out.write(alfa == null ? new byte[Utils.HASH_LENGTH] : alfa);
         } else
-        	for (byte[] alfa : this.hashlist)
-            	out.write(alfa);
+            out.writeInt(-1);           // null hashes array
 
         if (this.cryptoKey == null){
             byte[] ba = new byte[Utils.CRYPTO_KEY_LENGTH];
@@ -254,34 +307,46 @@ public class Metadata implements KryoSerializable {
 
         out.writeInt(this.size);
 
-        if (this.chunksLst != null)
-            if (this.chunksLst.size() > 0)
-                for (int i=0; i<this.chunksLst.size(); i++)
-                    try {
-                        out.writeShort( KvsId.valueOf( this.chunksLst.get(i).getId().toUpperCase() ).getSerial() );
-                    } catch (IllegalArgumentException e) {
-                        logger.error("Serialization of {} Kvs failed: Hybris could not find any suitable driver",
-                                this.chunksLst.get(i).getId().toUpperCase());
-                    }
-            else
-                out.writeShort(-1);     // empty replicas array
-        else
+        if (this.chunksLst != null) {
+            for (int i=0; i<this.chunksLst.size(); i++) {
+                Short id = KvsRegistry.getInstance().getId(this.chunksLst.get(i).getId());
+                if (id != null)
+                    out.writeShort(id);
+                else
+                    logger.error("Serialization of {} Kvs failed: Hybris could not find it in the Kvs registry",
+                            this.chunksLst.get(i).getId());
+            }
+            out.writeShort(-1);         // end of replicas array
+        } else
             out.writeShort(-2);         // null replicas array
+
+        if (this.packRefs != null) {
+            out.writeInt(this.packRefs.size());
+            for (PackRef ref : this.packRefs) {
+                out.writeString(ref.getPackId());
+                out.writeLong(ref.getOffset());
+                out.writeInt(ref.getLength());
+            }
+        } else
+            out.writeInt(-1);           // not packed
+
+        if (this.keylist != null) {
+            out.writeInt(this.keylist.size());
+            for (String chunkKey : this.keylist)
+                out.writeString(chunkKey);
+        } else
+            out.writeInt(-1);           // null chunk keys array
     }
 
 	public void read(Kryo kryo, Input in) {
         this.ts = (Timestamp) kryo.readClassAndObject(in);
-        this.hashlist = new ArrayList<byte[]>(Utils.DATACHUNKS+Utils.REDCHUNKS);
-        for (int i=0; i< this.hashlist.size(); i++)
-            this.hashlist.add(i, in.readBytes(Utils.HASH_LENGTH));
-        byte[] ba = new byte[Utils.HASH_LENGTH];
-        Arrays.fill(ba, (byte) 0x0);
-        for (byte[] alfa : this.hashlist)
-         if (Arrays.equals(ba, alfa))
-            alfa = null;
+        int hashesNum = in.readInt();
+        this.hashlist = new ArrayList<byte[]>(Math.max(0, hashesNum));
+        for (int i=0; i<hashesNum; i++)
+            this.hashlist.add(in.readBytes(Utils.HASH_LENGTH));
 
         this.cryptoKey = in.readBytes(Utils.CRYPTO_KEY_LENGTH);
-        ba = new byte[Utils.CRYPTO_KEY_LENGTH];
+        byte[] ba = new byte[Utils.CRYPTO_KEY_LENGTH];
         Arrays.fill(ba, (byte) 0x0);
         if (Arrays.equals(ba, this.cryptoKey))
             this.cryptoKey = null;
@@ -303,29 +368,37 @@ public class Metadata implements KryoSerializable {
                 break;
             }
 
-            try {
-                switch (KvsId.getIdFromSerial(rep)) {
-                    case AMAZON:
-                        this.chunksLst.add(new Kvs(KvsId.AMAZON.toString(), null, false, 0));
-                        break;
-                    case AZURE:
-                        this.chunksLst.add(new Kvs(KvsId.AZURE.toString(), null, false, 0));
-                        break;
-                    case GOOGLE:
-                        this.chunksLst.add(new Kvs(KvsId.GOOGLE.toString(), null, false, 0));
-                        break;
-                    case RACKSPACE:
-                        this.chunksLst.add(new Kvs(KvsId.RACKSPACE.toString(), null, false, 0));
-                        break;
-                    case TRANSIENT:
-                        this.chunksLst.add(new Kvs(KvsId.TRANSIENT.toString(), null, false, 0));
-                        break;
-                    default:
-                        break;
-                }
-            } catch (IllegalArgumentException e) {
-                logger.error("Deserialization of {} Kvs failed: Hybris could not find any suitable driver", rep);
-            }
+            String name = KvsRegistry.getInstance().getName(rep);
+            if (name != null)
+                this.chunksLst.add(new Kvs(name, null, false, 0));
+            else
+                logger.error("Deserialization of {} Kvs failed: Hybris could not find it in the Kvs registry", rep);
+        }
+
+        this.packRefs = null;
+        int packRefsNum;
+        try {
+            packRefsNum = in.readInt();
+        } catch(Exception e) {
+            return;                 // metadata written before pack support
+        }
+        if (packRefsNum >= 0) {
+            this.packRefs = new ArrayList<PackRef>(packRefsNum);
+            for (int i=0; i<packRefsNum; i++)
+                this.packRefs.add(new PackRef(in.readString(), in.readLong(), in.readInt()));
+        }
+
+        this.keylist = null;
+        int chunkKeysNum;
+        try {
+            chunkKeysNum = in.readInt();
+        } catch(Exception e) {
+            return;                 // metadata written before chunk keys were stored
+        }
+        if (chunkKeysNum >= 0) {
+            this.keylist = new ArrayList<String>(chunkKeysNum);
+            for (int i=0; i<chunkKeysNum; i++)
+                this.keylist.add(in.readString());
         }
     }
 }
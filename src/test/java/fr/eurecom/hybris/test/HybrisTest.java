@@ -16,10 +16,20 @@
 package fr.eurecom.hybris.test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.curator.test.TestingServer;
 import org.junit.After;
@@ -28,12 +38,23 @@ import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import fr.eurecom.hybris.Config;
 import fr.eurecom.hybris.Hybris;
+import fr.eurecom.hybris.Hybris.PutResult;
 import fr.eurecom.hybris.HybrisException;
+import fr.eurecom.hybris.Utils;
+import fr.eurecom.hybris.kvs.KvsManager;
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+import fr.eurecom.hybris.kvs.drivers.SimulatedKvs;
+import fr.eurecom.hybris.mds.MdsManager;
+import fr.eurecom.hybris.mds.Metadata;
 
 
 public class HybrisTest extends HybrisAbstractTest {
 
+    private static final long HANG = 30000;     // [ms] latency of a hanging Kvs
+    private static final long SLOW = 1500;      // [ms] latency of a slow Kvs
+
     protected static Hybris hybris;
 
     @BeforeClass
@@ -63,6 +84,247 @@ public class HybrisTest extends HybrisAbstractTest {
         assertNull(hybris.get(key));
     }
 
+    @Test
+    public void testMultiPut() throws HybrisException, IOException {
+
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for (int i=0; i<5; i++) {
+            byte[] value = new byte[50];
+            this.random.nextBytes(value);
+            values.put(this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32), value);
+        }
+
+        Map<String, PutResult> results = hybris.multiPut(values);
+        assertEquals(values.size(), results.size());
+        for (String key : values.keySet()) {
+            assertEquals(PutResult.STORED, results.get(key));
+            assertArrayEquals(values.get(key), hybris.get(key));
+        }
+
+        Map<String, byte[]> retrieved = hybris.multiGet(values.keySet());
+        assertEquals(values.size(), retrieved.size());
+        for (String key : values.keySet()) {
+            assertArrayEquals(values.get(key), retrieved.get(key));
+            hybris.delete(key);
+        }
+        assertTrue(hybris.multiGet(values.keySet()).isEmpty());
+    }
+
+    @Test
+    public void testAsyncWriteAndRead() throws Exception {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[50];
+        this.random.nextBytes(value);
+
+        assertTrue(hybris.putAsync(key, value).get(30, TimeUnit.SECONDS).size() > 0);
+        assertArrayEquals(value, hybris.getAsync(key).get(30, TimeUnit.SECONDS));
+        assertArrayEquals(value, hybris.get(key));
+
+        hybris.deleteAsync(key).get(30, TimeUnit.SECONDS);
+        assertNull(hybris.getAsync(key).get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testStragglers() throws Exception {
+
+        KvsManager kvs = hybris.getKvsManager();
+        this.warmUp(kvs);
+        long timeoutWrite = 1000L * Integer.parseInt(Config.getInstance().getProperty(Config.HS_TO_WRITE));
+        long timeoutRead = 1000L * Integer.parseInt(Config.getInstance().getProperty(Config.HS_TO_READ));
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[16 * 1024];
+        this.random.nextBytes(value);
+
+        // the Kvs chosen for the first data chunk hangs: the chunk is written on the next candidate
+        SimulatedKvs slow = (SimulatedKvs) kvs.getKvsForWrites(key, value.length / Utils.DATACHUNKS).get(0);
+        double health = kvs.getCircuitBreaker(slow).getHealth();
+        List<Kvs> stored;
+        slow.setLatency(HANG, 0);
+        try {
+            long start = System.currentTimeMillis();
+            stored = hybris.put(key, value);
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue(elapsed < Math.min(HANG, timeoutWrite) / 2);
+            assertFalse(stored.contains(slow));
+            assertTrue(kvs.getCircuitBreaker(slow).getHealth() < health);
+        } finally {
+            slow.setLatency(0, 0);
+        }
+
+        // the Kvs storing the first data chunk hangs: the value is decoded from the other chunks
+        slow = (SimulatedKvs) stored.get(0);
+        slow.setLatency(HANG, 0);
+        try {
+            long start = System.currentTimeMillis();
+            assertArrayEquals(value, hybris.get(key));
+            assertTrue(System.currentTimeMillis() - start < Math.min(HANG, timeoutRead) / 2);
+        } finally {
+            slow.setLatency(0, 0);
+        }
+        hybris.delete(key);
+    }
+
+    @Test
+    public void testBackgroundParity() throws Exception {
+
+        Config conf = Config.getInstance();
+        int syncParity = Integer.parseInt(conf.getProperty(Config.HS_SYNC_PARITY));
+        assertTrue(syncParity < Utils.REDCHUNKS);     // some parity chunks are uploaded in background
+        long timeoutWrite = 1000L * Integer.parseInt(conf.getProperty(Config.HS_TO_WRITE));
+        KvsManager kvs = hybris.getKvsManager();
+        this.warmUp(kvs);
+        MdsManager mds = new MdsManager(conf.getProperty(Config.MDS_ADDR), conf.getProperty(Config.MDS_ROOT));
+        byte[] value = new byte[16 * 1024];
+        this.random.nextBytes(value);
+
+        // the Kvs chosen for the first parity chunk is slow: put returns once the data chunks
+        // and <syncParity> parity chunks are stored, the parity chunk completing in background
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        SimulatedKvs slow = (SimulatedKvs) kvs.getKvsForWrites(key, value.length / Utils.DATACHUNKS)
+                .get(Utils.DATACHUNKS + syncParity);
+        slow.setLatency(SLOW, 0);
+        try {
+            long start = System.currentTimeMillis();
+            assertTrue(hybris.put(key, value).contains(slow));
+            assertTrue(System.currentTimeMillis() - start < SLOW);
+            assertTrue(this.isPending(mds, key));
+            assertArrayEquals(value, hybris.get(key));
+
+            long deadline = System.currentTimeMillis() + timeoutWrite + SLOW;
+            while (this.isPending(mds, key) && System.currentTimeMillis() < deadline)
+                Thread.sleep(100);
+            assertFalse(this.isPending(mds, key));
+        } finally {
+            slow.setLatency(0, 0);
+        }
+
+        // the background upload fails: the pending record is left for repair
+        key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        slow = (SimulatedKvs) kvs.getKvsForWrites(key, value.length / Utils.DATACHUNKS)
+                .get(Utils.DATACHUNKS + syncParity);
+        slow.setLatency(SLOW, 0);
+        slow.setErrorRate(1);
+        long stored = System.currentTimeMillis();
+        try {
+            hybris.put(key, value);
+            Thread.sleep(SLOW + 500);
+        } finally {
+            slow.setLatency(0, 0);
+            slow.setErrorRate(0);
+        }
+        Metadata md = mds.tsRead(key, null);
+        String chunkKey = md.getkeylist().get(Utils.DATACHUNKS + syncParity);
+        assertTrue(this.isPending(mds, key));
+        assertNull(kvs.get(slow, chunkKey));
+
+        // repair skips the versions which may still be uploading
+        Thread.sleep(Math.max(0, stored + 2 * timeoutWrite + 1000 - System.currentTimeMillis()));
+        hybris.new GcManager().repair();
+        assertFalse(this.isPending(mds, key));
+        assertNotNull(kvs.get(slow, chunkKey));
+        assertArrayEquals(value, hybris.get(key));
+
+        hybris.delete(key);
+        mds.shutdown();
+    }
+
+    @Test
+    public void testPacking() throws Exception {
+
+        Config conf = Config.getInstance();
+        assertTrue(Boolean.parseBoolean(conf.getProperty(Config.PACK_ENABLED)));
+        long timeoutWrite = 1000L * Integer.parseInt(conf.getProperty(Config.HS_TO_WRITE));
+        KvsManager kvs = hybris.getKvsManager();
+        MdsManager mds = new MdsManager(conf.getProperty(Config.MDS_ADDR), conf.getProperty(Config.MDS_ROOT));
+
+        // values written together are packed in the same objects
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for (int i=0; i<4; i++) {
+            byte[] value = new byte[100];
+            this.random.nextBytes(value);
+            values.put(this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32), value);
+        }
+        long packed = System.currentTimeMillis();
+        for (PutResult result : hybris.multiPut(values).values())
+            assertEquals(PutResult.STORED, result);
+        String packId = null;
+        for (String key : values.keySet()) {
+            Metadata md = mds.tsRead(key, null);
+            assertTrue(md.isPacked());
+            if (packId == null)
+                packId = md.getPackRefs().get(0).getPackId();
+            assertEquals(packId, md.getPackRefs().get(0).getPackId());
+            assertArrayEquals(values.get(key), hybris.get(key));
+        }
+
+        // a pack write failing on one Kvs: its values are still stored, and read from the other chunks
+        byte[] value = new byte[100];
+        this.random.nextBytes(value);
+        List<SimulatedKvs> failing = new ArrayList<SimulatedKvs>();
+        try {
+            String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+            failing.add((SimulatedKvs) kvs.getKvsForWrites(key, value.length / Utils.DATACHUNKS).get(0));
+            failing.get(0).setErrorRate(1);
+            hybris.put(key, value);
+            assertArrayEquals(value, hybris.get(key));
+            hybris.delete(key);
+
+            // failing on two Kvs: not enough chunks are stored
+            key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+            for (Kvs kvStore : kvs.getKvsForWrites(key, value.length / Utils.DATACHUNKS).subList(0, 2)) {
+                failing.add((SimulatedKvs) kvStore);
+                ((SimulatedKvs) kvStore).setErrorRate(1);
+            }
+            try {
+                hybris.put(key, value);
+                fail();
+            } catch (HybrisException e) {
+                assertNull(hybris.get(key));
+            }
+        } finally {
+            for (SimulatedKvs kvStore : failing)
+                kvStore.setErrorRate(0);
+        }
+
+        // compaction: the live values of packs mostly deleted are copied into new packs
+        String live = null;
+        for (String k : values.keySet())
+            if (live == null)
+                live = k;
+            else
+                hybris.delete(k);
+        Thread.sleep(Math.max(0, packed + 2 * timeoutWrite + 1000 - System.currentTimeMillis()));
+        hybris.new GcManager().packGc();
+        assertFalse(mds.getPacks(Long.MAX_VALUE).containsKey(packId));
+        Metadata md = mds.tsRead(live, null);
+        assertFalse(packId.equals(md.getPackRefs().get(0).getPackId()));
+        assertNull(kvs.get(kvs.getKvsById(md.getChunksLst().get(0).getId()), packId));
+        assertArrayEquals(values.get(live), hybris.get(live));
+
+        hybris.delete(live);
+        mds.shutdown();
+    }
+
+    private boolean isPending(MdsManager mds, String key) throws HybrisException {
+        for (String kvsKey : mds.getPendingChunks(Long.MAX_VALUE).keySet())
+            if (key.equals(Utils.getKeyFromKvsKey(kvsKey)))
+                return true;
+        return false;
+    }
+
+    /**
+     * Records enough fast requests on every Kvs for their deadlines to be derived from their latencies.
+     */
+    private void warmUp(KvsManager kvs) {
+        for (Kvs kvStore : kvs.getKvsList())
+            for (int i=0; i<20; i++) {
+                kvs.recordWrite(kvStore, 8 * 1024, 1);
+                kvs.recordRead(kvStore, 8 * 1024, 1);
+            }
+    }
+
     //    @Ignore
     //    @Test
     //    public void testParallelWrite() throws HybrisException {
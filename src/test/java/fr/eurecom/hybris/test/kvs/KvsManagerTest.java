@@ -15,17 +15,33 @@
  */
 package fr.eurecom.hybris.test.kvs;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.After;
 import org.junit.Before;
@@ -34,8 +50,22 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import fr.eurecom.hybris.Config;
+import fr.eurecom.hybris.kvs.BufferPool;
+import fr.eurecom.hybris.kvs.CircuitBreaker;
+import fr.eurecom.hybris.kvs.ConsistentHashPlacement;
+import fr.eurecom.hybris.kvs.CostAwarePlacement;
 import fr.eurecom.hybris.kvs.KvsManager;
+import fr.eurecom.hybris.kvs.LatencyModel;
+import fr.eurecom.hybris.kvs.LatencyProfile;
+import fr.eurecom.hybris.kvs.LatencySharing;
+import fr.eurecom.hybris.kvs.LatencyStats;
+import fr.eurecom.hybris.kvs.PlacementPolicy;
+import fr.eurecom.hybris.kvs.PowerOfTwoPlacement;
+import fr.eurecom.hybris.kvs.WeightedRandomPlacement;
+import fr.eurecom.hybris.kvs.drivers.FileSystemKvs;
 import fr.eurecom.hybris.kvs.drivers.Kvs;
+import fr.eurecom.hybris.kvs.drivers.SimulatedKvs;
+import fr.eurecom.hybris.kvs.drivers.TransportConfig;
 import fr.eurecom.hybris.test.HybrisAbstractTest;
 
 
@@ -89,6 +119,513 @@ public class KvsManagerTest extends HybrisAbstractTest {
             assertNull(kvs.get(replica, key));
     }
 
+    @Test
+    public void testLatencyTracking() throws IOException {
+
+        LatencyStats stats = new LatencyStats(0.5, 100);
+        assertTrue(Double.isNaN(stats.getEwma()));
+        assertEquals(-1, stats.getPercentile(0.99));
+        stats.add(100);
+        assertEquals(100, stats.getEwma(), 0.001);
+        stats.add(200);
+        assertEquals(150, stats.getEwma(), 0.001);
+        for (int i=1; i<=100; i++)
+            stats.add(i);
+        assertEquals(50, stats.getPercentile(0.5));
+        assertEquals(99, stats.getPercentile(0.99));
+        assertEquals(102, stats.getCount());
+
+        LatencyModel model = new LatencyModel(1);
+        assertTrue(Double.isNaN(model.predict(1000)));
+        model.add(1000, 30);
+        assertEquals(30, model.predict(1000000), 0.001);    // bandwidth not known yet
+        for (int size=1000; size<=100000; size+=1000)
+            model.add(size, 20 + size / 100);
+        assertEquals(20, model.getFixedCost(), 0.1);
+        assertEquals(10020, model.predict(1000000), 1);
+
+        // live traffic updates the latency estimates and the orderings
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new BigInteger(50, this.random).toString(32).getBytes();
+        for (Kvs provider : kvs.getKvsList()) {
+            long count = kvs.getWriteStats(provider).getCount();
+            assertNotNull(kvs.new KvsPutWorker(provider, key, value).call());
+            assertEquals(count + 1, kvs.getWriteStats(provider).getCount());
+            assertNotNull(kvs.new KvsGetWorker(provider, key).call());
+            assertEquals(Math.round(kvs.getReadStats(provider).getEwma()), provider.getReadLatency());
+            kvs.delete(provider, key);
+        }
+        assertEquals(kvs.getKvsList().size(), kvs.getKvsSortedByReadLatency().size());
+        assertEquals(kvs.getKvsList().size(), kvs.getKvsSortedByWriteLatency().size());
+    }
+
+    @Test
+    public void testCircuitBreaker() throws InterruptedException {
+
+        CircuitBreaker breaker = new CircuitBreaker(0.3, 5, 100);
+        for (int i=0; i<4; i++)
+            assertFalse(breaker.onFailure());   // not enough samples yet
+        assertTrue(breaker.onFailure());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryProbe());        // too early
+
+        Thread.sleep(150);
+        assertTrue(breaker.tryProbe());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.onFailure());       // failed probe
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.onSuccess());       // late request, not a probe
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryProbe());        // still cooling down
+
+        Thread.sleep(150);
+        assertTrue(breaker.tryProbe());
+        assertTrue(breaker.onSuccess());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(1, breaker.getHealth(), 0.001);
+
+        // an open circuit takes the Kvs out of the orderings
+        Kvs provider = kvs.getKvsList().get(0);
+        for (int i=0; i<100 && provider.isAvailable(); i++)
+            kvs.recordFailure(provider);
+        assertFalse(provider.isEnabled());
+        assertEquals(CircuitBreaker.State.OPEN, kvs.getCircuitBreaker(provider).getState());
+        assertFalse(kvs.getCircuitBreaker(provider).onSuccess());
+        assertEquals(CircuitBreaker.State.OPEN, kvs.getCircuitBreaker(provider).getState());
+        provider.setAvailable(true);
+    }
+
+    @Test
+    public void testLoadBalancedPlacement() {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        PlacementPolicy[] policies = new PlacementPolicy[] { new PowerOfTwoPlacement(),
+                new WeightedRandomPlacement(), new ConsistentHashPlacement(16) };
+        for (PlacementPolicy policy : policies) {
+            List<Kvs> ranked = policy.rankForWrites(kvs, key, 1000);
+            assertEquals(kvs.getKvsList().size(), ranked.size());
+            assertTrue(ranked.containsAll(kvs.getKvsList()));
+        }
+
+        // consistent hashing always maps a key on the same Kvs
+        PlacementPolicy hashing = new ConsistentHashPlacement(16);
+        assertEquals(hashing.rankForWrites(kvs, key, 1000), hashing.rankForWrites(kvs, key, 1000));
+        assertEquals(hashing.rankForWrites(kvs, key, 1000), hashing.rankForReads(kvs, key, 1000));
+    }
+
+    @Test
+    public void testCostAwarePlacement() throws IOException {
+
+        KvsManager manager = new KvsManager("accounts-test.properties", KVS_ROOT, false);
+        List<Kvs> providers = manager.getKvsList();
+        Kvs fast = providers.get(0), cheap = providers.get(1), slow = providers.get(2), slowest = providers.get(3);
+        long[] latencies = new long[] { 100, 150, 400, 500 };
+        int[] costs = new int[] { 10, 1, 0, 0 };
+        for (int i=0; i<providers.size(); i++) {
+            providers.get(i).setWriteLatency(latencies[i]);
+            providers.get(i).setCost(costs[i]);
+        }
+
+        // within 200 ms from the fastest Kvs, the cheaper one ranks first;
+        // the others follow by latency, whatever their cost
+        PlacementPolicy placement = new CostAwarePlacement(0.5, 200);
+        assertEquals(Arrays.asList(cheap, fast, slow, slowest), placement.rankForWrites(manager, null, 1000));
+        // with no weight on cost, the ranking is by latency only
+        assertEquals(Arrays.asList(fast, cheap, slow, slowest),
+                new CostAwarePlacement(0, 200).rankForWrites(manager, null, 1000));
+
+        // disabled Kvs rank last, and do not set the latency the SLO is relative to
+        cheap.setEnabled(false);
+        fast.setEnabled(false);
+        assertEquals(Arrays.asList(slow, slowest, fast, cheap), placement.rankForWrites(manager, null, 1000));
+        cheap.setEnabled(true);
+        fast.setEnabled(true);
+    }
+
+    @Test
+    public void testFileSystemKvs() throws IOException {
+
+        Path dir = Files.createTempDirectory("hybris-fs");
+        for (long syncInterval : new long[] { 0, 100, -1 }) {
+            FileSystemKvs fsKvs = new FileSystemKvs("filesystem", dir.toString(), KVS_ROOT + syncInterval,
+                    true, 0, syncInterval);
+            String key = this.TEST_KEY_PREFIX + "a/b#1_" + new BigInteger(50, this.random).toString(32);
+            byte[] small = new byte[1000];
+            byte[] large = new byte[3 * 1024 * 1024];   // memory-mapped
+            this.random.nextBytes(small);
+            this.random.nextBytes(large);
+
+            assertNull(fsKvs.get(key));
+            fsKvs.put(key, small);
+            assertArrayEquals(small, fsKvs.get(key));
+            assertArrayEquals(Arrays.copyOfRange(small, 10, 30), fsKvs.get(key, 10, 20));
+            fsKvs.put(key, large);
+            assertArrayEquals(large, fsKvs.get(key));
+            assertEquals(Arrays.asList(key), fsKvs.list());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(large.length, fsKvs.get(key, Channels.newChannel(out)));
+            assertArrayEquals(large, out.toByteArray());
+
+            fsKvs.delete(key);
+            assertNull(fsKvs.get(key));
+            assertTrue(fsKvs.list().isEmpty());
+            fsKvs.shutdown();
+        }
+    }
+
+    @Test
+    public void testSimulatedKvs() throws IOException, InterruptedException {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[10000];
+        this.random.nextBytes(value);
+
+        // the same seed gives the same sequence of failures
+        List<Boolean> failures = new ArrayList<Boolean>();
+        for (int run=0; run<2; run++) {
+            SimulatedKvs simKvs = new SimulatedKvs("simulated", KVS_ROOT, true, 0, 42);
+            simKvs.setErrorRate(0.3);
+            for (int i=0; i<50; i++)
+                try {
+                    simKvs.put(key, value);
+                    if (run == 0) failures.add(false);
+                    else assertFalse(failures.get(i));
+                } catch (IOException e) {
+                    if (run == 0) failures.add(true);
+                    else assertTrue(failures.get(i));
+                }
+        }
+        assertTrue(failures.contains(true) && failures.contains(false));
+
+        SimulatedKvs simKvs = new SimulatedKvs("simulated", KVS_ROOT, true, 0, 42);
+        simKvs.setLatency(20, 0);
+        simKvs.setBandwidth(100000);    // 10 KB take 100 ms
+        long start = System.currentTimeMillis();
+        simKvs.put(key, value);
+        assertTrue(System.currentTimeMillis() - start >= 120);
+        assertArrayEquals(value, simKvs.get(key));
+
+        simKvs = new SimulatedKvs("simulated", KVS_ROOT, true, 0, 42);
+        simKvs.addOutage(0, 200, false);
+        try {
+            simKvs.put(key, value);
+            fail();
+        } catch (IOException e) { }
+        Thread.sleep(250);
+        simKvs.put(key, value);
+        assertArrayEquals(value, simKvs.get(key));
+    }
+
+    @Test
+    public void testStreaming() throws IOException {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[5000];
+        this.random.nextBytes(value);
+        ByteBuffer source = ByteBuffer.allocate(value.length + 100);
+        source.position(100);
+        source.put(value);
+        source.position(100);
+
+        for (Kvs provider : kvs.getKvsList()) {
+            kvs.put(provider, key, source);
+            assertEquals(100, source.position());
+
+            ByteBuffer buffer = kvs.getBuffer(provider, key);
+            assertEquals(value.length, buffer.remaining());
+            assertArrayEquals(value, Arrays.copyOfRange(buffer.array(), 0, buffer.limit()));
+            kvs.getBufferPool().release(buffer);
+            assertTrue(kvs.getBufferPool().getPooledBytes() > 0);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(value.length, kvs.get(provider, key, Channels.newChannel(out)));
+            assertArrayEquals(value, out.toByteArray());
+
+            kvs.delete(provider, key);
+            assertNull(kvs.getBuffer(provider, key));
+        }
+
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteBuffer buffer = pool.acquire(3000);
+        assertEquals(3000, buffer.limit());
+        pool.release(buffer);
+        assertTrue(buffer == pool.acquire(4000));
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    public void testRangedRead() throws IOException {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[1000];
+        this.random.nextBytes(value);
+
+        for (Kvs provider : kvs.getKvsList()) {
+            kvs.put(provider, key, value);
+            assertArrayEquals(Arrays.copyOfRange(value, 0, 100), kvs.get(provider, key, 0, 100));
+            assertArrayEquals(Arrays.copyOfRange(value, 500, 700), kvs.get(provider, key, 500, 200));
+            assertArrayEquals(Arrays.copyOfRange(value, 900, 1000), kvs.get(provider, key, 900, 500));
+            assertEquals(0, kvs.get(provider, key, 2000, 10).length);
+            kvs.delete(provider, key);
+            assertNull(kvs.get(provider, key, 0, 100));
+        }
+    }
+
+    @Test
+    public void testConcurrentKeys() throws Exception {
+
+        final int keys = 2000;
+        final String prefix = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32) + "-";
+        final byte[] value = "concurrent keys".getBytes();
+
+        for (final Kvs provider : kvs.getKvsList()) {
+            ExecutorService executor = Executors.newFixedThreadPool(64);
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(keys);
+            for (int i=0; i<keys; i++) {
+                final String key = prefix + i;
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        provider.put(key, value);
+                        boolean read = Arrays.equals(value, provider.get(key));
+                        provider.delete(key);
+                        return read && provider.get(key) == null;
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures)
+                assertTrue(future.get());
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPoolSaturation() throws Exception {
+
+        String prefix = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32) + "-";
+        byte[] value = "pool saturation".getBytes();
+
+        for (Kvs provider : kvs.getKvsList()) {
+            int maxConnections = provider.getTransport().getMaxConnections();
+            provider.getTransport().setMaxConnections(1);
+            long saturated = kvs.getSaturatedRequests(provider);
+
+            ExecutorService executor = Executors.newFixedThreadPool(16);
+            List<Future<Kvs>> futures = new ArrayList<Future<Kvs>>();
+            for (int i=0; i<64; i++)
+                futures.add(executor.submit(kvs.new KvsPutWorker(provider, prefix + i, value)));
+            for (Future<Kvs> future : futures)
+                assertEquals(provider, future.get());
+            executor.shutdown();
+
+            assertTrue(kvs.getPeakInFlight(provider) >= 1);
+            assertEquals(0, kvs.getInFlight(provider));
+            if (kvs.getPeakInFlight(provider) > 1)
+                assertTrue(kvs.getSaturatedRequests(provider) > saturated);
+
+            provider.getTransport().setMaxConnections(maxConnections);
+            for (int i=0; i<64; i++)
+                kvs.delete(provider, prefix + i);
+        }
+    }
+
+    @Test
+    public void testPagedList() throws IOException {
+
+        String prefix = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32) + "-";
+        byte[] value = "paged list".getBytes();
+        Set<String> keys = new HashSet<String>();
+        for (int i=0; i<25; i++)
+            keys.add(prefix + i);
+
+        for (Kvs provider : kvs.getKvsList()) {
+            for (String key : keys)
+                kvs.put(provider, key, value);
+            kvs.put(provider, prefix.substring(0, prefix.length() - 1), value);    // not matching
+
+            Set<String> listed = new HashSet<String>();
+            Iterator<String> it = provider.list(prefix, 10);
+            while (it.hasNext())
+                assertTrue(listed.add(it.next()));
+            assertEquals(keys, listed);
+            assertFalse(provider.list(prefix + "none", 10).hasNext());
+
+            kvs.deleteAll(provider, keys);
+            kvs.delete(provider, prefix.substring(0, prefix.length() - 1));
+        }
+    }
+
+    @Test
+    public void testBulkDelete() throws IOException {
+
+        byte[] value = "bulk delete".getBytes();
+        List<String> keys = new ArrayList<String>();
+        for (int i=0; i<40; i++)
+            keys.add(this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32));
+
+        Map<Kvs, List<String>> kvsKeys = new HashMap<Kvs, List<String>>();
+        for (Kvs provider : kvs.getKvsList()) {
+            for (String key : keys)
+                kvs.put(provider, key, value);
+            kvsKeys.put(provider, keys);
+        }
+
+        assertTrue(kvs.deleteAll(kvsKeys).isEmpty());
+        for (Kvs provider : kvs.getKvsList())
+            for (String key : keys)
+                assertNull(kvs.get(provider, key));
+
+        // deleting missing keys is not a failure
+        assertTrue(kvs.deleteAll(kvsKeys).isEmpty());
+    }
+
+    @Test
+    public void testContainerVerification() throws IOException {
+
+        for (Kvs provider : kvs.getKvsList())
+            assertTrue(provider.isContainerVerified());     // created during startup, unless lazy
+
+        Kvs lazyKvs = new SimulatedKvs("lazy", KVS_ROOT, true, 0, 42);
+        assertFalse(lazyKvs.isContainerVerified());
+        lazyKvs.verifyContainer();
+        assertTrue(lazyKvs.isContainerVerified());
+    }
+
+    @Test
+    public void testRequestDeadline() throws IOException {
+
+        KvsManager manager = new KvsManager("accounts-test.properties", KVS_ROOT, false);
+        Kvs provider = manager.getKvsList().get(0);
+        assertEquals(60000, manager.getReadDeadline(provider, 1000, 60000));     // not enough samples yet
+
+        for (int i=0; i<19; i++)
+            manager.recordRead(provider, 1000, 2000);
+        manager.recordRead(provider, 1000, 4000);
+        // slack over the predicted latency, plus the p99 tail (4000 - 2400 ms)
+        double predicted = manager.predictReadLatency(provider, 1000);
+        assertEquals(2 * predicted + 1600, manager.getReadDeadline(provider, 1000, 60000), 1);
+        assertEquals(5000, manager.getReadDeadline(provider, 1000, 5000));
+        manager.shutdown();
+    }
+
+    @Test
+    public void testLatencyProfile() throws IOException {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new BigInteger(50, this.random).toString(32).getBytes();
+        for (Kvs provider : kvs.getKvsList()) {
+            assertNotNull(kvs.new KvsPutWorker(provider, key, value).call());
+            assertNotNull(kvs.new KvsGetWorker(provider, key).call());
+            kvs.delete(provider, key);
+        }
+
+        Path file = Files.createTempFile("hybris-latency", ".properties");
+        try {
+            LatencyProfile profile = new LatencyProfile(file.toString());
+            profile.save(kvs);
+
+            KvsManager restarted = new KvsManager("accounts-test.properties", KVS_ROOT, false);
+            assertEquals(restarted.getKvsList().size(), profile.load(restarted));
+            for (Kvs provider : kvs.getKvsList()) {
+                Kvs restored = null;
+                for (Kvs candidate : restarted.getKvsList())
+                    if (candidate.getId().equals(provider.getId()))
+                        restored = candidate;
+                assertNotNull(restored);
+                assertEquals(kvs.getReadStats(provider).getEwma(), restarted.getReadStats(restored).getEwma(), 0.001);
+                assertEquals(kvs.getWriteStats(provider).getEwma(), restarted.getWriteStats(restored).getEwma(), 0.001);
+                assertArrayEquals(kvs.getReadModel(provider).getState(), restarted.getReadModel(restored).getState(), 0.001);
+                assertEquals(Math.round(kvs.getWriteStats(provider).getEwma()), restored.getWriteLatency());
+            }
+            restarted.shutdown();
+
+            Files.delete(file);
+            assertEquals(0, profile.load(kvs));     // missing profile
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testPeerLatencies() throws IOException {
+
+        Kvs provider = kvs.getKvsList().get(0);
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        assertNotNull(kvs.new KvsPutWorker(provider, key, new byte[10]).call());
+        assertNotNull(kvs.new KvsGetWorker(provider, key).call());
+        kvs.delete(provider, key);
+        long localRead = Math.round(kvs.getReadStats(provider).getEwma());
+        long localWrite = Math.round(kvs.getWriteStats(provider).getEwma());
+
+        List<byte[]> summaries = new ArrayList<byte[]>();
+        summaries.add((provider.getId() + "=" + (localRead + 1000) + ",-1,1.00\n").getBytes());
+        summaries.add((provider.getId() + "=" + (localRead + 3000) + ",-1,0.90\n").getBytes());
+        summaries.add((provider.getId() + "=" + (localRead + 2000) + ",-1,0.95\nmalformed\n").getBytes());
+        Map<String, double[]> medians = LatencySharing.getMedians(summaries);
+        assertEquals(1, medians.size());
+        assertEquals(localRead + 2000, medians.get(provider.getId())[0], 0.001);
+        assertTrue(Double.isNaN(medians.get(provider.getId())[1]));
+        assertEquals(0.95, medians.get(provider.getId())[2], 0.001);
+
+        // ranked by the worst of the local and peer latencies
+        kvs.mergePeerLatencies(medians);
+        assertEquals(localRead + 2000, provider.getReadLatency());
+        assertEquals(localWrite, provider.getWriteLatency());
+
+        // failing for most peers
+        summaries.add((provider.getId() + "=-1,-1,0.10\n").getBytes());
+        summaries.add((provider.getId() + "=-1,-1,0.00\n").getBytes());
+        summaries.add((provider.getId() + "=-1,-1,0.20\n").getBytes());
+        summaries.add((provider.getId() + "=-1,-1,0.10\n").getBytes());
+        kvs.mergePeerLatencies(LatencySharing.getMedians(summaries));
+        assertEquals(Integer.MAX_VALUE, provider.getReadLatency());
+        assertEquals(Integer.MAX_VALUE, provider.getWriteLatency());
+
+        kvs.mergePeerLatencies(new HashMap<String, double[]>());
+        assertEquals(localRead, provider.getReadLatency());
+        assertEquals(localWrite, provider.getWriteLatency());
+
+        // without local samples, a Kvs recovering for peers gets their latencies, or stays last
+        KvsManager manager = new KvsManager("accounts-test.properties", KVS_ROOT, false);
+        Kvs fresh = manager.getKvsList().get(0);
+        Map<String, double[]> failing = new HashMap<String, double[]>();
+        failing.put(fresh.getId(), new double[] { Double.NaN, Double.NaN, 0.1 });
+        manager.mergePeerLatencies(failing);
+        assertEquals(Integer.MAX_VALUE, fresh.getReadLatency());
+        manager.mergePeerLatencies(new HashMap<String, double[]>());
+        assertEquals(Integer.MAX_VALUE, fresh.getReadLatency());
+        assertEquals(Integer.MAX_VALUE, fresh.getWriteLatency());
+        manager.mergePeerLatencies(failing);
+        Map<String, double[]> recovered = new HashMap<String, double[]>();
+        recovered.put(fresh.getId(), new double[] { 300, 500, 0.9 });
+        manager.mergePeerLatencies(recovered);
+        assertEquals(300, fresh.getReadLatency());
+        assertEquals(500, fresh.getWriteLatency());
+        manager.shutdown();
+    }
+
+    @Test
+    public void testParallelPartsRead() throws IOException {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[10000];
+        this.random.nextBytes(value);
+
+        for (Kvs provider : kvs.getKvsList()) {
+            provider.getTransport().setMultipartThreshold(1000);
+            provider.getTransport().setPartSize(768);
+            kvs.put(provider, key, value);
+            assertArrayEquals(value, kvs.get(provider, key, value.length));
+            assertArrayEquals(value, kvs.get(provider, key, 4000));      // underestimated size
+            assertArrayEquals(value, kvs.get(provider, key, 13 * 768));  // underestimated size, at a part boundary
+            assertArrayEquals(value, kvs.get(provider, key, 50000));     // overestimated size
+            kvs.delete(provider, key);
+            assertNull(kvs.get(provider, key, value.length));
+            provider.getTransport().setMultipartThreshold(TransportConfig.UNSET);
+            provider.getTransport().setPartSize(TransportConfig.UNSET);
+        }
+    }
+
     @Test
     public void testOverwrite() {
 
@@ -41,6 +41,7 @@ import org.junit.Test;
 import fr.eurecom.hybris.Config;
 import fr.eurecom.hybris.HybrisException;
 import fr.eurecom.hybris.Utils;
+import fr.eurecom.hybris.kvs.KvsRegistry;
 import fr.eurecom.hybris.kvs.drivers.Kvs;
 import fr.eurecom.hybris.kvs.drivers.TransientKvs;
 import fr.eurecom.hybris.mds.MdsManager;
@@ -285,6 +286,47 @@ public class MdsManagerTest extends HybrisAbstractTest {
         assertTrue(mds.tsRead(key, null).isTombstone());
     }
 
+    @Test
+    public void testKvsRegistry() throws HybrisException {
+
+        Map<String, Short> reserved = KvsRegistry.getReserved();
+        Map<String, Short> ids = mds.registerKvs(Arrays.asList("amazon", "amazon-us", "azure-2"), reserved);
+        assertEquals(reserved.get("amazon"), ids.get("amazon"));
+        assertNotNull(ids.get("amazon-us"));
+        assertNotNull(ids.get("azure-2"));
+        assertFalse(ids.get("amazon-us").equals(ids.get("azure-2")));
+        assertFalse(reserved.containsValue(ids.get("amazon-us")));
+
+        // ids are stable, and new instances get new ids
+        Map<String, Short> ids2 = mds.registerKvs(Arrays.asList("azure-2", "google-asia"), reserved);
+        assertEquals(ids.get("amazon-us"), ids2.get("amazon-us"));
+        assertEquals(ids.get("azure-2"), ids2.get("azure-2"));
+        assertFalse(ids2.get("google-asia").equals(ids.get("amazon-us")));
+
+        // chunks on named instances survive metadata serialization
+        KvsRegistry.getInstance().load(ids2);
+        List<Kvs> replicas = new ArrayList<Kvs>();
+        replicas.add(new TransientKvs("amazon-us", "A-accessKey", "A-secretKey", "container", true, 20));
+        replicas.add(new TransientKvs("google-asia", "B-accessKey", "B-secretKey", "container", true, 20));
+        Metadata md = new Metadata(new Timestamp(1, Utils.generateClientId()), new byte[Utils.HASH_LENGTH],
+                new ArrayList<byte[]>(), 10, null, replicas, null);
+        assertEquals(replicas, new Metadata(md.serialize()).getChunksLst());
+    }
+
+    @Test
+    public void testLatencySummaries() throws HybrisException {
+
+        String clientId1 = Utils.generateClientId();
+        String clientId2 = Utils.generateClientId();
+        mds.publishLatency(clientId1, "amazon=120,300,1.00\n".getBytes());
+        mds.publishLatency(clientId2, "amazon=150,280,0.90\n".getBytes());
+        mds.publishLatency(clientId1, "amazon=130,310,0.95\n".getBytes());     // updated
+
+        Map<String, byte[]> summaries = mds.getLatencies(60000);
+        assertArrayEquals("amazon=130,310,0.95\n".getBytes(), summaries.get(clientId1));
+        assertArrayEquals("amazon=150,280,0.90\n".getBytes(), summaries.get(clientId2));
+    }
+
     @Test
     public void testList() throws HybrisException {
 
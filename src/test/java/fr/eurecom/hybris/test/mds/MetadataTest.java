@@ -33,6 +33,7 @@ import fr.eurecom.hybris.Utils;
 import fr.eurecom.hybris.kvs.drivers.Kvs;
 import fr.eurecom.hybris.kvs.drivers.TransientKvs;
 import fr.eurecom.hybris.mds.Metadata;
+import fr.eurecom.hybris.mds.Metadata.PackRef;
 import fr.eurecom.hybris.mds.Metadata.Timestamp;
 import fr.eurecom.hybris.test.HybrisAbstractTest;
 
@@ -85,6 +86,71 @@ public class MetadataTest extends HybrisAbstractTest {
         assertEquals(ts, mddes.getTs());
     }
 
+    @Test
+    public void testPackRefsSerialization() {
+
+        Timestamp ts = new Timestamp(this.random.nextInt(100), Utils.generateClientId());
+        byte[] hash = new byte[Utils.HASH_LENGTH];
+        this.random.nextBytes(hash);
+        List<Kvs> replicas = new ArrayList<Kvs>();
+        replicas.add(new TransientKvs("transient", "A-accessKey", "A-secretKey", "container", true, 20));
+        List<PackRef> packRefs = new ArrayList<PackRef>();
+        packRefs.add(new PackRef(Utils.getPackKey("cid", 1), 0, 512));
+        packRefs.add(new PackRef(Utils.getPackKey("cid", 1), 4096, 512));
+
+        Metadata md = new Metadata(ts, hash, new ArrayList<byte[]>(), 1024, null, replicas, null);
+        md.setPackRefs(packRefs);
+        Metadata mddes = new Metadata(md.serialize());
+        assertTrue(mddes.isPacked());
+        assertEquals(packRefs, mddes.getPackRefs());
+        assertEquals(1, mddes.getChunksLst().size());
+
+        md.setPackRefs(null);
+        mddes = new Metadata(md.serialize());
+        assertFalse(mddes.isPacked());
+        assertEquals(1, mddes.getChunksLst().size());
+
+        assertFalse(new Metadata(Metadata.getTombstone(ts).serialize()).isPacked());
+        assertTrue(Utils.isPackKey(Utils.getPackKey("cid", 1)));
+        assertFalse(Utils.isPackKey(Utils.getKvsKey("pack-key", ts)));
+    }
+
+    @Test
+    public void testChunksSerialization() {
+
+        Timestamp ts = new Timestamp(this.random.nextInt(100), Utils.generateClientId());
+        byte[] cryptoKey = new byte[Utils.CRYPTO_KEY_LENGTH];
+        this.random.nextBytes(cryptoKey);
+        ArrayList<byte[]> hashlist = new ArrayList<byte[]>();
+        ArrayList<String> keylist = new ArrayList<String>();
+        List<Kvs> replicas = new ArrayList<Kvs>();
+        List<PackRef> packRefs = new ArrayList<PackRef>();
+        for (int i=0; i<Utils.DATACHUNKS+Utils.REDCHUNKS; i++) {
+            byte[] hash = new byte[Utils.HASH_LENGTH];
+            this.random.nextBytes(hash);
+            hashlist.add(hash);
+            byte[] chunkKey = new byte[100];
+            this.random.nextBytes(chunkKey);
+            keylist.add(Utils.bytesToHexStr(chunkKey));     // long keys, overflowing the initial buffer
+            replicas.add(new TransientKvs("transient", "accessKey", "secretKey", "container", true, 20));
+            packRefs.add(new PackRef(Utils.getPackKey(Utils.generateClientId(), i), 4096 * i, 512));
+        }
+
+        Metadata md = new Metadata(ts, hashlist.get(0), hashlist, 1024, keylist, replicas, cryptoKey);
+        md.setPackRefs(packRefs);
+        byte[] serialized = md.serialize();
+        assertTrue(serialized.length > 512);
+        Metadata mddes = new Metadata(serialized);
+        assertEquals(md, mddes);
+        assertEquals(hashlist.size(), mddes.getHashlist().size());
+        for (int i=0; i<hashlist.size(); i++)
+            assertArrayEquals(hashlist.get(i), mddes.getHashlist().get(i));
+        assertEquals(keylist, mddes.getkeylist());
+        assertEquals(packRefs, mddes.getPackRefs());
+        assertArrayEquals(cryptoKey, mddes.getCryptoKey());
+        assertEquals(1024, mddes.getSize());
+    }
+
     @Test
     public void testSerializationCornerCases() {
 
@@ -19,6 +19,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Vector;
@@ -112,11 +113,19 @@ public class HybrisYcsbClient extends DB {
             return 1;
         }
 
-        HashMap<String, ByteIterator> values;
-        for (String key : keys) {
-            values = new HashMap<String, ByteIterator>();
-            this.read(table, key, fields, values);
-            result.add(values);
+        Map<String, byte[]> values;
+        try {
+            values = this.hybris.multiGet(keys);
+        } catch (HybrisException e) {
+            e.printStackTrace();
+            return 1;
+        }
+
+        HashMap<String, ByteIterator> record;
+        for (Map.Entry<String, byte[]> value : values.entrySet()) {
+            record = new HashMap<String, ByteIterator>();
+            record.put(value.getKey(), new ByteArrayByteIterator(value.getValue()));
+            result.add(record);
         }
 
         return 0;